@@ -0,0 +1,516 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Suggests names for code completion.
+ *
+ * Candidates come from three places: identifiers near the caret in the
+ * edited file, names declared in the project's {@link SymbolIndex}, and the
+ * public classes of the JDK's java and javax packages. The last two are
+ * kept in prefix tries built in the background, the JDK one once per run
+ * from the runtime image and the project one again whenever the symbol
+ * index changed, so a query only walks the part of a trie below the typed
+ * prefix. Nearby identifiers change with every keystroke and are simply
+ * filtered while lexing a window around the caret.
+ *
+ * Queries run on a worker thread and every new one cancels the one before.
+ * A query still collecting {@link #BUDGET_MS} after it was started stops
+ * and delivers what it has, marked partial.
+ */
+public class CompletionEngine {
+    public static final int BUDGET_MS = 50;
+    public static final int MAX_ITEMS = 100;
+    // Identifiers this many characters around the caret count as nearby
+    private static final int LOCAL_WINDOW = 32 * 1024;
+    
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Completion");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    // Builds the tries, so queries never wait for them
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Completion index");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+    
+    // Read once per run; null until the builder is done
+    private static volatile Trie jdkClasses;
+    private static boolean jdkRequested;
+    
+    /**
+     * A suggested name.
+     */
+    public static class Item {
+        public final String name;
+        // Where the name comes from, such as a package or "method"
+        public final String detail;
+        
+        Item(String name, String detail) {
+            this.name = name;
+            this.detail = detail;
+        }
+    }
+    
+    /**
+     * Receives the suggestions for a query on the EDT, unless it was
+     * cancelled first.
+     */
+    public interface Listener {
+        void completed(List<Item> items, boolean partial);
+    }
+    
+    /**
+     * A query in progress.
+     */
+    public static class Query {
+        private final TextSnapshot text;
+        private final int caret;
+        private final String prefix;
+        private final long deadline;
+        private final Listener listener;
+        private volatile boolean cancelled;
+        
+        private Query(TextSnapshot text, int caret, String prefix, Listener listener) {
+            this.text = text;
+            this.caret = caret;
+            this.prefix = prefix;
+            this.deadline = System.nanoTime() + BUDGET_MS * 1000000L;
+            this.listener = listener;
+        }
+        
+        public void cancel() {
+            cancelled = true;
+        }
+        
+        boolean isOverdue() {
+            return cancelled || System.nanoTime() > deadline;
+        }
+    }
+    
+    /**
+     * Suggestions of one query, each name once.
+     */
+    static final class Results {
+        final Query query;
+        final List<Item> items = new ArrayList<>();
+        final Set<String> names = new HashSet<>();
+        
+        Results(Query query) {
+            this.query = query;
+        }
+        
+        void add(String name, String detail) {
+            if (items.size() < MAX_ITEMS && names.add(name)) {
+                items.add(new Item(name, detail));
+            }
+        }
+        
+        boolean isFull() {
+            return items.size() >= MAX_ITEMS;
+        }
+    }
+    
+    /**
+     * Names keyed by their lower case characters, so a prefix finds them
+     * whatever their case. Nodes and entries live in parallel arrays; 0
+     * means none, which is why node 0 is the root and entry 0 is unused.
+     */
+    static final class Trie {
+        private char[] chars = new char[1024];
+        private int[] firstChild = new int[1024];
+        private int[] nextSibling = new int[1024];
+        private int[] firstEntry = new int[1024];
+        private int nodeCount = 1;
+        private String[] names = new String[256];
+        private String[] details = new String[256];
+        private int[] nextEntry = new int[256];
+        private int entryCount = 1;
+        
+        void add(String name, String detail) {
+            int node = 0;
+            for (int i = 0; i < name.length(); i++) {
+                char c = Character.toLowerCase(name.charAt(i));
+                int child = firstChild[node];
+                while (child != 0 && chars[child] != c) {
+                    child = nextSibling[child];
+                }
+                if (child == 0) {
+                    child = newNode(c);
+                    nextSibling[child] = firstChild[node];
+                    firstChild[node] = child;
+                }
+                node = child;
+            }
+            if (entryCount == names.length) {
+                int size = entryCount * 2;
+                names = Arrays.copyOf(names, size);
+                details = Arrays.copyOf(details, size);
+                nextEntry = Arrays.copyOf(nextEntry, size);
+            }
+            int entry = entryCount++;
+            names[entry] = name;
+            details[entry] = detail;
+            nextEntry[entry] = firstEntry[node];
+            firstEntry[node] = entry;
+        }
+        
+        private int newNode(char c) {
+            if (nodeCount == chars.length) {
+                int size = nodeCount * 2;
+                chars = Arrays.copyOf(chars, size);
+                firstChild = Arrays.copyOf(firstChild, size);
+                nextSibling = Arrays.copyOf(nextSibling, size);
+                firstEntry = Arrays.copyOf(firstEntry, size);
+            }
+            chars[nodeCount] = c;
+            return nodeCount++;
+        }
+        
+        /**
+         * Adds the names below the prefix to the results breadth first, so
+         * shorter names come first. Returns false if the query ran out of
+         * time before it was done.
+         */
+        boolean collect(String prefix, Results results) {
+            int node = 0;
+            for (int i = 0; i < prefix.length() && node >= 0; i++) {
+                char c = Character.toLowerCase(prefix.charAt(i));
+                int child = firstChild[node];
+                while (child != 0 && chars[child] != c) {
+                    child = nextSibling[child];
+                }
+                node = child != 0 ? child : -1;
+            }
+            if (node < 0) {
+                return true;
+            }
+            int[] queue = new int[64];
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = node;
+            while (head < tail && !results.isFull()) {
+                if ((head & 63) == 0 && results.query.isOverdue()) {
+                    return false;
+                }
+                node = queue[head++];
+                for (int entry = firstEntry[node]; entry != 0; entry = nextEntry[entry]) {
+                    if (names[entry].length() > prefix.length()) {
+                        results.add(names[entry], details[entry]);
+                    }
+                }
+                for (int child = firstChild[node]; child != 0; child = nextSibling[child]) {
+                    if (tail == queue.length) {
+                        // Compact before growing, the consumed head is dead space
+                        System.arraycopy(queue, head, queue, 0, tail - head);
+                        tail -= head;
+                        head = 0;
+                        if (tail == queue.length) {
+                            queue = Arrays.copyOf(queue, queue.length * 2);
+                        }
+                    }
+                    queue[tail++] = child;
+                }
+            }
+            return true;
+        }
+    }
+    
+    // Only used on the worker
+    private final JavaLexer lexer = new JavaLexer();
+    
+    private volatile SymbolIndex symbols;
+    private volatile Trie projectNames;
+    private volatile SymbolIndex builtFrom;
+    private volatile int builtModCount;
+    private volatile boolean rebuilding;
+    
+    public CompletionEngine() {
+        loadJdkClasses();
+    }
+    
+    /**
+     * Sets the project whose declarations are suggested, null for none.
+     */
+    public void setSymbolIndex(SymbolIndex symbols) {
+        this.symbols = symbols;
+        this.projectNames = null;
+        refreshProjectNames();
+    }
+    
+    /**
+     * Starts collecting names that begin with the prefix, which ends at the
+     * caret. The listener is called on the EDT.
+     */
+    public Query complete(TextSnapshot text, int caret, String prefix, Listener listener) {
+        final Query query = new Query(text, caret, prefix, listener);
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                collect(query);
+            }
+        });
+        return query;
+    }
+    
+    private void collect(final Query query) {
+        if (query.cancelled) {
+            return;
+        }
+        Results results = new Results(query);
+        boolean complete = collectNearby(query, results);
+        Trie project = projectNames;
+        if (complete && project != null) {
+            complete = project.collect(query.prefix, results);
+        }
+        Trie jdk = jdkClasses;
+        if (complete && jdk != null) {
+            complete = jdk.collect(query.prefix, results);
+        }
+        // A missing trie is still being built
+        final boolean partial = !complete || jdk == null || (symbols != null && project == null);
+        final List<Item> items = results.items;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (!query.cancelled) {
+                    query.listener.completed(items, partial);
+                }
+            }
+        });
+        refreshProjectNames();
+    }
+    
+    /**
+     * Adds the identifiers and keywords around the caret that start with
+     * the prefix, nearest first.
+     */
+    private boolean collectNearby(final Query query, Results results) {
+        final int start = Math.max(0, query.caret - LOCAL_WINDOW);
+        int end = Math.min(query.text.length(), query.caret + LOCAL_WINDOW);
+        final String window = query.text.subSequence(start, end).toString();
+        final int wordStart = query.caret - query.prefix.length() - start;
+        final Map<String, Integer> distances = new HashMap<>();
+        lexer.tokenize(window, 0, window.length(), new JavaLexer.TokenHandler() {
+            @Override
+            public void token(int offset, int length, int type) {
+                if ((type == JavaLexer.TOKEN_IDENTIFIER || type == JavaLexer.TOKEN_KEYWORD)
+                        && length > query.prefix.length() && offset != wordStart
+                        && window.regionMatches(true, offset, query.prefix, 0, query.prefix.length())) {
+                    String name = window.substring(offset, offset + length);
+                    int distance = Math.abs(offset - wordStart);
+                    Integer known = distances.get(name);
+                    if (known == null || distance < known) {
+                        distances.put(name, distance);
+                    }
+                }
+            }
+        });
+        List<Map.Entry<String, Integer>> nearest = new ArrayList<>(distances.entrySet());
+        Collections.sort(nearest, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2) {
+                return Integer.compare(e1.getValue(), e2.getValue());
+            }
+        });
+        for (Map.Entry<String, Integer> entry : nearest) {
+            results.add(entry.getKey(), "nearby");
+        }
+        return !query.isOverdue();
+    }
+    
+    /**
+     * Rebuilds the trie of project names in the background if the symbol
+     * index changed since it was built.
+     */
+    private void refreshProjectNames() {
+        final SymbolIndex index = symbols;
+        if (index == null || rebuilding || (index == builtFrom && index.getModCount() == builtModCount)) {
+            return;
+        }
+        rebuilding = true;
+        BUILDER.execute(new Runnable() {
+            @Override
+            public void run() {
+                int modCount = index.getModCount();
+                Trie trie = new Trie();
+                for (Map.Entry<String, SymbolIndex.Kind> entry : index.declaredNames().entrySet()) {
+                    trie.add(entry.getKey(), entry.getValue().name().toLowerCase().replace('_', ' '));
+                }
+                if (index == symbols) {
+                    projectNames = trie;
+                    builtFrom = index;
+                    builtModCount = modCount;
+                }
+                rebuilding = false;
+            }
+        });
+    }
+    
+    private static synchronized void loadJdkClasses() {
+        if (jdkRequested) {
+            return;
+        }
+        jdkRequested = true;
+        BUILDER.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Simple name to the packages that have a class of that name
+                Map<String, String> packages = new TreeMap<>();
+                try {
+                    readJdkClasses(packages);
+                } catch (IOException e) {
+                    // Complete without JDK classes
+                }
+                Trie trie = new Trie();
+                for (Map.Entry<String, String> entry : packages.entrySet()) {
+                    trie.add(entry.getKey(), entry.getValue());
+                }
+                jdkClasses = trie;
+            }
+        });
+    }
+    
+    /**
+     * Collects the public top level classes of java and javax packages,
+     * from the jrt file system on Java 9 and later and from rt.jar before.
+     */
+    static void readJdkClasses(final Map<String, String> packages) throws IOException {
+        FileSystem jrt;
+        try {
+            jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        } catch (ProviderNotFoundException | FileSystemNotFoundException e) {
+            readRuntimeJar(new File(System.getProperty("java.home"), "lib/rt.jar"), packages);
+            return;
+        }
+        // Laid out as /modules/<module>/<package directories>/<class>.class
+        Files.walkFileTree(jrt.getPath("/modules"), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.getNameCount() < 3) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String top = dir.getName(2).toString();
+                return top.equals("java") || top.equals("javax")
+                    ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String path = file.subpath(2, file.getNameCount()).toString();
+                if (isTopLevelClass(path) && isPublic(Files.readAllBytes(file))) {
+                    addClass(path, packages);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
+    private static void readRuntimeJar(File jar, Map<String, String> packages) throws IOException {
+        try (ZipFile zip = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String path = entry.getName();
+                if ((path.startsWith("java/") || path.startsWith("javax/")) && isTopLevelClass(path)) {
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        byte[] bytes = new byte[(int) entry.getSize()];
+                        int read = 0;
+                        while (read < bytes.length) {
+                            int count = in.read(bytes, read, bytes.length - read);
+                            if (count < 0) {
+                                break;
+                            }
+                            read += count;
+                        }
+                        if (isPublic(bytes)) {
+                            addClass(path, packages);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    private static boolean isTopLevelClass(String path) {
+        return path.endsWith(".class") && path.indexOf('$') < 0
+            && !path.endsWith("module-info.class") && !path.endsWith("package-info.class");
+    }
+    
+    private static void addClass(String path, Map<String, String> packages) {
+        int slash = path.lastIndexOf('/');
+        String name = path.substring(slash + 1, path.length() - ".class".length());
+        String pkg = path.substring(0, Math.max(slash, 0)).replace('/', '.');
+        String known = packages.get(name);
+        packages.put(name, known == null ? pkg : known + ", " + pkg);
+    }
+    
+    /**
+     * Reads the access flags that follow a class file's constant pool.
+     */
+    static boolean isPublic(byte[] bytes) {
+        try {
+            int count = u2(bytes, 8);
+            int offset = 10;
+            for (int i = 1; i < count; i++) {
+                int tag = bytes[offset] & 0xff;
+                int length = tag == 1 ? 2 + u2(bytes, offset + 1) : IncrementalBuilder.constantLength(tag);
+                if (length < 0) {
+                    // A newer class file format than this reader knows
+                    return false;
+                }
+                offset += 1 + length;
+                if (tag == 5 || tag == 6) {
+                    // Longs and doubles take two slots
+                    i++;
+                }
+            }
+            return (u2(bytes, offset) & 0x0001) != 0;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+    
+    private static int u2(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 8 | bytes[offset + 1] & 0xff;
+    }
+}
@@ -0,0 +1,284 @@
+package com.javaide;
+
+import javax.swing.*;
+import javax.swing.event.CaretEvent;
+import javax.swing.event.CaretListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import java.awt.*;
+import java.awt.event.*;
+import java.util.List;
+
+/**
+ * The list of completions shown under the word being typed in an editor.
+ *
+ * {@link #open} shows it for the word before the caret. While it is open
+ * every edit asks the {@link CompletionEngine} again and cancels the query
+ * before, so only the latest keystroke is ever answered. Up and Down pick
+ * a name, Enter or Tab inserts it, and Escape or leaving the word closes
+ * the list.
+ */
+class CompletionPopup {
+    private final JTextPane textPane;
+    private final EditorDocument document;
+    private final CompletionEngine engine;
+    private final DefaultListModel<CompletionEngine.Item> items = new DefaultListModel<>();
+    private final JList<CompletionEngine.Item> list = new JList<>(items);
+    private final JLabel statusLabel = new JLabel("Partial results");
+    private JWindow window;
+    private CompletionEngine.Query query;
+    // Start of the word being completed, -1 while closed
+    private int wordStart = -1;
+    
+    CompletionPopup(JTextPane textPane, EditorDocument document, CompletionEngine engine) {
+        this.textPane = textPane;
+        this.document = document;
+        this.engine = engine;
+        
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setFocusable(false);
+        list.setVisibleRowCount(10);
+        list.setFont(textPane.getFont());
+        list.setPrototypeCellValue(new CompletionEngine.Item("aTypicallyLongMemberName", "java.util, java.awt"));
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                CompletionEngine.Item item = (CompletionEngine.Item) value;
+                String text = "<html>" + item.name + "&nbsp;&nbsp;<font color=gray>" + item.detail + "</font></html>";
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    insertSelected();
+                }
+            }
+        });
+        statusLabel.setForeground(Color.GRAY);
+        statusLabel.setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+        
+        // Listeners run before the key bindings, so consuming the keys here
+        // keeps them from moving the caret
+        textPane.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (window == null || !window.isVisible()) {
+                    if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
+                        close();
+                    }
+                    return;
+                }
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_DOWN:
+                        select(list.getSelectedIndex() + 1);
+                        break;
+                    case KeyEvent.VK_UP:
+                        select(list.getSelectedIndex() - 1);
+                        break;
+                    case KeyEvent.VK_PAGE_DOWN:
+                        select(list.getSelectedIndex() + list.getVisibleRowCount());
+                        break;
+                    case KeyEvent.VK_PAGE_UP:
+                        select(list.getSelectedIndex() - list.getVisibleRowCount());
+                        break;
+                    case KeyEvent.VK_ENTER:
+                    case KeyEvent.VK_TAB:
+                        insertSelected();
+                        break;
+                    case KeyEvent.VK_ESCAPE:
+                        close();
+                        break;
+                    default:
+                        return;
+                }
+                e.consume();
+            }
+        });
+        document.addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                updateLater();
+            }
+            
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                updateLater();
+            }
+            
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                // Highlighting only
+            }
+        });
+        textPane.addCaretListener(new CaretListener() {
+            @Override
+            public void caretUpdate(CaretEvent e) {
+                if (wordStart >= 0 && prefix() == null) {
+                    close();
+                }
+            }
+        });
+        textPane.addFocusListener(new FocusAdapter() {
+            @Override
+            public void focusLost(FocusEvent e) {
+                close();
+            }
+        });
+    }
+    
+    /**
+     * Starts completing the word before the caret.
+     */
+    void open() {
+        TextSnapshot text = document.snapshot();
+        int start = textPane.getCaretPosition();
+        while (start > 0 && Character.isJavaIdentifierPart(text.charAt(start - 1))) {
+            start--;
+        }
+        wordStart = start;
+        update();
+    }
+    
+    void close() {
+        wordStart = -1;
+        cancelQuery();
+        if (window != null) {
+            window.setVisible(false);
+        }
+    }
+    
+    /**
+     * Closes the list for good when the editor goes away.
+     */
+    void dispose() {
+        close();
+        if (window != null) {
+            window.dispose();
+            window = null;
+        }
+    }
+    
+    /**
+     * Returns the text from the start of the word to the caret, or null if
+     * the caret left the word.
+     */
+    private String prefix() {
+        int caret = textPane.getCaretPosition();
+        if (caret < wordStart || caret > document.getLength()) {
+            return null;
+        }
+        String prefix = document.snapshot().subSequence(wordStart, caret).toString();
+        for (int i = 0; i < prefix.length(); i++) {
+            if (!Character.isJavaIdentifierPart(prefix.charAt(i))) {
+                return null;
+            }
+        }
+        return prefix;
+    }
+    
+    private void updateLater() {
+        if (wordStart >= 0) {
+            // The caret follows the edit only after the listeners ran
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (wordStart >= 0) {
+                        update();
+                    }
+                }
+            });
+        }
+    }
+    
+    private void update() {
+        String prefix = prefix();
+        if (prefix == null) {
+            close();
+            return;
+        }
+        cancelQuery();
+        query = engine.complete(document.snapshot(), textPane.getCaretPosition(), prefix,
+            new CompletionEngine.Listener() {
+                @Override
+                public void completed(List<CompletionEngine.Item> found, boolean partial) {
+                    query = null;
+                    show(found, partial);
+                }
+            });
+    }
+    
+    private void cancelQuery() {
+        if (query != null) {
+            query.cancel();
+            query = null;
+        }
+    }
+    
+    private void show(List<CompletionEngine.Item> found, boolean partial) {
+        if (found.isEmpty()) {
+            if (window != null) {
+                window.setVisible(false);
+            }
+            return;
+        }
+        items.clear();
+        for (CompletionEngine.Item item : found) {
+            items.addElement(item);
+        }
+        select(0);
+        statusLabel.setVisible(partial);
+        
+        Rectangle caret;
+        try {
+            caret = textPane.modelToView(wordStart);
+        } catch (BadLocationException e) {
+            return;
+        }
+        if (caret == null) {
+            return;
+        }
+        if (window == null) {
+            window = new JWindow(SwingUtilities.getWindowAncestor(textPane));
+            window.setFocusableWindowState(false);
+            JPanel panel = new JPanel(new BorderLayout());
+            panel.setBorder(BorderFactory.createLineBorder(Color.GRAY));
+            panel.add(new JScrollPane(list), BorderLayout.CENTER);
+            panel.add(statusLabel, BorderLayout.SOUTH);
+            window.setContentPane(panel);
+        }
+        window.pack();
+        Point location = new Point(caret.x, caret.y + caret.height);
+        SwingUtilities.convertPointToScreen(location, textPane);
+        window.setLocation(location);
+        window.setVisible(true);
+    }
+    
+    private void select(int index) {
+        if (items.isEmpty()) {
+            return;
+        }
+        index = Math.max(0, Math.min(index, items.size() - 1));
+        list.setSelectedIndex(index);
+        list.ensureIndexIsVisible(index);
+    }
+    
+    private void insertSelected() {
+        CompletionEngine.Item item = list.getSelectedValue();
+        String prefix = prefix();
+        int start = wordStart;
+        close();
+        if (item == null || prefix == null) {
+            return;
+        }
+        try {
+            document.remove(start, prefix.length());
+            document.insertString(start, item.name, null);
+        } catch (BadLocationException e) {
+            // The word changed under the list; leave it as it is
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.javaide;
+
+import javax.swing.Timer;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+/**
+ * Background work whose output is shown in the output panel.
+ *
+ * Output produced on any thread is collected in a pending buffer, and a
+ * Swing timer drains that buffer at a fixed frame rate, so the output panel
+ * gets one append per frame no matter how many lines are printed. When the
+ * buffer is full producers wait, which slows them down instead of growing
+ * the heap.
+ */
+public abstract class ConsoleTask {
+    // Output is handed to the EDT at most this often
+    private static final int FRAME_MS = 33;
+    
+    // Characters buffered before producers wait for the EDT to catch up
+    private static final int MAX_PENDING_CHARS = 1024 * 1024;
+    
+    /**
+     * Receives output and the end of the task on the EDT.
+     */
+    public interface Listener {
+        void output(String text);
+        
+        void finished(int exitCode, boolean stopped);
+    }
+    
+    private final Listener listener;
+    private final Timer frameTimer;
+    
+    // Guarded by this
+    private final StringBuilder pending = new StringBuilder();
+    private boolean done;
+    private int exitCode;
+    private int stalls;
+    
+    private volatile boolean stopped;
+    
+    protected ConsoleTask(Listener listener) {
+        this.listener = listener;
+        this.frameTimer = new Timer(FRAME_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                drain();
+            }
+        });
+    }
+    
+    /**
+     * Starts the task. Must be called on the EDT.
+     */
+    public void start() {
+        frameTimer.start();
+        run();
+    }
+    
+    /**
+     * Starts the actual work, which must not block the EDT.
+     */
+    protected abstract void run();
+    
+    /**
+     * Asks the task to stop. Output produced after this is dropped.
+     */
+    public abstract void stop();
+    
+    /**
+     * Marks the task as stopped, returns false if it already ended or was
+     * already stopped.
+     */
+    protected synchronized boolean markStopped() {
+        if (done || stopped) {
+            return false;
+        }
+        stopped = true;
+        // Let a producer waiting for buffer space notice the stop
+        notifyAll();
+        return true;
+    }
+    
+    protected boolean isStopped() {
+        return stopped;
+    }
+    
+    /**
+     * Number of times a producer had to wait because output arrived faster
+     * than the EDT displayed it.
+     */
+    public synchronized int getStallCount() {
+        return stalls;
+    }
+    
+    /**
+     * Ends the task, the listener is told on the next frame. Later calls are
+     * ignored.
+     */
+    protected synchronized void finish(int code) {
+        if (!done) {
+            exitCode = code;
+            done = true;
+            // Let a producer waiting for buffer space give up
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Queues output for the next frame, waiting while the buffer is full.
+     * Returns false if the task was stopped or ended in the meantime.
+     */
+    protected synchronized boolean offer(char[] chars, int offset, int count) throws InterruptedException {
+        if (pending.length() >= MAX_PENDING_CHARS) {
+            stalls++;
+        }
+        while (pending.length() >= MAX_PENDING_CHARS && !stopped && !done) {
+            wait();
+        }
+        if (stopped || done) {
+            return false;
+        }
+        pending.append(chars, offset, count);
+        return true;
+    }
+    
+    /**
+     * Queues a message without waiting, for errors and status lines.
+     */
+    protected synchronized void offer(String text) {
+        pending.append(text);
+    }
+    
+    /**
+     * Hands the buffered output to the listener, runs on every frame.
+     */
+    private void drain() {
+        String text;
+        boolean finished;
+        int code;
+        synchronized (this) {
+            text = pending.length() > 0 ? pending.toString() : null;
+            pending.setLength(0);
+            finished = done;
+            code = exitCode;
+            notifyAll();
+        }
+        if (text != null) {
+            listener.output(text);
+        }
+        if (finished) {
+            frameTimer.stop();
+            listener.finished(code, stopped);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Compiles the text of an editor in the background to find its errors and
+ * warnings as it is typed.
+ *
+ * The text is handed to javac as an in-memory source, with the project's
+ * build/classes, lib jars and source root to resolve the other classes,
+ * and javac stops after flow analysis, so no class files are written.
+ * Checks run one at a time on a low priority thread. A check cancelled
+ * before it starts is skipped, and one cancelled while javac runs is
+ * stopped at javac's next phase, so a burst of edits only costs the check
+ * for the last one.
+ *
+ * Counters of checks, cancellations, compile times and the time from an
+ * edit to its markers are kept for tuning the delay before a check, see
+ * {@link #statistics}.
+ */
+public class DiagnosticsEngine {
+    // Stop after flow analysis, as named by JDK 8 and by later JDKs;
+    // javac ignores the one it does not know
+    private static final List<String> OPTIONS = Arrays.asList("-proc:none", "-encoding", "UTF-8",
+        "-Xlint:unchecked,deprecation", "-XDshouldStopPolicyIfNoError=FLOW", "-XDshould-stop.ifNoError=FLOW");
+    
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Diagnostics");
+            thread.setDaemon(true);
+            // Checking must not slow down typing
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+    
+    /**
+     * An error or warning in the checked text.
+     */
+    public static final class Problem {
+        public final boolean error;
+        // Character offsets into the checked text
+        public final int start;
+        public final int end;
+        // 1-based
+        public final long line;
+        public final String message;
+        
+        Problem(boolean error, int start, int end, long line, String message) {
+            this.error = error;
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.message = message;
+        }
+    }
+    
+    /**
+     * Receives the problems of a check on the EDT, unless it was cancelled.
+     */
+    public interface Listener {
+        void checked(List<Problem> problems);
+    }
+    
+    /**
+     * A check in progress.
+     */
+    public static class Check {
+        private final JavaFileObject source;
+        private final Listener listener;
+        private volatile boolean cancelled;
+        
+        private Check(JavaFileObject source, Listener listener) {
+            this.source = source;
+            this.listener = listener;
+        }
+        
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+    
+    /**
+     * An editor's text as javac reads it, named after its file so the
+     * class name checks apply.
+     */
+    private static final class SourceText extends SimpleJavaFileObject {
+        private final TextSnapshot text;
+        
+        SourceText(String path, TextSnapshot text) {
+            super(new File(path).toURI(), Kind.SOURCE);
+            this.text = text;
+        }
+        
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return text;
+        }
+    }
+    
+    /**
+     * Throws away class files, should javac get as far as writing any.
+     */
+    private static final class DiscardingFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+        DiscardingFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+        
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) {
+            return new SimpleJavaFileObject(URI.create("discarded:///" + className.replace('.', '/')
+                + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new OutputStream() {
+                        @Override
+                        public void write(int b) {
+                        }
+                        
+                        @Override
+                        public void write(byte[] b, int off, int len) {
+                        }
+                    };
+                }
+            };
+        }
+    }
+    
+    private final JavaCompiler compiler;
+    // Only used on the worker
+    private final StandardJavaFileManager fileManager;
+    private final JavaFileManager discardingFileManager;
+    private List<File> configuredClassPath;
+    private List<File> configuredSourcePath;
+    
+    private volatile File projectDir;
+    
+    // Counters for tuning the delay; guarded by this
+    private long requested;
+    private long completed;
+    private long skipped;
+    private long stopped;
+    private long crashed;
+    private String lastCrash;
+    private long compileNanos;
+    private long maxCompileNanos;
+    private long latencies;
+    private long latencyNanos;
+    private long maxLatencyNanos;
+    
+    private DiagnosticsEngine(JavaCompiler compiler) {
+        this.compiler = compiler;
+        this.fileManager = compiler.getStandardFileManager(null, null, Charset.forName("UTF-8"));
+        this.discardingFileManager = new DiscardingFileManager(fileManager);
+    }
+    
+    /**
+     * Returns null when running on a JRE without the compiler.
+     */
+    public static DiagnosticsEngine create() {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        return compiler != null ? new DiagnosticsEngine(compiler) : null;
+    }
+    
+    /**
+     * Sets the project whose classes the checked text may use, null for
+     * none.
+     */
+    public void setProject(File projectDir) {
+        this.projectDir = projectDir;
+    }
+    
+    /**
+     * Starts checking the text of the file at path.
+     */
+    public Check check(String path, TextSnapshot text, Listener listener) {
+        final Check check = new Check(new SourceText(path, text), listener);
+        synchronized (this) {
+            requested++;
+        }
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                compile(check);
+            }
+        });
+        return check;
+    }
+    
+    private void compile(final Check check) {
+        if (check.cancelled) {
+            synchronized (this) {
+                skipped++;
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try {
+            configure(projectDir);
+            JavaCompiler.CompilationTask task = compiler.getTask(null, discardingFileManager, diagnostics, OPTIONS,
+                null, Collections.singletonList(check.source));
+            stopWhenCancelled(task, check);
+            task.call();
+        } catch (RuntimeException e) {
+            if (check.cancelled) {
+                synchronized (this) {
+                    stopped++;
+                }
+                return;
+            }
+            // A compiler crash leaves the markers as they are; it only
+            // shows in the statistics
+            synchronized (this) {
+                crashed++;
+                lastCrash = e.toString();
+            }
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            completed++;
+            compileNanos += nanos;
+            maxCompileNanos = Math.max(maxCompileNanos, nanos);
+        }
+        
+        final List<Problem> problems = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            // Problems in other files of the project are theirs to show
+            if (diagnostic.getSource() != check.source || diagnostic.getKind() == Diagnostic.Kind.NOTE
+                    || diagnostic.getKind() == Diagnostic.Kind.OTHER) {
+                continue;
+            }
+            long position = diagnostic.getStartPosition();
+            if (position == Diagnostic.NOPOS) {
+                position = diagnostic.getPosition();
+            }
+            long end = diagnostic.getEndPosition();
+            problems.add(new Problem(diagnostic.getKind() == Diagnostic.Kind.ERROR,
+                (int) position, (int) Math.max(position, end), diagnostic.getLineNumber(),
+                diagnostic.getMessage(null)));
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (!check.cancelled) {
+                    check.listener.checked(problems);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Points javac at the project's classes, only when they differ from
+     * the last check, so the file manager keeps its caches.
+     */
+    private void configure(File projectDir) {
+        List<File> classPath = new ArrayList<>();
+        List<File> sourcePath = new ArrayList<>();
+        if (projectDir != null) {
+            File outputDir = InProcessCompiler.outputDir(projectDir);
+            if (outputDir.isDirectory()) {
+                classPath.add(outputDir);
+            }
+            classPath.addAll(InProcessCompiler.classPath(projectDir));
+            File sourceRoot = InProcessCompiler.sourceRoot(projectDir);
+            if (sourceRoot.isDirectory()) {
+                sourcePath.add(sourceRoot);
+            }
+        }
+        try {
+            if (!classPath.equals(configuredClassPath)) {
+                fileManager.setLocation(StandardLocation.CLASS_PATH, classPath);
+                configuredClassPath = classPath;
+            }
+            if (!sourcePath.equals(configuredSourcePath)) {
+                fileManager.setLocation(StandardLocation.SOURCE_PATH, sourcePath);
+                configuredSourcePath = sourcePath;
+            }
+        } catch (IOException e) {
+            // Keeps the paths of the last check
+        }
+    }
+    
+    /**
+     * Makes javac give up once the check is cancelled, by failing from a
+     * task listener between its phases. Task listeners are not part of
+     * javax.tools, so the interface is looked up where the compiler came
+     * from; without it a cancelled check runs to the end and its result
+     * is dropped.
+     */
+    private static void stopWhenCancelled(JavaCompiler.CompilationTask task, final Check check) {
+        try {
+            ClassLoader loader = task.getClass().getClassLoader();
+            Class<?> javacTask = Class.forName("com.sun.source.util.JavacTask", false, loader);
+            Class<?> listenerType = Class.forName("com.sun.source.util.TaskListener", false, loader);
+            Object listener = Proxy.newProxyInstance(listenerType.getClassLoader(), new Class<?>[] {listenerType},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getDeclaringClass() == Object.class) {
+                            switch (method.getName()) {
+                                case "equals":
+                                    return proxy == args[0];
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                                default:
+                                    return "Diagnostics cancellation";
+                            }
+                        }
+                        if (check.cancelled) {
+                            throw new CancellationException();
+                        }
+                        return null;
+                    }
+                });
+            javacTask.getMethod("addTaskListener", listenerType).invoke(task, listener);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not javac, or one without task listeners
+        }
+    }
+    
+    /**
+     * Records the time from an edit to its markers being shown.
+     */
+    synchronized void recordLatency(long nanos) {
+        latencies++;
+        latencyNanos += nanos;
+        maxLatencyNanos = Math.max(maxLatencyNanos, nanos);
+    }
+    
+    /**
+     * Describes the checks so far, for tuning javaide.diagnosticsDelay.
+     */
+    public synchronized String statistics() {
+        return String.format("Diagnostics: %d checks, %d completed, %d skipped as superseded, "
+                + "%d stopped while compiling, %d failed%n"
+                + "  compile time avg %d ms, max %d ms; edit to markers avg %d ms, max %d ms; delay %d ms%n%s",
+            requested, completed, skipped, stopped, crashed,
+            completed > 0 ? compileNanos / completed / 1000000 : 0, maxCompileNanos / 1000000,
+            latencies > 0 ? latencyNanos / latencies / 1000000 : 0, maxLatencyNanos / 1000000,
+            DiagnosticsView.DELAY_MS, lastCrash != null ? "  last failure: " + lastCrash + "\n" : "");
+    }
+}
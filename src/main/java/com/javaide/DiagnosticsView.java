@@ -0,0 +1,232 @@
+package com.javaide;
+
+import javax.swing.JTextPane;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.LayeredHighlighter;
+import javax.swing.text.Position;
+import javax.swing.text.View;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The errors and warnings of an editor, underlined in the text and marked
+ * in the gutter.
+ *
+ * Once the text has not changed for {@link #DELAY_MS} it is checked by the
+ * {@link DiagnosticsEngine}; an edit cancels the check in progress. The
+ * marks stay on the text they were found on while it is edited, until
+ * the next check replaces them.
+ */
+class DiagnosticsView {
+    static final int DELAY_MS = Integer.getInteger("javaide.diagnosticsDelay", 500);
+    // Larger documents are not checked as they are typed
+    private static final int MAX_CHARS = Integer.getInteger("javaide.diagnosticsMaxChars", 1024 * 1024);
+    private static final Color ERROR_COLOR = new Color(220, 40, 40);
+    private static final Color WARNING_COLOR = new Color(230, 160, 0);
+    
+    private final EditorTab tab;
+    private final JTextPane textPane;
+    private final EditorDocument document;
+    private final Gutter gutter;
+    private final DiagnosticsEngine engine;
+    private final Timer timer;
+    private final Squiggle errorPainter = new Squiggle(ERROR_COLOR);
+    private final Squiggle warningPainter = new Squiggle(WARNING_COLOR);
+    // Highlights of the shown problems and their messages, in step
+    private final List<Highlighter.Highlight> highlights = new ArrayList<>();
+    private final List<String> messages = new ArrayList<>();
+    private DiagnosticsEngine.Check check;
+    // When the text last changed, for the latency counters
+    private long editedAt;
+    
+    DiagnosticsView(EditorTab tab, JTextPane textPane, EditorDocument document, Gutter gutter,
+                    DiagnosticsEngine engine) {
+        this.tab = tab;
+        this.textPane = textPane;
+        this.document = document;
+        this.gutter = gutter;
+        this.engine = engine;
+        
+        timer = new Timer(DELAY_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                start();
+            }
+        });
+        timer.setRepeats(false);
+        document.addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                schedule();
+            }
+            
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                schedule();
+            }
+            
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                // Highlighting only
+            }
+        });
+        gutter.setToolTips(new Gutter.ToolTips() {
+            @Override
+            public String lineToolTip(int line) {
+                return messagesAt(line);
+            }
+        });
+    }
+    
+    /**
+     * Checks the text once it has stopped changing for a moment.
+     */
+    void schedule() {
+        cancel();
+        editedAt = System.nanoTime();
+        timer.restart();
+    }
+    
+    void dispose() {
+        timer.stop();
+        cancel();
+    }
+    
+    private void cancel() {
+        if (check != null) {
+            check.cancel();
+            check = null;
+        }
+    }
+    
+    private void start() {
+        if (tab.filepath == null || tab.isLoading() || document.getLength() > MAX_CHARS) {
+            return;
+        }
+        check = engine.check(tab.filepath, document.snapshot(), new DiagnosticsEngine.Listener() {
+            @Override
+            public void checked(List<DiagnosticsEngine.Problem> problems) {
+                check = null;
+                show(problems);
+                engine.recordLatency(System.nanoTime() - editedAt);
+            }
+        });
+    }
+    
+    private void show(List<DiagnosticsEngine.Problem> problems) {
+        Highlighter highlighter = textPane.getHighlighter();
+        for (Highlighter.Highlight highlight : highlights) {
+            highlighter.removeHighlight(highlight);
+        }
+        highlights.clear();
+        messages.clear();
+        gutter.clearMarkers(Gutter.Marker.ERROR);
+        gutter.clearMarkers(Gutter.Marker.WARNING);
+        
+        int length = document.getLength();
+        Element root = document.getDefaultRootElement();
+        for (DiagnosticsEngine.Problem problem : problems) {
+            int start = Math.min(problem.start, length);
+            int end = Math.min(problem.end, length);
+            if (start < 0) {
+                // No position, only a line
+                if (problem.line < 1) {
+                    continue;
+                }
+                Element line = root.getElement((int) Math.min(problem.line - 1, root.getElementCount() - 1));
+                start = line.getStartOffset();
+                end = line.getEndOffset() - 1;
+            }
+            if (start == end) {
+                // Underline at least one character
+                if (end < length) {
+                    end++;
+                } else if (start > 0) {
+                    start--;
+                }
+            }
+            try {
+                highlights.add((Highlighter.Highlight) highlighter.addHighlight(start, end,
+                    problem.error ? errorPainter : warningPainter));
+            } catch (BadLocationException e) {
+                continue;
+            }
+            messages.add((problem.error ? "error: " : "warning: ") + problem.message);
+            gutter.addMarker(root.getElementIndex(start), problem.error ? Gutter.Marker.ERROR : Gutter.Marker.WARNING);
+        }
+    }
+    
+    /**
+     * Returns the messages of the problems starting on a line, or null.
+     */
+    private String messagesAt(int line) {
+        Element root = document.getDefaultRootElement();
+        StringBuilder text = null;
+        for (int i = 0; i < highlights.size(); i++) {
+            if (root.getElementIndex(highlights.get(i).getStartOffset()) != line) {
+                continue;
+            }
+            if (text == null) {
+                text = new StringBuilder("<html>");
+            } else {
+                text.append("<br>");
+            }
+            text.append(escape(messages.get(i)));
+        }
+        return text != null ? text.toString() : null;
+    }
+    
+    private static String escape(String message) {
+        return message.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\n", "<br>");
+    }
+    
+    /**
+     * Paints a wavy line under the text of a highlight.
+     */
+    private static final class Squiggle extends LayeredHighlighter.LayerPainter {
+        private final Color color;
+        
+        Squiggle(Color color) {
+            this.color = color;
+        }
+        
+        @Override
+        public void paint(Graphics g, int p0, int p1, Shape bounds, JTextComponent c) {
+            // Only painted in layers, by the views
+        }
+        
+        @Override
+        public Shape paintLayer(Graphics g, int offs0, int offs1, Shape bounds, JTextComponent c, View view) {
+            Rectangle r;
+            if (offs0 == view.getStartOffset() && offs1 == view.getEndOffset()) {
+                r = bounds.getBounds();
+            } else {
+                try {
+                    r = view.modelToView(offs0, Position.Bias.Forward, offs1, Position.Bias.Backward, bounds)
+                        .getBounds();
+                } catch (BadLocationException e) {
+                    return null;
+                }
+            }
+            g.setColor(color);
+            int y = r.y + r.height - 2;
+            for (int x = r.x; x < r.x + r.width; x += 4) {
+                g.drawLine(x, y, x + 2, y - 2);
+                g.drawLine(x + 2, y - 2, x + 4, y);
+            }
+            return r;
+        }
+    }
+}
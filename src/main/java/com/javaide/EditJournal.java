@@ -0,0 +1,707 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Segment;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Records the edits made in the editors, so unsaved text survives the IDE
+ * dying.
+ *
+ * Each session appends to its own file in ~/.javaide/journal. The file is
+ * memory mapped and every insert and remove becomes a small record written
+ * straight into the mapping, a few microseconds per keystroke. What is in
+ * the mapping outlives the IDE process; it is forced to disk within a
+ * second in case the whole machine goes down. A record's length is written
+ * last, so a record cut short reads as the end of the journal.
+ *
+ * When the file is full it is compacted: each open document is written
+ * out as its file's length and modification time plus, if it has unsaved
+ * changes, its text. The result replaces the old file in one step.
+ *
+ * A session that ends normally deletes its journal. Journals that no
+ * running IDE holds a lock on are left over from a crash, and
+ * {@link #recover} replays them onto the files they started from.
+ */
+public class EditJournal {
+    public static final int SIZE = Integer.getInteger("javaide.journalSize", 4 * 1024 * 1024);
+    private static final int FLUSH_MS = 1000;
+    private static final int MAGIC = 0x4a494a4e;
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int CHUNK_CHARS = 16 * 1024;
+    
+    // Record types; each record is its length, the type and the document id
+    private static final byte OPEN = 1;
+    private static final byte INSERT = 2;
+    private static final byte REMOVE = 3;
+    private static final byte SAVED = 4;
+    private static final byte TEXT = 5;
+    private static final byte CLOSE = 6;
+    private static final int RECORD = 4 + 1 + 4;
+    
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Edit journal");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Told on the EDT when the journal stops recording after an error, from
+     * then on unsaved changes are lost in a crash.
+     */
+    public interface Listener {
+        void stopped(IOException e);
+    }
+    
+    /**
+     * The text of an editor that had unsaved changes when its session died.
+     */
+    public static final class Recovered {
+        // Null for a file that was never saved
+        public final String path;
+        public final String text;
+        
+        Recovered(String path, String text) {
+            this.path = path;
+            this.text = text;
+        }
+    }
+    
+    /**
+     * What the journals left over from crashed sessions hold. The journals
+     * stay locked until {@link #discard} deletes them.
+     */
+    public static final class Recovery {
+        public final List<Recovered> documents = new ArrayList<>();
+        // Documents whose file changed on the disk since, so the edits no
+        // longer apply
+        public int lost;
+        private final List<File> files = new ArrayList<>();
+        private final List<FileChannel> channels = new ArrayList<>();
+        
+        /**
+         * Deletes the journals. One that cannot be deleted is offered again
+         * after the next start; the first error is thrown once all were
+         * tried.
+         */
+        public void discard() throws IOException {
+            IOException failure = null;
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    channels.get(i).close();
+                    Files.deleteIfExists(files.get(i).toPath());
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            files.clear();
+            channels.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+    
+    /**
+     * An open document as the journal last recorded it.
+     */
+    private static final class Entry {
+        final EditorDocument document;
+        String path;
+        long length;
+        long lastModified;
+        boolean unsaved;
+        
+        Entry(EditorDocument document) {
+            this.document = document;
+        }
+        
+        void stamp(String path) {
+            this.path = path;
+            if (path != null) {
+                File file = new File(path);
+                length = file.length();
+                lastModified = file.lastModified();
+            }
+        }
+    }
+    
+    private final File file;
+    private final Listener listener;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final Segment segment = new Segment();
+    private final char[] chunk = new char[CHUNK_CHARS];
+    private final Timer flushTimer;
+    private int nextId;
+    private int recordStart;
+    private boolean unflushed;
+    // Set once writing failed; editing goes on without the journal
+    private boolean broken;
+    
+    private EditJournal(File file, Listener listener) throws IOException {
+        this.file = file;
+        this.listener = listener;
+        this.channel = openLocked(file);
+        this.buffer = map(channel, SIZE);
+        this.flushTimer = new Timer(FLUSH_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                flushLater();
+            }
+        });
+        flushTimer.start();
+    }
+    
+    public static File directory() {
+        return new File(System.getProperty("user.home"), ".javaide/journal");
+    }
+    
+    /**
+     * Starts the journal of this session. Journals left over are to be
+     * recovered first: closing a channel drops this process's locks on its
+     * file, so checking our own journal would unlock it.
+     */
+    public static EditJournal start(Listener listener) throws IOException {
+        File dir = directory();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return new EditJournal(File.createTempFile("session-" + System.currentTimeMillis() + "-", ".journal", dir), listener);
+    }
+    
+    /**
+     * Starts recording a document and returns its id. A document opened
+     * with unsaved text has that text recorded in full.
+     */
+    public int open(String path, EditorDocument document, boolean unsaved) {
+        int id = ++nextId;
+        Entry entry = new Entry(document);
+        entry.stamp(path);
+        entry.unsaved = unsaved;
+        entries.put(id, entry);
+        if (begin(OPEN, id, stampSize(entry))) {
+            putStamp(entry);
+            end();
+        }
+        if (unsaved && begin(TEXT, id, 4 + 2L * document.getLength())) {
+            putText(document.snapshot());
+            end();
+        }
+        return id;
+    }
+    
+    /**
+     * Records text inserted into a document, called from its listener.
+     */
+    public void inserted(int id, int offset, int length) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return;
+        }
+        entry.unsaved = true;
+        if (begin(INSERT, id, 8 + 2L * length)) {
+            try {
+                entry.document.getText(offset, length, segment);
+            } catch (BadLocationException e) {
+                // Only a bug could get here; the journal is of no use after it
+                fail(new IOException(e));
+                return;
+            }
+            buffer.putInt(offset);
+            buffer.putInt(length);
+            putChars(buffer, segment.array, segment.offset, segment.count);
+            end();
+        }
+    }
+    
+    /**
+     * Records text removed from a document, called from its listener.
+     */
+    public void removed(int id, int offset, int length) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return;
+        }
+        entry.unsaved = true;
+        if (begin(REMOVE, id, 8)) {
+            buffer.putInt(offset);
+            buffer.putInt(length);
+            end();
+        }
+    }
+    
+    /**
+     * Records that a document was saved to a file as it is now, so the
+     * edits before no longer need replaying.
+     */
+    public void saved(int id, String path) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return;
+        }
+        entry.stamp(path);
+        entry.unsaved = false;
+        if (begin(SAVED, id, stampSize(entry))) {
+            putStamp(entry);
+            end();
+        }
+    }
+    
+    /**
+     * Records the whole text of a document, for when the edits so far can
+     * no longer be replayed onto its file.
+     */
+    public void rewrite(int id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return;
+        }
+        entry.unsaved = true;
+        if (begin(TEXT, id, 4 + 2L * entry.document.getLength())) {
+            putText(entry.document.snapshot());
+            end();
+        }
+    }
+    
+    /**
+     * Stops recording a document whose editor was closed.
+     */
+    public void closed(int id) {
+        if (entries.remove(id) != null && begin(CLOSE, id, 0)) {
+            end();
+        }
+    }
+    
+    /**
+     * Ends the session normally and deletes the journal. A journal that
+     * cannot be deleted is offered for recovery after the next start.
+     */
+    public void close() throws IOException {
+        flushTimer.stop();
+        broken = true;
+        entries.clear();
+        channel.close();
+        Files.deleteIfExists(file.toPath());
+    }
+    
+    /**
+     * Positions the buffer after the head of a new record with the given
+     * number of bytes after the id. Returns false if the record is not to
+     * be written, because the journal was compacted instead, which already
+     * records the state the record would have brought.
+     */
+    private boolean begin(byte type, int id, long size) {
+        if (broken) {
+            return false;
+        }
+        // Keeps room for the zero length that ends the journal
+        if (buffer.position() + RECORD + size + 4 > buffer.capacity()) {
+            compact();
+            return false;
+        }
+        recordStart = buffer.position();
+        putHead(buffer, type, id);
+        return true;
+    }
+    
+    private void end() {
+        putLength(buffer, recordStart);
+        unflushed = true;
+    }
+    
+    private static void putHead(ByteBuffer out, byte type, int id) {
+        out.position(out.position() + 4);
+        out.put(type);
+        out.putInt(id);
+    }
+    
+    /**
+     * Writes the length of the record that starts at start, which makes
+     * it part of the journal.
+     */
+    private static void putLength(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start - 4);
+    }
+    
+    private static int stampSize(Entry entry) {
+        return 4 + (entry.path != null ? 2 * entry.path.length() : 0) + 8 + 8;
+    }
+    
+    private void putStamp(Entry entry) {
+        putStamp(buffer, entry);
+    }
+    
+    private static void putStamp(ByteBuffer out, Entry entry) {
+        if (entry.path == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(entry.path.length());
+            for (int i = 0; i < entry.path.length(); i++) {
+                out.putChar(entry.path.charAt(i));
+            }
+        }
+        out.putLong(entry.length);
+        out.putLong(entry.lastModified);
+    }
+    
+    private void putText(TextSnapshot text) {
+        putText(buffer, text);
+    }
+    
+    private void putText(ByteBuffer out, TextSnapshot text) {
+        int length = text.length();
+        out.putInt(length);
+        for (int start = 0; start < length; start += CHUNK_CHARS) {
+            int end = Math.min(length, start + CHUNK_CHARS);
+            text.getChars(start, end, chunk, 0);
+            putChars(out, chunk, 0, end - start);
+        }
+    }
+    
+    private static void putChars(ByteBuffer out, char[] chars, int offset, int count) {
+        if (count < 64) {
+            // A keystroke; a char view would cost more than it saves
+            for (int i = 0; i < count; i++) {
+                out.putChar(chars[offset + i]);
+            }
+        } else {
+            out.asCharBuffer().put(chars, offset, count);
+            out.position(out.position() + 2 * count);
+        }
+    }
+    
+    /**
+     * Replaces the journal with one that only records the open documents
+     * as they are now, in a file large enough to take at least as much
+     * again before the next compaction.
+     */
+    private void compact() {
+        long needed = HEADER + 4;
+        for (Entry entry : entries.values()) {
+            needed += RECORD + stampSize(entry);
+            if (entry.unsaved) {
+                needed += RECORD + 4 + 2L * entry.document.getLength();
+            }
+        }
+        File temp = new File(file.getPath() + ".compact");
+        FileChannel compacted = null;
+        try {
+            if (needed > Integer.MAX_VALUE / 2) {
+                throw new IOException("Unsaved text too large to journal");
+            }
+            compacted = openLocked(temp);
+            MappedByteBuffer out = map(compacted, (int) Math.max(SIZE, 2 * needed));
+            for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                int start = out.position();
+                putHead(out, OPEN, e.getKey());
+                putStamp(out, entry);
+                putLength(out, start);
+                if (entry.unsaved) {
+                    start = out.position();
+                    putHead(out, TEXT, e.getKey());
+                    putText(out, entry.document.snapshot());
+                    putLength(out, start);
+                }
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            channel.close();
+            channel = compacted;
+            buffer = out;
+            unflushed = true;
+        } catch (IOException e) {
+            if (compacted != null) {
+                try {
+                    compacted.close();
+                    Files.deleteIfExists(temp.toPath());
+                } catch (IOException ignored) {
+                    // Failing already
+                }
+            }
+            fail(e);
+        }
+    }
+    
+    private void fail(IOException e) {
+        if (!broken) {
+            broken = true;
+            listener.stopped(e);
+        }
+    }
+    
+    /**
+     * Forces what was written since the last time to the disk, off the
+     * EDT.
+     */
+    private void flushLater() {
+        if (!unflushed || broken) {
+            return;
+        }
+        unflushed = false;
+        final MappedByteBuffer written = buffer;
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    written.force();
+                } catch (final RuntimeException e) {
+                    // An I/O error, wrapped by later JDKs
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            fail(new IOException(e.getMessage(), e));
+                        }
+                    });
+                }
+            }
+        });
+    }
+    
+    private static FileChannel openLocked(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        if (channel.tryLock() == null) {
+            channel.close();
+            throw new IOException(file + " is in use");
+        }
+        return channel;
+    }
+    
+    private static MappedByteBuffer map(FileChannel channel, int size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        return buffer;
+    }
+    
+    /**
+     * Replays the journals of sessions that ended without closing them.
+     */
+    public static Recovery recover() {
+        Recovery recovery = new Recovery();
+        File[] files = directory().listFiles();
+        if (files == null) {
+            return recovery;
+        }
+        // Oldest session first, so a newer one's text wins where both have a file
+        Arrays.sort(files);
+        for (File file : files) {
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    // A running session's journal
+                    channel.close();
+                    continue;
+                }
+                if (file.getName().endsWith(".journal")) {
+                    replay(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), recovery);
+                }
+                // Compactions cut short are dropped with the journals
+                recovery.files.add(file);
+                recovery.channels.add(channel);
+            } catch (IOException | RuntimeException e) {
+                // Unreadable or damaged beyond the checks of replay; left as is
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Nothing more to do with it
+                    }
+                }
+            }
+        }
+        return recovery;
+    }
+    
+    /**
+     * A document while its journal is replayed.
+     */
+    private static final class Replay {
+        String path;
+        long length;
+        long lastModified;
+        // Null while the text is that of the file
+        PieceTableContent content;
+        boolean unsaved;
+        // Set when the file changed since, until the text is known again
+        boolean lost;
+    }
+    
+    private static void replay(ByteBuffer in, Recovery recovery) {
+        if (in.remaining() < HEADER || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            return;
+        }
+        Map<Integer, Replay> documents = new LinkedHashMap<>();
+        int end = in.limit();
+        while (in.remaining() >= 4) {
+            int length = in.getInt();
+            if (length < 5 || length > in.remaining()) {
+                // The end, or a record the crash cut short
+                break;
+            }
+            int next = in.position() + length;
+            // A count inside the record that runs past it ends the journal too
+            in.limit(next);
+            try {
+                replayRecord(in, documents);
+            } catch (BufferUnderflowException e) {
+                break;
+            }
+            in.limit(end);
+            in.position(next);
+        }
+        for (Replay document : documents.values()) {
+            if (!document.unsaved) {
+                continue;
+            }
+            if (document.lost) {
+                recovery.lost++;
+                continue;
+            }
+            try {
+                PieceTableContent content = document.content;
+                recovery.documents.add(new Recovered(document.path, content.getString(0, content.length() - 1)));
+            } catch (BadLocationException e) {
+                recovery.lost++;
+            }
+        }
+    }
+    
+    /**
+     * Applies one record; reading past its end underflows.
+     */
+    private static void replayRecord(ByteBuffer in, Map<Integer, Replay> documents) {
+        byte type = in.get();
+        Integer id = in.getInt();
+        Replay document = documents.get(id);
+        if (type == OPEN) {
+            document = new Replay();
+            documents.put(id, document);
+        } else if (document == null) {
+            return;
+        }
+        switch (type) {
+            case OPEN:
+            case SAVED:
+                document.path = getString(in);
+                document.length = in.getLong();
+                document.lastModified = in.getLong();
+                document.content = null;
+                document.unsaved = false;
+                document.lost = false;
+                break;
+            case TEXT:
+                document.content = new PieceTableContent(getChars(in, in.getInt()) + "\n");
+                document.unsaved = true;
+                document.lost = false;
+                break;
+            case INSERT:
+            case REMOVE:
+                document.unsaved = true;
+                if (document.content == null && !document.lost) {
+                    String base = readBase(document);
+                    if (base == null) {
+                        document.lost = true;
+                    } else {
+                        document.content = new PieceTableContent(base + "\n");
+                    }
+                }
+                if (document.lost) {
+                    break;
+                }
+                int offset = in.getInt();
+                int count = in.getInt();
+                try {
+                    if (type == INSERT) {
+                        document.content.insertString(offset, getChars(in, count));
+                    } else {
+                        document.content.remove(offset, count);
+                    }
+                } catch (BadLocationException e) {
+                    document.content = null;
+                    document.lost = true;
+                }
+                break;
+            case CLOSE:
+                documents.remove(id);
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Returns the text a document started from: its file, if that is still
+     * as the journal last saw it, or nothing for a file never saved.
+     */
+    private static String readBase(Replay document) {
+        if (document.path == null) {
+            return "";
+        }
+        File file = new File(document.path);
+        if (file.length() != document.length || file.lastModified() != document.lastModified) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        return length < 0 ? null : getChars(in, length);
+    }
+    
+    private static String getChars(ByteBuffer in, int count) {
+        if (count < 0 || count > in.remaining() / 2) {
+            throw new BufferUnderflowException();
+        }
+        char[] chars = new char[count];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + 2 * count);
+        return new String(chars);
+    }
+}
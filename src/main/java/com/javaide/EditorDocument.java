@@ -0,0 +1,92 @@
+package com.javaide;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyleContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Styled document used by the editor, storing its text in a piece table
+ * so large files stay compact and snapshots of the text are cheap.
+ */
+public class EditorDocument extends DefaultStyledDocument {
+    private final PieceTableContent content;
+    
+    public EditorDocument() {
+        this(new PieceTableContent());
+    }
+    
+    /**
+     * Creates a document over the text of a file. The text is referenced,
+     * not copied, and its lines are laid out in one pass instead of being
+     * inserted.
+     */
+    public EditorDocument(CharSequence text) {
+        this(PieceTableContent.over(text));
+    }
+    
+    private EditorDocument(PieceTableContent content) {
+        super(content, new StyleContext());
+        this.content = content;
+    }
+    
+    /**
+     * Builds one paragraph per line of the initial content, with the
+     * attributes inserting the text would have given them.
+     */
+    @Override
+    protected AbstractElement createDefaultRoot() {
+        // Called by the super constructor, before the fields are set
+        PieceTableContent initial = (PieceTableContent) getContent();
+        TextSnapshot text = initial.snapshot(initial.length());
+        AttributeContext context = getAttributeContext();
+        AttributeSet paragraphAttributes = context.addAttribute(context.getEmptySet(),
+            StyleConstants.ResolveAttribute, ((StyleContext) context).getStyle(StyleContext.DEFAULT_STYLE));
+        
+        writeLock();
+        BranchElement section = new SectionElement();
+        List<Element> paragraphs = new ArrayList<>();
+        char[] chunk = new char[Math.min(text.length(), 64 * 1024)];
+        int lineStart = 0;
+        for (int start = 0; start < text.length(); start += chunk.length) {
+            int end = Math.min(start + chunk.length, text.length());
+            text.getChars(start, end, chunk, 0);
+            for (int i = start; i < end; i++) {
+                if (chunk[i - start] == '\n') {
+                    BranchElement paragraph = new BranchElement(section, paragraphAttributes);
+                    paragraph.replace(0, 0, new Element[] {new LeafElement(paragraph, null, lineStart, i + 1)});
+                    paragraphs.add(paragraph);
+                    lineStart = i + 1;
+                }
+            }
+        }
+        section.replace(0, 0, paragraphs.toArray(new Element[0]));
+        writeUnlock();
+        return section;
+    }
+    
+    /**
+     * Returns an immutable view of the current text, which can be read from
+     * any thread while the document keeps changing.
+     */
+    public TextSnapshot snapshot() {
+        readLock();
+        try {
+            return content.snapshot(getLength());
+        } finally {
+            readUnlock();
+        }
+    }
+    
+    /**
+     * Returns the text the last removal took out, once. It is the copy the
+     * content made for its own undo edit, so removals cost no second copy
+     * whether or not anyone asks for it.
+     */
+    String takeRemovedText() {
+        return content.takeRemoved();
+    }
+}
@@ -2,24 +2,15 @@ package com.javaide;
 
 import javax.swing.JScrollPane;
 import javax.swing.JTextPane;
-import javax.swing.JOptionPane;
-import javax.swing.JComponent;
-import javax.swing.undo.UndoManager;
+import javax.swing.SwingUtilities;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.text.BadLocationException;
-import javax.swing.text.StyleContext;
-import javax.swing.text.AttributeSet;
-import javax.swing.text.StyleConstants;
-import javax.swing.text.StyledDocument;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.Element;
 import java.awt.Font;
-import java.awt.Color;
-import java.awt.Dimension;
-import java.awt.Graphics;
-import java.awt.Rectangle;
-import java.awt.FontMetrics;
+import java.awt.Point;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 /**
@@ -30,23 +21,93 @@ public class EditorTab {
     public boolean isModified;
     public JScrollPane scrollPane;
     private JTextPane textPane;
-    private StyledDocument document;
-    private UndoManager undoManager;
+    private EditorDocument document;
+    private EditorUndoManager undoManager;
+    private SyntaxHighlighter highlighter;
+    private Gutter gutter;
+    private FileLoader loader;
+    private CompletionPopup completion;
+    private DiagnosticsView diagnostics;
+    private EditJournal journal;
+    // Id of the document in the journal, 0 while not recorded
+    private int journalId;
+    // Counts edits, so a save can tell whether the text changed meanwhile
+    private int editCount;
+    // Position to show once loading is done, line 0 for none
+    private int pendingLine;
+    private int pendingColumn;
+    // View to restore once loading is done, null for none
+    private Point pendingViewPosition;
+    private int pendingCaret;
     
     public EditorTab(String filepath, String contents) {
+        this(filepath, new EditorDocument(contents));
+        
+        // Apply syntax highlighting if filepath is set
+        if (filepath != null) {
+            applySyntaxHighlighting();
+        }
+    }
+    
+    /**
+     * Creates a tab that streams a large file into the editor. The start of
+     * the file is shown right away, editing is enabled once it is loaded.
+     */
+    public EditorTab(File file, final FileLoader.Listener listener) {
+        this(file.getAbsolutePath(), new EditorDocument());
+        
+        // Keep the view at the top and the load out of the undo history
+        textPane.setEditable(false);
+        final DefaultCaret caret = (DefaultCaret) textPane.getCaret();
+        caret.setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        document.removeUndoableEditListener(undoManager);
+        
+        loader = new FileLoader(file, document, new FileLoader.Listener() {
+            @Override
+            public void loaded(long bytes, long nanos, long peakHeap) {
+                loader = null;
+                caret.setUpdatePolicy(DefaultCaret.UPDATE_WHEN_ON_EDT);
+                document.addUndoableEditListener(undoManager);
+                textPane.setEditable(true);
+                isModified = false;
+                if (journal != null) {
+                    journalId = journal.open(filepath, document, false);
+                }
+                applySyntaxHighlighting();
+                if (diagnostics != null) {
+                    diagnostics.schedule();
+                }
+                if (pendingLine > 0) {
+                    goToLine(pendingLine, pendingColumn);
+                } else if (pendingViewPosition != null) {
+                    restoreView(pendingCaret, pendingViewPosition);
+                }
+                listener.loaded(bytes, nanos, peakHeap);
+            }
+            
+            @Override
+            public void failed(IOException e) {
+                loader = null;
+                listener.failed(e);
+            }
+        });
+        loader.start();
+    }
+    
+    private EditorTab(String filepath, EditorDocument document) {
         this.filepath = filepath;
         this.isModified = false;
         
-        // Create text pane with syntax highlighting
-        textPane = new JTextPane();
-        document = textPane.getStyledDocument();
+        // Create text pane backed by a piece table document
+        this.document = document;
+        textPane = new JTextPane(document);
         
         // Configure editor
         textPane.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 14));
         //textPane.setTabSize(4);
         
         // Set up undo manager
-        undoManager = new UndoManager();
+        undoManager = new EditorUndoManager(document);
         document.addUndoableEditListener(undoManager);
         
         // Add document listener for modification tracking
@@ -54,82 +115,222 @@ public class EditorTab {
             @Override
             public void insertUpdate(DocumentEvent e) {
                 isModified = true;
+                editCount++;
+                if (journalId != 0) {
+                    journal.inserted(journalId, e.getOffset(), e.getLength());
+                }
             }
             
             @Override
             public void removeUpdate(DocumentEvent e) {
                 isModified = true;
+                editCount++;
+                if (journalId != 0) {
+                    journal.removed(journalId, e.getOffset(), e.getLength());
+                }
             }
             
             @Override
             public void changedUpdate(DocumentEvent e) {
-                isModified = true;
+                // Attribute changes from highlighting do not modify the file
             }
         });
         
-        // Set text
-        setText(contents);
-        
-        // Apply syntax highlighting if filepath is set
-        if (filepath != null) {
-            applySyntaxHighlighting();
-        }
-        
-        // Create line number component
-        LineNumberComponent lineNumbers = new LineNumberComponent(textPane);
+        // Line numbers and markers
+        gutter = new Gutter(textPane);
         
         // Create scrolled pane
         scrollPane = new JScrollPane(textPane);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
         scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
-        scrollPane.setRowHeaderView(lineNumbers);
+        scrollPane.setRowHeaderView(gutter);
     }
     
-    private void setText(String text) {
-        try {
-            document.remove(0, document.getLength());
-            document.insertString(0, text, null);
-            isModified = false;
-        } catch (BadLocationException e) {
-            e.printStackTrace();
+    public String getText() {
+        return document.snapshot().toString();
+    }
+    
+    public Gutter getGutter() {
+        return gutter;
+    }
+    
+    public boolean isLoading() {
+        return loader != null;
+    }
+    
+    /**
+     * Moves the caret to a 1-based line and 0-based column and scrolls it
+     * into view. While the file is loading this happens once it is loaded.
+     */
+    public void goToLine(int line, int column) {
+        if (isLoading()) {
+            pendingLine = line;
+            pendingColumn = column;
+            return;
         }
+        pendingLine = 0;
+        Element root = document.getDefaultRootElement();
+        Element element = root.getElement(Math.max(0, Math.min(line - 1, root.getElementCount() - 1)));
+        int offset = Math.min(element.getStartOffset() + Math.max(0, column), element.getEndOffset() - 1);
+        textPane.setCaretPosition(offset);
+        textPane.requestFocusInWindow();
     }
     
-    public String getText() {
-        try {
-            return document.getText(0, document.getLength());
-        } catch (BadLocationException e) {
-            return "";
+    public int getCaretPosition() {
+        return textPane.getCaretPosition();
+    }
+    
+    /**
+     * Returns the point of the text shown at the top left of the view.
+     */
+    public Point getViewPosition() {
+        return scrollPane.getViewport().getViewPosition();
+    }
+    
+    /**
+     * Puts the caret and the view back where they were, once the file is
+     * loaded. A null view position leaves the view to follow the caret.
+     */
+    public void restoreView(int caret, final Point viewPosition) {
+        if (isLoading()) {
+            pendingCaret = caret;
+            pendingViewPosition = viewPosition;
+            return;
+        }
+        pendingViewPosition = null;
+        textPane.setCaretPosition(Math.min(caret, document.getLength()));
+        if (viewPosition != null) {
+            // Only valid once the text pane has been laid out
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    scrollPane.getViewport().setViewPosition(viewPosition);
+                }
+            });
         }
     }
     
-    public boolean save() {
-        if (filepath == null) {
-            return false;
+    /**
+     * Returns the Java identifier the caret is in or next to, or null.
+     */
+    public String getIdentifierAtCaret() {
+        TextSnapshot text = document.snapshot();
+        int caret = textPane.getCaretPosition();
+        int start = caret;
+        while (start > 0 && Character.isJavaIdentifierPart(text.charAt(start - 1))) {
+            start--;
         }
-        
-        FileOutputStream fos = null;
-        try {
-            File file = new File(filepath);
-            fos = new FileOutputStream(file);
-            fos.write(getText().getBytes("UTF-8"));
-            isModified = false;
-            return true;
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(null, 
-                "Error saving file: " + e.getMessage(), 
-                "Error", 
-                JOptionPane.ERROR_MESSAGE);
+        int end = caret;
+        while (end < text.length() && Character.isJavaIdentifierPart(text.charAt(end))) {
+            end++;
+        }
+        if (start == end || !Character.isJavaIdentifierStart(text.charAt(start))) {
+            return null;
+        }
+        return text.subSequence(start, end).toString();
+    }
+    
+    /**
+     * Turns on code completion, for Java files only.
+     */
+    public void setCompletionEngine(CompletionEngine engine) {
+        if (completion == null && filepath != null && SymbolIndex.isJavaSource(filepath)) {
+            completion = new CompletionPopup(textPane, document, engine);
+        }
+    }
+    
+    /**
+     * Turns on checking as you type, for Java files only. The first check
+     * runs once the file is loaded.
+     */
+    public void setDiagnosticsEngine(DiagnosticsEngine engine) {
+        if (diagnostics == null && filepath != null && SymbolIndex.isJavaSource(filepath)) {
+            diagnostics = new DiagnosticsView(this, textPane, document, gutter, engine);
+            if (!isLoading()) {
+                diagnostics.schedule();
+            }
+        }
+    }
+    
+    /**
+     * Records every edit in the journal from now on, or once the file is
+     * loaded. Text that is already modified is recorded in full.
+     */
+    public void setJournal(EditJournal journal) {
+        if (journal == null || this.journal != null) {
+            return;
+        }
+        this.journal = journal;
+        if (!isLoading()) {
+            journalId = journal.open(filepath, document, isModified);
+        }
+    }
+    
+    /**
+     * Lists completions for the word before the caret.
+     */
+    public void showCompletions() {
+        if (completion != null && textPane.isEditable()) {
+            completion.open();
+        }
+    }
+    
+    /**
+     * Stops background work for this tab when it is closed.
+     */
+    public void close() {
+        if (completion != null) {
+            completion.dispose();
+        }
+        if (diagnostics != null) {
+            diagnostics.dispose();
+        }
+        if (loader != null) {
+            loader.cancel();
+            loader = null;
+        }
+        if (highlighter != null) {
+            highlighter.uninstall();
+        }
+        if (journalId != 0) {
+            journal.closed(journalId);
+            journalId = 0;
+        }
+    }
+    
+    /**
+     * Saves the text as it is now in the background. The tab counts as
+     * unmodified once the save is done, unless it was edited meanwhile.
+     * Returns false if there is no file to save to or it is still loading.
+     */
+    public boolean save(final SavePipeline.Listener listener) {
+        if (filepath == null || isLoading()) {
             return false;
-        } finally {
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    // Ignore
+        }
+        final int savedEditCount = editCount;
+        SavePipeline.saveLater(new File(filepath), document.snapshot(), new SavePipeline.Listener() {
+            @Override
+            public void saved(File file, long bytes, long nanos) {
+                if (editCount == savedEditCount) {
+                    isModified = false;
+                }
+                if (journalId != 0) {
+                    // Edits made while saving no longer apply to the file
+                    if (editCount == savedEditCount) {
+                        journal.saved(journalId, file.getPath());
+                    } else {
+                        journal.rewrite(journalId);
+                    }
                 }
+                listener.saved(file, bytes, nanos);
             }
-        }
+            
+            @Override
+            public void failed(File file, IOException e) {
+                listener.failed(file, e);
+            }
+        });
+        return true;
     }
     
     public void undo() {
@@ -163,214 +364,10 @@ public class EditorTab {
         
         String ext = filepath.substring(filepath.lastIndexOf('.') + 1).toLowerCase();
         
-        // Simple Java syntax highlighting
+        // Incremental Java syntax highlighting
         if (ext.equals("java")) {
-            highlightJava();
-        }
-    }
-    
-    private void highlightJava() {
-        try {
-            String text = getText();
-            StyleContext styleContext = StyleContext.getDefaultStyleContext();
-            AttributeSet defaultStyle = styleContext.addAttribute(
-                styleContext.getEmptySet(), StyleConstants.Foreground, Color.BLACK);
-            
-            // Define styles
-            AttributeSet keywordStyle = styleContext.addAttribute(defaultStyle,
-                StyleConstants.Foreground, new Color(0, 0, 255)); // Blue
-            AttributeSet stringStyle = styleContext.addAttribute(defaultStyle,
-                StyleConstants.Foreground, new Color(0, 128, 0)); // Green
-            AttributeSet commentStyle = styleContext.addAttribute(defaultStyle,
-                StyleConstants.Foreground, new Color(128, 128, 128)); // Gray
-            
-            // Java keywords
-            String[] keywords = {
-                "abstract", "assert", "boolean", "break", "byte", "case", "catch",
-                "char", "class", "const", "continue", "default", "do", "double",
-                "else", "enum", "extends", "final", "finally", "float", "for",
-                "goto", "if", "implements", "import", "instanceof", "int", "interface",
-                "long", "native", "new", "package", "private", "protected", "public",
-                "return", "short", "static", "strictfp", "super", "switch",
-                "synchronized", "this", "throw", "throws", "transient", "try",
-                "void", "volatile", "while", "record", "sealed", "permits", "non-sealed"
-            };
-            
-            // Reset all text to default style
-            document.setCharacterAttributes(0, text.length(), defaultStyle, true);
-            
-            // Highlight keywords
-            for (String keyword : keywords) {
-                int pos = 0;
-                while ((pos = text.indexOf(keyword, pos)) >= 0) {
-                    // Check if it's a whole word
-                    if ((pos == 0 || !Character.isJavaIdentifierPart(text.charAt(pos - 1))) &&
-                        (pos + keyword.length() >= text.length() || 
-                         !Character.isJavaIdentifierPart(text.charAt(pos + keyword.length())))) {
-                        document.setCharacterAttributes(pos, keyword.length(), keywordStyle, false);
-                    }
-                    pos += keyword.length();
-                }
-            }
-            
-            // Highlight strings
-            highlightStrings(text, stringStyle);
-            
-            // Highlight comments
-            highlightComments(text, commentStyle);
-            
-        } catch (BadLocationException e) {
-            e.printStackTrace();
-        }
-    }
-    
-    private void highlightStrings(String text, AttributeSet style) throws BadLocationException {
-        boolean inString = false;
-        boolean inChar = false;
-        char stringChar = '"';
-        
-        for (int i = 0; i < text.length(); i++) {
-            char c = text.charAt(i);
-            
-            if (!inString && !inChar && (c == '"' || c == '\'')) {
-                if (c == '"') {
-                    inString = true;
-                    stringChar = '"';
-                } else {
-                    inChar = true;
-                    stringChar = '\'';
-                }
-                int start = i;
-                i++;
-                while (i < text.length()) {
-                    if (text.charAt(i) == stringChar && text.charAt(i - 1) != '\\') {
-                        document.setCharacterAttributes(start, i - start + 1, style, false);
-                        if (inString) inString = false;
-                        if (inChar) inChar = false;
-                        break;
-                    }
-                    i++;
-                }
-            }
-        }
-    }
-    
-    private void highlightComments(String text, AttributeSet style) throws BadLocationException {
-        // Single-line comments
-        int pos = 0;
-        while ((pos = text.indexOf("//", pos)) >= 0) {
-            int end = text.indexOf("\n", pos);
-            if (end < 0) end = text.length();
-            document.setCharacterAttributes(pos, end - pos, style, false);
-            pos = end;
-        }
-        
-        // Multi-line comments
-        pos = 0;
-        while ((pos = text.indexOf("/*", pos)) >= 0) {
-            int end = text.indexOf("*/", pos);
-            if (end < 0) end = text.length();
-            else end += 2;
-            document.setCharacterAttributes(pos, end - pos, style, false);
-            pos = end;
-        }
-    }
-    
-    /**
-     * Line number component that displays line numbers for the text editor
-     */
-    private static class LineNumberComponent extends JComponent {
-        private JTextPane textPane;
-        private Font font;
-        
-        public LineNumberComponent(JTextPane textPane) {
-            this.textPane = textPane;
-            this.font = textPane.getFont();
-            setFont(font);
-            setBackground(new Color(240, 240, 240));
-            setForeground(new Color(100, 100, 100));
-            
-            // Update line numbers when document changes
-            textPane.getDocument().addDocumentListener(new DocumentListener() {
-                @Override
-                public void insertUpdate(DocumentEvent e) {
-                    repaint();
-                    revalidate();
-                }
-                
-                @Override
-                public void removeUpdate(DocumentEvent e) {
-                    repaint();
-                    revalidate();
-                }
-                
-                @Override
-                public void changedUpdate(DocumentEvent e) {
-                    repaint();
-                    revalidate();
-                }
-            });
-            
-            // Update line numbers when scrolling
-            textPane.addCaretListener(e -> repaint());
-        }
-        
-        @Override
-        public Dimension getPreferredSize() {
-            try {
-                StyledDocument doc = (StyledDocument) textPane.getDocument();
-                int lineCount = doc.getDefaultRootElement().getElementCount();
-                FontMetrics fm = getFontMetrics(font);
-                int width = fm.stringWidth(String.valueOf(lineCount)) + 10;
-                return new Dimension(Math.max(40, width), textPane.getHeight());
-            } catch (Exception e) {
-                return new Dimension(40, textPane.getHeight());
-            }
-        }
-        
-        @Override
-        protected void paintComponent(Graphics g) {
-            super.paintComponent(g);
-            
-            Rectangle clip = g.getClipBounds();
-            if (clip == null) {
-                clip = new Rectangle(0, 0, getWidth(), getHeight());
-            }
-            
-            FontMetrics fm = g.getFontMetrics();
-            int fontHeight = fm.getHeight();
-            int fontAscent = fm.getAscent();
-            
-            StyledDocument doc = (StyledDocument) textPane.getDocument();
-            javax.swing.text.Element root = doc.getDefaultRootElement();
-            int totalLines = root.getElementCount();
-            
-            // Calculate visible line range based on scroll position
-            int startY = clip.y;
-            int endY = clip.y + clip.height;
-            
-            int startLine = Math.max(0, startY / fontHeight);
-            int endLine = Math.min(totalLines - 1, (endY / fontHeight) + 1);
-            
-            // Draw line numbers
-            for (int line = startLine; line <= endLine && line < totalLines; line++) {
-                try {
-                    // Calculate Y position based on line number
-                    int y = (line * fontHeight) + fontAscent;
-                    
-                    // Only draw if within visible area
-                    if (y >= clip.y - fontHeight && y <= clip.y + clip.height) {
-                        String lineNumber = String.valueOf(line + 1);
-                        int x = getWidth() - fm.stringWidth(lineNumber) - 5;
-                        
-                        g.setColor(getForeground());
-                        g.drawString(lineNumber, x, y);
-                    }
-                } catch (Exception e) {
-                    // Ignore
-                }
-            }
+            highlighter = new SyntaxHighlighter(document);
+            highlighter.install(textPane, scrollPane.getViewport());
         }
     }
 }
-
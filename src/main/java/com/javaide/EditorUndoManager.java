@@ -0,0 +1,211 @@
+package com.javaide;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * Undo history of an editor that holds changes to the text and nothing
+ * else.
+ *
+ * Styles set by the highlighter are not recorded, so undo never steps
+ * through colors and re-highlighting costs the history no memory. Since
+ * the document's own edits would replay element changes that styling has
+ * since rearranged, each edit is kept as plain text and undone through
+ * the document like a new change.
+ *
+ * Typing is merged into one edit per word, and so are runs of Backspace
+ * or Delete, as long as each keystroke follows the last within
+ * {@link #COALESCE_MS}. The history is bounded by memory rather than by a
+ * number of edits: once it holds more than {@link #BUDGET_BYTES} of text
+ * the oldest edits are dropped.
+ */
+public class EditorUndoManager extends UndoManager {
+    public static final int BUDGET_BYTES = Integer.getInteger("javaide.undoBytes", 2 * 1024 * 1024);
+    public static final int COALESCE_MS = Integer.getInteger("javaide.undoCoalesceMs", 1000);
+    // Rough cost of an edit besides its text
+    private static final int EDIT_BYTES = 64;
+    
+    private final EditorDocument document;
+    private long bytes;
+    // Set while an edit is undone or redone, whose changes are not new edits
+    private boolean applying;
+    
+    public EditorUndoManager(EditorDocument document) {
+        this.document = document;
+        setLimit(-1);
+    }
+    
+    @Override
+    public void undoableEditHappened(UndoableEditEvent e) {
+        if (applying || !(e.getEdit() instanceof AbstractDocument.DefaultDocumentEvent)) {
+            return;
+        }
+        DocumentEvent event = (AbstractDocument.DefaultDocumentEvent) e.getEdit();
+        if (event.getType() == DocumentEvent.EventType.INSERT) {
+            try {
+                addEdit(new TextEdit(event.getOffset(), "",
+                    document.getText(event.getOffset(), event.getLength())));
+            } catch (BadLocationException ex) {
+                // Changed again already; cannot happen on the EDT
+                discardAllEdits();
+            }
+        } else if (event.getType() == DocumentEvent.EventType.REMOVE) {
+            addEdit(new TextEdit(event.getOffset(), document.takeRemovedText(), ""));
+        }
+        // Attribute changes are styling only
+    }
+    
+    @Override
+    public synchronized boolean addEdit(UndoableEdit anEdit) {
+        TextEdit last = (TextEdit) editToBeUndone();
+        long lastSize = last != null ? last.size() : 0;
+        boolean added = super.addEdit(anEdit);
+        if (last != null && lastEdit() == last) {
+            // Merged into the last edit
+            bytes += last.size() - lastSize;
+        } else {
+            bytes += ((TextEdit) anEdit).size();
+        }
+        // Keeps the newest edit even if it is over the budget on its own
+        while (bytes > BUDGET_BYTES && edits.size() > 1) {
+            trimEdits(0, 0);
+        }
+        return added;
+    }
+    
+    @Override
+    protected void trimEdits(int from, int to) {
+        for (int i = from; i <= to; i++) {
+            bytes -= ((TextEdit) edits.get(i)).size();
+        }
+        super.trimEdits(from, to);
+    }
+    
+    @Override
+    public synchronized void discardAllEdits() {
+        super.discardAllEdits();
+        bytes = 0;
+    }
+    
+    @Override
+    public synchronized void undo() throws CannotUndoException {
+        super.undo();
+        seal();
+    }
+    
+    @Override
+    public synchronized void redo() throws CannotRedoException {
+        super.redo();
+        seal();
+    }
+    
+    /**
+     * Keeps the next keystroke out of the edit before, which after undo or
+     * redo is not the one it follows.
+     */
+    private void seal() {
+        UndoableEdit edit = editToBeUndone();
+        if (edit != null) {
+            ((TextEdit) edit).sealed = true;
+        }
+    }
+    
+    /**
+     * Text removed at an offset and text inserted there in its place.
+     */
+    private final class TextEdit extends AbstractUndoableEdit {
+        int offset;
+        String removed;
+        String inserted;
+        long lastTime;
+        boolean sealed;
+        
+        TextEdit(int offset, String removed, String inserted) {
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+            this.lastTime = System.currentTimeMillis();
+        }
+        
+        long size() {
+            return EDIT_BYTES + 2L * (removed.length() + inserted.length());
+        }
+        
+        /**
+         * Merges a keystroke that continues this edit. Called with the
+         * new edit before it is added on its own.
+         */
+        @Override
+        public boolean addEdit(UndoableEdit anEdit) {
+            TextEdit next = (TextEdit) anEdit;
+            if (sealed || next.lastTime - lastTime > COALESCE_MS
+                    || next.removed.length() + next.inserted.length() != 1) {
+                return false;
+            }
+            if (next.removed.isEmpty()) {
+                // Typing, or the first character typed over a selection
+                char c = next.inserted.charAt(0);
+                if (next.offset != offset + inserted.length() || c == '\n'
+                        || !inserted.isEmpty() && Character.isWhitespace(inserted.charAt(inserted.length() - 1))
+                        && !Character.isWhitespace(c)) {
+                    return false;
+                }
+                inserted += next.inserted;
+            } else if (!inserted.isEmpty()) {
+                return false;
+            } else if (next.offset + 1 == offset) {
+                // Backspace
+                removed = next.removed + removed;
+                offset = next.offset;
+            } else if (next.offset == offset) {
+                // Delete
+                removed += next.removed;
+            } else {
+                return false;
+            }
+            lastTime = next.lastTime;
+            return true;
+        }
+        
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            try {
+                apply(inserted.length(), removed);
+            } catch (BadLocationException e) {
+                throw new CannotUndoException();
+            }
+        }
+        
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            try {
+                apply(removed.length(), inserted);
+            } catch (BadLocationException e) {
+                throw new CannotRedoException();
+            }
+        }
+        
+        private void apply(int removeLength, String insert) throws BadLocationException {
+            applying = true;
+            try {
+                if (removeLength > 0) {
+                    document.remove(offset, removeLength);
+                }
+                if (!insert.isEmpty()) {
+                    document.insertString(offset, insert, null);
+                }
+            } finally {
+                applying = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.javaide;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs Ant targets inside the IDE process.
+ *
+ * Ant is loaded once from the local installation into its own class loader
+ * and driven through reflection, so the IDE has no build dependency on Ant
+ * and Ant's classes never mix with the IDE's. Parsed projects are cached per
+ * build file and reused while the file is unchanged, so a build only pays
+ * for the targets themselves instead of JVM startup, Ant startup and
+ * parsing. Builds run one at a time on a worker thread.
+ *
+ * Ant cannot be cancelled, so a stopped build is only reported as stopped;
+ * its target keeps the worker until it returns, and {@link #isBusy} tells
+ * callers not to start another build behind it.
+ *
+ * A reused project keeps the properties set by earlier runs, like a
+ * long-running Ant session would; editing build.xml starts from scratch.
+ * Output of non-forked tasks that write to System.out directly, such as
+ * java without fork="true", goes to the IDE's own stdout.
+ */
+public class EmbeddedAnt {
+    private static final int MSG_INFO = 2;
+    
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Embedded Ant");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Parsed project and the build file state it was parsed from.
+     */
+    private static class CachedProject {
+        Object project;
+        long lastModified;
+        long length;
+    }
+    
+    private final ClassLoader loader;
+    private final Class<?> projectClass;
+    private final Class<?> listenerClass;
+    private final Method configureProject;
+    private final Method executeTarget;
+    private final Method fireBuildStarted;
+    private final Method fireBuildFinished;
+    private final Method addBuildListener;
+    private final Method removeBuildListener;
+    private final Map<File, CachedProject> projects = new HashMap<>();
+    // Set from the start of a build until the worker is done with it
+    private volatile boolean busy;
+    
+    private EmbeddedAnt(ClassLoader loader) throws ReflectiveOperationException {
+        this.loader = loader;
+        projectClass = loader.loadClass("org.apache.tools.ant.Project");
+        listenerClass = loader.loadClass("org.apache.tools.ant.BuildListener");
+        Class<?> helperClass = loader.loadClass("org.apache.tools.ant.ProjectHelper");
+        configureProject = helperClass.getMethod("configureProject", projectClass, File.class);
+        executeTarget = projectClass.getMethod("executeTarget", String.class);
+        fireBuildStarted = projectClass.getMethod("fireBuildStarted");
+        fireBuildFinished = projectClass.getMethod("fireBuildFinished", Throwable.class);
+        addBuildListener = projectClass.getMethod("addBuildListener", listenerClass);
+        removeBuildListener = projectClass.getMethod("removeBuildListener", listenerClass);
+    }
+    
+    /**
+     * Loads Ant from ANT_HOME, the ant.home property or the ant script on the
+     * PATH. Returns null if no installation is found.
+     */
+    public static EmbeddedAnt create() {
+        File home = findAntHome();
+        if (home == null) {
+            return null;
+        }
+        try {
+            List<URL> urls = new ArrayList<>();
+            addJars(new File(home, "lib"), urls);
+            addJars(new File(System.getProperty("user.home"), ".ant/lib"), urls);
+            // The system loader stays the parent so javac can be found by Ant
+            ClassLoader loader = new URLClassLoader(urls.toArray(new URL[0]),
+                EmbeddedAnt.class.getClassLoader());
+            return new EmbeddedAnt(loader);
+        } catch (ReflectiveOperationException | MalformedURLException e) {
+            return null;
+        }
+    }
+    
+    private static File findAntHome() {
+        String home = System.getenv("ANT_HOME");
+        if (home == null) {
+            home = System.getProperty("ant.home");
+        }
+        if (home != null && new File(home, "lib/ant.jar").isFile()) {
+            return new File(home);
+        }
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            File script = new File(dir, "ant");
+            if (script.isFile()) {
+                try {
+                    // bin/ant may be a link into the installation
+                    File antHome = script.getCanonicalFile().getParentFile().getParentFile();
+                    if (new File(antHome, "lib/ant.jar").isFile()) {
+                        return antHome;
+                    }
+                } catch (IOException e) {
+                    // Try the next entry
+                }
+            }
+        }
+        return null;
+    }
+    
+    private static void addJars(File dir, List<URL> urls) throws MalformedURLException {
+        File[] jars = dir.listFiles();
+        if (jars == null) {
+            return;
+        }
+        for (File jar : jars) {
+            if (jar.getName().endsWith(".jar")) {
+                urls.add(jar.toURI().toURL());
+            }
+        }
+    }
+    
+    /**
+     * Returns true while a build, even a stopped one, still runs on the
+     * worker. A new build would wait behind it without any output.
+     */
+    public boolean isBusy() {
+        return busy;
+    }
+    
+    /**
+     * Creates a task running the given target of the project's build.xml.
+     */
+    public ConsoleTask target(File projectDir, String target, ConsoleTask.Listener listener) {
+        return new AntBuild(new File(projectDir, "build.xml"), target, listener);
+    }
+    
+    /**
+     * Returns the parsed project for the build file, parsing it again only
+     * if the file changed. Runs on the worker thread.
+     */
+    private Object project(File buildFile) throws ReflectiveOperationException {
+        CachedProject cached = projects.get(buildFile);
+        if (cached != null && cached.lastModified == buildFile.lastModified()
+                && cached.length == buildFile.length()) {
+            return cached.project;
+        }
+        cached = new CachedProject();
+        cached.lastModified = buildFile.lastModified();
+        cached.length = buildFile.length();
+        Object project = projectClass.getConstructor().newInstance();
+        projectClass.getMethod("setUserProperty", String.class, String.class)
+            .invoke(project, "ant.file", buildFile.getAbsolutePath());
+        projectClass.getMethod("init").invoke(project);
+        configureProject.invoke(null, project, buildFile);
+        cached.project = project;
+        projects.put(buildFile, cached);
+        return project;
+    }
+    
+    /**
+     * One target run, printing Ant's log like the ant command would.
+     */
+    private class AntBuild extends ConsoleTask {
+        private final File buildFile;
+        private final String target;
+        private volatile Thread thread;
+        
+        AntBuild(File buildFile, String target, Listener listener) {
+            super(listener);
+            this.buildFile = buildFile;
+            this.target = target;
+        }
+        
+        @Override
+        protected void run() {
+            busy = true;
+            WORKER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    thread = Thread.currentThread();
+                    try {
+                        if (!isStopped()) {
+                            finish(execute());
+                        }
+                    } finally {
+                        busy = false;
+                        thread = null;
+                        // Clear an interrupt from stop() before the next build
+                        Thread.interrupted();
+                    }
+                }
+            });
+        }
+        
+        /**
+         * Ant has no cancellation, the worker is interrupted and the build is
+         * reported as stopped right away. The worker stays busy until the
+         * target gives up or ends.
+         */
+        @Override
+        public void stop() {
+            if (markStopped()) {
+                Thread running = thread;
+                if (running != null) {
+                    running.interrupt();
+                }
+                finish(-1);
+            }
+        }
+        
+        private int execute() {
+            Thread current = Thread.currentThread();
+            ClassLoader contextLoader = current.getContextClassLoader();
+            current.setContextClassLoader(loader);
+            PrintStream out = null;
+            Object project = null;
+            Object logger = null;
+            try {
+                out = new PrintStream(new ConsoleStream(), true, "UTF-8");
+                project = project(buildFile);
+                logger = loader.loadClass("org.apache.tools.ant.DefaultLogger").getConstructor().newInstance();
+                Class<?> loggerClass = logger.getClass();
+                loggerClass.getMethod("setOutputPrintStream", PrintStream.class).invoke(logger, out);
+                loggerClass.getMethod("setErrorPrintStream", PrintStream.class).invoke(logger, out);
+                loggerClass.getMethod("setMessageOutputLevel", int.class).invoke(logger, MSG_INFO);
+                addBuildListener.invoke(project, logger);
+                
+                fireBuildStarted.invoke(project);
+                Throwable failure = null;
+                try {
+                    executeTarget.invoke(project, target);
+                } catch (InvocationTargetException e) {
+                    failure = e.getCause();
+                }
+                fireBuildFinished.invoke(project, failure);
+                return failure == null ? 0 : 1;
+            } catch (InvocationTargetException e) {
+                // Parse errors end up here, the listener is not attached yet
+                Throwable cause = e.getCause();
+                offer("BUILD FAILED\n" + (cause.getMessage() != null ? cause.getMessage() : cause) + "\n");
+                projects.remove(buildFile);
+                return 1;
+            } catch (ReflectiveOperationException | IOException e) {
+                offer("Cannot run embedded Ant: " + e + "\n");
+                return 1;
+            } finally {
+                if (project != null && logger != null) {
+                    try {
+                        removeBuildListener.invoke(project, logger);
+                    } catch (ReflectiveOperationException e) {
+                        // The project is dropped with the cache entry anyway
+                        projects.remove(buildFile);
+                    }
+                }
+                if (out != null) {
+                    out.flush();
+                }
+                current.setContextClassLoader(contextLoader);
+            }
+        }
+        
+        /**
+         * Collects Ant's log, which is flushed after every message.
+         */
+        private class ConsoleStream extends OutputStream {
+            private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            
+            @Override
+            public void write(int b) {
+                buffer.write(b);
+            }
+            
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                buffer.write(bytes, offset, length);
+            }
+            
+            @Override
+            public void flush() throws IOException {
+                if (buffer.size() == 0) {
+                    return;
+                }
+                char[] chars = buffer.toString("UTF-8").toCharArray();
+                buffer.reset();
+                try {
+                    offer(chars, 0, chars.length);
+                } catch (InterruptedException e) {
+                    // Stopped while waiting for the output panel
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
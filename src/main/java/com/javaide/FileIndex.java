@@ -0,0 +1,598 @@
+package com.javaide;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Finds project files by fuzzy name for Go to File.
+ *
+ * A query matches a file name when its characters appear in the name in
+ * order, so "EdTa" and "edtab" both find EditorTab.java. Prefixes rank
+ * above substrings, which rank above scattered characters, and characters
+ * that start camel-case humps count more. Text before a "/" in the query
+ * has to appear in order in the directory.
+ *
+ * Most queries are answered from two indexes without looking at every
+ * name: names sorted for prefix lookups, and for queries of three or more
+ * characters, a trigram index that yields every name containing the query.
+ * Only when those cannot fill the result list with matches that outrank
+ * anything else is every name checked, and even then a 64-bit signature of
+ * the characters in each name rejects most of them with one AND.
+ *
+ * The index follows the project snapshot as it changes: files are added
+ * and removed, and the slots of removed files are reclaimed once enough of
+ * them pile up. Updates work on a copy of the index and publish it when it
+ * is complete, so searches never wait for an update, however large.
+ */
+public class FileIndex {
+    // Compact once this share of the slots belongs to removed files
+    private static final int COMPACT_DIVISOR = 4;
+    
+    // Best possible scores outside the prefix and substring tiers
+    private static final int BEST_SUBSTRING = 1500;
+    private static final int BEST_SCATTERED = 900;
+    
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "File index");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * A file found by {@link #search}, best first.
+     */
+    public static class Match implements Comparable<Match> {
+        public final String path;
+        public final int score;
+        
+        Match(String path, int score) {
+            this.path = path;
+            this.score = score;
+        }
+        
+        public String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+        
+        /**
+         * Directory part of the path, empty for files at the top.
+         */
+        public String getDirectory() {
+            int slash = path.lastIndexOf('/');
+            return slash < 0 ? "" : path.substring(0, slash);
+        }
+        
+        @Override
+        public int compareTo(Match other) {
+            if (score != other.score) {
+                return score > other.score ? -1 : 1;
+            }
+            return path.compareTo(other.path);
+        }
+    }
+    
+    /**
+     * Growable list of ids, in the order they were added.
+     */
+    private static class Postings {
+        int[] ids = new int[4];
+        int size;
+        
+        Postings copy() {
+            Postings copy = new Postings();
+            copy.ids = Arrays.copyOf(ids, Math.max(4, size + 1));
+            copy.size = size;
+            return copy;
+        }
+        
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+    
+    /**
+     * Everything a search looks at. A published table is never changed;
+     * updates change a {@link #copy} and publish that.
+     */
+    private static class Table {
+        String[] paths = new String[0];
+        String[] lowerNames = new String[0];
+        long[] signatures = new long[0];
+        long[] humps = new long[0];
+        int count;
+        BitSet removed = new BitSet();
+        Map<String, Integer> ids = new HashMap<>();
+        Map<Integer, Postings> trigrams = new HashMap<>();
+        // Live ids ordered by lower case name
+        int[] sorted = new int[0];
+        
+        /**
+         * Copies the table for an update. Postings stay shared until the
+         * update adds to them.
+         */
+        Table copy() {
+            Table table = new Table();
+            table.paths = paths.clone();
+            table.lowerNames = lowerNames.clone();
+            table.signatures = signatures.clone();
+            table.humps = humps.clone();
+            table.count = count;
+            table.removed = (BitSet) removed.clone();
+            table.ids = new HashMap<>(ids);
+            table.trigrams = new HashMap<>(trigrams);
+            table.sorted = sorted;
+            return table;
+        }
+    }
+    
+    /**
+     * The best matches seen so far, worst on top so it is the one replaced.
+     */
+    private static class Best {
+        final int limit;
+        final PriorityQueue<Match> queue;
+        
+        Best(int limit) {
+            this.limit = limit;
+            this.queue = new PriorityQueue<>(limit + 1, Collections.<Match>reverseOrder());
+        }
+        
+        void offer(String path, int score) {
+            if (queue.size() < limit) {
+                queue.add(new Match(path, score));
+            } else if (score >= queue.peek().score) {
+                Match match = new Match(path, score);
+                if (match.compareTo(queue.peek()) < 0) {
+                    queue.poll();
+                    queue.add(match);
+                }
+            }
+        }
+        
+        boolean isFull() {
+            return queue.size() == limit;
+        }
+        
+        int worst() {
+            return queue.peek().score;
+        }
+        
+        /**
+         * True if the list is full of matches scoring above the bound.
+         */
+        boolean beats(int bound) {
+            return queue.size() == limit && queue.peek().score > bound;
+        }
+        
+        List<Match> toList() {
+            List<Match> matches = new ArrayList<>(queue);
+            Collections.sort(matches);
+            return matches;
+        }
+    }
+    
+    private final File root;
+    
+    private volatile Table table = new Table();
+    
+    public FileIndex(File root) {
+        this.root = root;
+    }
+    
+    public File getRoot() {
+        return root;
+    }
+    
+    public int size() {
+        return table.ids.size();
+    }
+    
+    /**
+     * Runs {@link #update} in the background.
+     */
+    public void updateLater(final ProjectSnapshot snapshot) {
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                update(snapshot);
+            }
+        });
+    }
+    
+    /**
+     * Brings the index in line with a newer snapshot of the same project,
+     * touching only the files that were added or removed. Updates run one
+     * at a time; searches meanwhile see the index as it was.
+     */
+    public synchronized void update(ProjectSnapshot snapshot) {
+        Set<String> current = new HashSet<>(snapshot.getFileCount() * 2);
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (!snapshot.isDirectory(i)) {
+                current.add(snapshot.getPath(i));
+            }
+        }
+        Table old = table;
+        Table next = null;
+        // Postings created or copied by this update, which it may change
+        Set<Postings> owned = Collections.newSetFromMap(new IdentityHashMap<Postings, Boolean>());
+        for (String path : old.ids.keySet()) {
+            if (!current.contains(path)) {
+                if (next == null) {
+                    next = old.copy();
+                }
+                remove(next, path);
+            }
+        }
+        for (String path : current) {
+            if (!old.ids.containsKey(path)) {
+                if (next == null) {
+                    next = old.copy();
+                }
+                add(next, owned, path);
+            }
+        }
+        if (next != null) {
+            if (next.removed.cardinality() > next.count / COMPACT_DIVISOR) {
+                compact(next);
+            }
+            sort(next);
+            table = next;
+        }
+    }
+    
+    private static void add(Table table, Set<Postings> owned, String path) {
+        if (table.count == table.paths.length) {
+            int capacity = Math.max(1024, table.count * 2);
+            table.paths = Arrays.copyOf(table.paths, capacity);
+            table.lowerNames = Arrays.copyOf(table.lowerNames, capacity);
+            table.signatures = Arrays.copyOf(table.signatures, capacity);
+            table.humps = Arrays.copyOf(table.humps, capacity);
+        }
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        String lower = name.toLowerCase();
+        int id = table.count++;
+        table.paths[id] = path;
+        table.lowerNames[id] = lower;
+        table.signatures[id] = signature(lower);
+        table.humps[id] = humps(name);
+        table.ids.put(path, id);
+        addTrigrams(table, owned, id, lower);
+    }
+    
+    private static void addTrigrams(Table table, Set<Postings> owned, int id, String lower) {
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            int trigram = trigram(lower, i);
+            Postings postings = table.trigrams.get(trigram);
+            if (postings == null) {
+                postings = new Postings();
+                owned.add(postings);
+                table.trigrams.put(trigram, postings);
+            } else if (!owned.contains(postings)) {
+                // Still shared with the published table
+                postings = postings.copy();
+                owned.add(postings);
+                table.trigrams.put(trigram, postings);
+            }
+            // Ids only grow, so a repeat can only be the last one added
+            if (postings.size == 0 || postings.ids[postings.size - 1] != id) {
+                postings.add(id);
+            }
+        }
+    }
+    
+    /**
+     * Marks the file removed; its postings stay until the next compaction
+     * and are skipped meanwhile.
+     */
+    private static void remove(Table table, String path) {
+        Integer id = table.ids.remove(path);
+        if (id != null) {
+            table.removed.set(id);
+            table.signatures[id] = 0;
+        }
+    }
+    
+    private static void compact(Table table) {
+        int live = 0;
+        for (int i = 0; i < table.count; i++) {
+            if (!table.removed.get(i)) {
+                table.paths[live] = table.paths[i];
+                table.lowerNames[live] = table.lowerNames[i];
+                table.signatures[live] = table.signatures[i];
+                table.humps[live] = table.humps[i];
+                live++;
+            }
+        }
+        Arrays.fill(table.paths, live, table.count, null);
+        Arrays.fill(table.lowerNames, live, table.count, null);
+        table.count = live;
+        table.removed.clear();
+        table.ids.clear();
+        table.trigrams.clear();
+        Set<Postings> owned = Collections.newSetFromMap(new IdentityHashMap<Postings, Boolean>());
+        for (int id = 0; id < table.count; id++) {
+            table.ids.put(table.paths[id], id);
+            addTrigrams(table, owned, id, table.lowerNames[id]);
+        }
+    }
+    
+    private static void sort(Table table) {
+        final String[] lowerNames = table.lowerNames;
+        Integer[] order = new Integer[table.ids.size()];
+        int next = 0;
+        for (int id = 0; id < table.count; id++) {
+            if (!table.removed.get(id)) {
+                order[next++] = id;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return lowerNames[a].compareTo(lowerNames[b]);
+            }
+        });
+        table.sorted = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            table.sorted[i] = order[i];
+        }
+    }
+    
+    /**
+     * Returns the best matches for the query, at most limit of them.
+     */
+    public List<Match> search(String query, int limit) {
+        Table table = this.table;
+        String lowerQuery = query.trim().toLowerCase();
+        int slash = lowerQuery.lastIndexOf('/');
+        String nameQuery = lowerQuery.substring(slash + 1);
+        String dirQuery = slash < 0 ? "" : lowerQuery.substring(0, slash);
+        if (nameQuery.isEmpty()) {
+            return Collections.emptyList();
+        }
+        
+        // Names starting with the query outrank everything else
+        Best best = new Best(limit);
+        BitSet seen = new BitSet();
+        for (int i = lowerBound(table, nameQuery); i < table.sorted.length; i++) {
+            int id = table.sorted[i];
+            if (!table.lowerNames[id].startsWith(nameQuery)) {
+                break;
+            }
+            seen.set(id);
+            offer(table, best, id, nameQuery, dirQuery);
+        }
+        if (best.beats(BEST_SUBSTRING)) {
+            return best.toList();
+        }
+        
+        // Then names containing it, which all share its trigrams; what is
+        // left after that can only match scattered
+        int ceiling = BEST_SUBSTRING;
+        if (nameQuery.length() >= 3) {
+            Postings candidates = intersect(table, nameQuery);
+            for (int i = 0; i < candidates.size; i++) {
+                int id = candidates.ids[i];
+                if (!seen.get(id)) {
+                    seen.set(id);
+                    offer(table, best, id, nameQuery, dirQuery);
+                }
+            }
+            ceiling = Math.min(100 + 50 * nameQuery.length(), BEST_SCATTERED);
+            if (best.beats(ceiling)) {
+                return best.toList();
+            }
+        }
+        
+        long wanted = signature(nameQuery);
+        for (int id = 0; id < table.count; id++) {
+            if ((table.signatures[id] & wanted) != wanted || seen.get(id)) {
+                continue;
+            }
+            // Longer names can no longer make it into a full list
+            if (best.isFull() && ceiling - table.lowerNames[id].length() < best.worst()) {
+                continue;
+            }
+            offer(table, best, id, nameQuery, dirQuery);
+        }
+        return best.toList();
+    }
+    
+    private static void offer(Table table, Best best, int id, String nameQuery, String dirQuery) {
+        if (table.removed.get(id)) {
+            return;
+        }
+        int score = score(table.lowerNames[id], table.humps[id], nameQuery);
+        if (score >= 0 && (dirQuery.isEmpty() || inDirectory(table.paths[id], dirQuery))) {
+            best.offer(table.paths[id], score);
+        }
+    }
+    
+    private static int lowerBound(Table table, String prefix) {
+        int low = 0;
+        int high = table.sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (table.lowerNames[table.sorted[mid]].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Ids whose names contain every trigram of the query, a superset of the
+     * names containing the query itself.
+     */
+    private static Postings intersect(Table table, String query) {
+        List<Postings> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= query.length(); i++) {
+            Postings postings = table.trigrams.get(trigram(query, i));
+            if (postings == null) {
+                return new Postings();
+            }
+            lists.add(postings);
+        }
+        Collections.sort(lists, new Comparator<Postings>() {
+            @Override
+            public int compare(Postings a, Postings b) {
+                return Integer.compare(a.size, b.size);
+            }
+        });
+        Postings result = lists.get(0);
+        for (int l = 1; l < lists.size() && result.size > 0; l++) {
+            Postings other = lists.get(l);
+            Postings common = new Postings();
+            int j = 0;
+            for (int i = 0; i < result.size; i++) {
+                int id = result.ids[i];
+                while (j < other.size && other.ids[j] < id) {
+                    j++;
+                }
+                if (j < other.size && other.ids[j] == id) {
+                    common.add(id);
+                }
+            }
+            result = common;
+        }
+        return result;
+    }
+    
+    private static int trigram(String lower, int index) {
+        return (lower.charAt(index) * 31 + lower.charAt(index + 1)) * 31 + lower.charAt(index + 2);
+    }
+    
+    /**
+     * Scores a name against the query, -1 if it doesn't match. Prefixes
+     * beat substrings, substrings beat scattered characters, and shorter
+     * names win among equals.
+     */
+    static int score(String lower, long humps, String query) {
+        int index = lower.indexOf(query);
+        if (index == 0) {
+            boolean whole = lower.length() == query.length() || lower.charAt(query.length()) == '.';
+            return (whole ? 3000 : 2000) - lower.length();
+        }
+        if (index > 0) {
+            return (isHump(humps, index) ? BEST_SUBSTRING : 1000) - lower.length();
+        }
+        
+        // Characters in order, each one continuing a run or starting a hump
+        // if possible
+        int score = 0;
+        int previous = -1;
+        for (int q = 0; q < query.length(); q++) {
+            char c = query.charAt(q);
+            int found;
+            if (previous >= 0 && previous + 1 < lower.length() && lower.charAt(previous + 1) == c) {
+                found = previous + 1;
+                score += 50;
+            } else {
+                found = nextHump(lower, humps, c, previous + 1);
+                if (found >= 0) {
+                    score += 50;
+                } else {
+                    found = lower.indexOf(c, previous + 1);
+                    if (found < 0) {
+                        return -1;
+                    }
+                }
+            }
+            previous = found;
+        }
+        return Math.min(100 + score, BEST_SCATTERED) - lower.length();
+    }
+    
+    private static int nextHump(String lower, long humps, char c, int from) {
+        if (from >= 64) {
+            return -1;
+        }
+        for (long rest = humps & (-1L << from); rest != 0; rest &= rest - 1) {
+            int i = Long.numberOfTrailingZeros(rest);
+            if (lower.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static boolean isHump(long humps, int index) {
+        return index < 64 && (humps & (1L << index)) != 0;
+    }
+    
+    /**
+     * Marks where camel-case humps start in the first 64 characters of a
+     * name: at upper case letters, after separators and where digits begin
+     * or end.
+     */
+    static long humps(String name) {
+        long bits = 1;
+        int length = Math.min(name.length(), 64);
+        for (int i = 1; i < length; i++) {
+            char c = name.charAt(i);
+            char before = name.charAt(i - 1);
+            if (Character.isUpperCase(c) || !Character.isLetterOrDigit(before)
+                    || Character.isDigit(before) != Character.isDigit(c)) {
+                bits |= 1L << i;
+            }
+        }
+        return bits;
+    }
+    
+    private static boolean inDirectory(String path, String dirQuery) {
+        int from = 0;
+        int end = path.lastIndexOf('/');
+        for (int i = 0; i < dirQuery.length(); i++) {
+            char c = dirQuery.charAt(i);
+            while (from < end && Character.toLowerCase(path.charAt(from)) != c) {
+                from++;
+            }
+            if (from >= end) {
+                return false;
+            }
+            from++;
+        }
+        return true;
+    }
+    
+    /**
+     * One bit per letter and digit, the rest share the remaining bits.
+     */
+    private static long signature(String lower) {
+        long bits = 0;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            int bit;
+            if (c >= 'a' && c <= 'z') {
+                bit = c - 'a';
+            } else if (c >= '0' && c <= '9') {
+                bit = 26 + c - '0';
+            } else {
+                bit = 36 + c % 28;
+            }
+            bits |= 1L << bit;
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,180 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Streams a large file into a document in the background.
+ *
+ * The file is memory-mapped window by window and decoded as UTF-8 into a
+ * small reusable buffer, so the raw bytes never land on the heap. Each
+ * decoded chunk is appended on the event dispatch thread, which keeps the
+ * editor responsive and lets it show the start of the file right away. The
+ * loader waits for every chunk to be appended before decoding the next one,
+ * so at most one chunk is in flight.
+ */
+public class FileLoader implements Runnable {
+    
+    /** File size from which files are opened through a FileLoader */
+    public static final long STREAMING_THRESHOLD =
+        Long.getLong("javaide.streamingOpenThreshold", 4L * 1024 * 1024);
+    
+    // Characters appended per EDT event, adapted to stay close to the budget
+    private static final int MIN_CHUNK_CHARS = 16 * 1024;
+    private static final int MAX_CHUNK_CHARS = 4 * 1024 * 1024;
+    private static final long APPEND_BUDGET_NANOS = 20000000L;
+    
+    // Bytes mapped at once, keeps address space use bounded for huge files
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    
+    /**
+     * Receives the outcome of a load on the event dispatch thread.
+     */
+    public interface Listener {
+        void loaded(long bytes, long nanos, long peakHeap);
+        
+        void failed(IOException e);
+    }
+    
+    private final File file;
+    private final Document document;
+    private final Listener listener;
+    private volatile boolean cancelled;
+    private long peakHeap;
+    private int chunkChars = 64 * 1024;
+    
+    public FileLoader(File file, Document document, Listener listener) {
+        this.file = file;
+        this.document = document;
+        this.listener = listener;
+    }
+    
+    public static boolean isLarge(File file) {
+        return file.length() >= STREAMING_THRESHOLD;
+    }
+    
+    public void start() {
+        Thread thread = new Thread(this, "File loader " + file.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stops the load after the chunk currently being appended.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    @Override
+    public void run() {
+        final long startTime = System.nanoTime();
+        final long size;
+        try {
+            size = load();
+        } catch (final IOException e) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    listener.failed(e);
+                }
+            });
+            return;
+        }
+        if (cancelled) {
+            return;
+        }
+        final long elapsed = System.nanoTime() - startTime;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                listener.loaded(size, elapsed, peakHeap);
+            }
+        });
+    }
+    
+    private long load() throws IOException {
+        CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(MAX_CHUNK_CHARS);
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (!cancelled) {
+                long windowSize = Math.min(MAP_WINDOW, size - position);
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                boolean endOfInput = position + windowSize == size;
+                while (!cancelled) {
+                    chars.limit(chunkChars);
+                    boolean overflow = decoder.decode(window, chars, endOfInput).isOverflow();
+                    if (!overflow && endOfInput) {
+                        decoder.flush(chars);
+                    }
+                    if (chars.position() > 0) {
+                        chars.flip();
+                        append(chars.toString());
+                        chars.clear();
+                    }
+                    if (!overflow) {
+                        break;
+                    }
+                }
+                if (endOfInput) {
+                    break;
+                }
+                // Bytes of a sequence split by the window end are mapped again
+                position += window.position();
+            }
+            return size;
+        } finally {
+            raf.close();
+        }
+    }
+    
+    private void append(final String chunk) throws IOException {
+        long start = System.nanoTime();
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled) {
+                        return;
+                    }
+                    try {
+                        document.insertString(document.getLength(), chunk, null);
+                    } catch (BadLocationException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        } catch (InterruptedException e) {
+            cancelled = true;
+        } catch (InvocationTargetException e) {
+            throw new IOException("Cannot append to document", e.getCause());
+        }
+        // Size the next chunk to take about the budget at the rate just seen: it
+        // shrinks when appends slow down and grows at most twofold when they speed up
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        long target = (long) chunk.length() * APPEND_BUDGET_NANOS / elapsed;
+        chunkChars = (int) Math.max(MIN_CHUNK_CHARS, Math.min(MAX_CHUNK_CHARS,
+            Math.min(target, 2L * chunkChars)));
+        
+        Runtime runtime = Runtime.getRuntime();
+        peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+    }
+}
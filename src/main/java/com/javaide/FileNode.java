@@ -0,0 +1,48 @@
+package com.javaide;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+import java.io.File;
+
+/**
+ * File or directory in the project tree.
+ *
+ * A directory starts out with a single placeholder child so the tree shows
+ * it as expandable; its real children are listed by
+ * {@link ProjectTreeLoader} the first time it is expanded, and listed again
+ * when the directory changes on disk.
+ */
+public class FileNode extends DefaultMutableTreeNode {
+    static final String PLACEHOLDER = "Loading...";
+    
+    enum State { UNLOADED, LOADING, LOADED }
+    
+    private final File file;
+    private final boolean directory;
+    
+    // Only used on the EDT
+    State state;
+    boolean reloadPending;
+    
+    public FileNode(File file, boolean directory) {
+        super(null, directory);
+        this.file = file;
+        this.directory = directory;
+        this.state = directory ? State.UNLOADED : State.LOADED;
+        if (directory) {
+            add(new DefaultMutableTreeNode(PLACEHOLDER, false));
+        }
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    public boolean isDirectory() {
+        return directory;
+    }
+    
+    @Override
+    public String toString() {
+        return directory ? file.getName() + "/" : file.getName();
+    }
+}
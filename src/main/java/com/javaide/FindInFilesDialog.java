@@ -0,0 +1,287 @@
+package com.javaide;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Searches the text of all project files and lists the matching lines.
+ *
+ * Results are added as the {@link ProjectSearcher} finds them; starting a
+ * new search or closing the dialog cancels the one in progress. The trigram
+ * index is optional: once built it is saved with the project and loaded
+ * again the next time, and literal searches then only read the files that
+ * can contain the text. Enter searches, double-click or Enter on a result
+ * opens the file at that line.
+ */
+public class FindInFilesDialog extends JDialog {
+    /**
+     * Receives the location the user picked.
+     */
+    public interface Listener {
+        void open(File file, int line, int column);
+    }
+    
+    /**
+     * Hits of the current search, grown one batch at a time.
+     */
+    private static class HitListModel extends AbstractListModel<ProjectSearcher.Hit> {
+        private final List<ProjectSearcher.Hit> hits = new ArrayList<>();
+        
+        @Override
+        public int getSize() {
+            return hits.size();
+        }
+        
+        @Override
+        public ProjectSearcher.Hit getElementAt(int index) {
+            return hits.get(index);
+        }
+        
+        void addAll(List<ProjectSearcher.Hit> batch) {
+            int first = hits.size();
+            hits.addAll(batch);
+            fireIntervalAdded(this, first, hits.size() - 1);
+        }
+        
+        void clear() {
+            int size = hits.size();
+            if (size > 0) {
+                hits.clear();
+                fireIntervalRemoved(this, 0, size - 1);
+            }
+        }
+    }
+    
+    private final File projectDir;
+    private final Listener listener;
+    private final JTextField queryField = new JTextField(40);
+    private final JCheckBox regexBox = new JCheckBox("Regex");
+    private final JCheckBox matchCaseBox = new JCheckBox("Match case");
+    private final JCheckBox useIndexBox = new JCheckBox("Use index");
+    private final JButton indexButton = new JButton("Build Index");
+    private final HitListModel results = new HitListModel();
+    private final JList<ProjectSearcher.Hit> resultList = new JList<>(results);
+    private final JLabel statusLabel = new JLabel(" ");
+    
+    private ProjectSnapshot snapshot;
+    private SearchIndex index;
+    private ProjectSearcher.Search search;
+    
+    public FindInFilesDialog(Frame owner, File projectDir, Listener listener) {
+        super(owner, "Find in Files", false);
+        this.projectDir = projectDir;
+        this.listener = listener;
+        
+        resultList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        resultList.setVisibleRowCount(20);
+        resultList.setPrototypeCellValue(new ProjectSearcher.Hit(null, "src/main/java/Prototype.java", 1000, 0,
+            "A line of about the usual length for source code in a project"));
+        resultList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                ProjectSearcher.Hit hit = (ProjectSearcher.Hit) value;
+                String text = "<html><font color=gray>" + escape(hit.path) + ":" + hit.line
+                    + "</font>&nbsp;&nbsp;" + escape(hit.text.trim()) + "</html>";
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        resultList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    openSelected();
+                }
+            }
+        });
+        resultList.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_ENTER) {
+                    openSelected();
+                    e.consume();
+                }
+            }
+        });
+        
+        ActionListener searchAction = new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                search();
+            }
+        };
+        queryField.addActionListener(searchAction);
+        regexBox.addActionListener(searchAction);
+        matchCaseBox.addActionListener(searchAction);
+        useIndexBox.setEnabled(false);
+        indexButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                buildIndex();
+            }
+        });
+        getRootPane().registerKeyboardAction(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        }, KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_IN_FOCUSED_WINDOW);
+        
+        JPanel options = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        options.add(regexBox);
+        options.add(matchCaseBox);
+        options.add(useIndexBox);
+        options.add(indexButton);
+        
+        JPanel top = new JPanel(new BorderLayout(0, 5));
+        top.add(queryField, BorderLayout.NORTH);
+        top.add(options, BorderLayout.SOUTH);
+        
+        JPanel panel = new JPanel(new BorderLayout(0, 5));
+        panel.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        panel.add(top, BorderLayout.NORTH);
+        panel.add(new JScrollPane(resultList), BorderLayout.CENTER);
+        panel.add(statusLabel, BorderLayout.SOUTH);
+        setContentPane(panel);
+        pack();
+        setLocationRelativeTo(owner);
+        
+        if (SearchIndex.location(projectDir).isFile()) {
+            loadIndex();
+        }
+    }
+    
+    /**
+     * Sets the files to search, called whenever the project is scanned.
+     */
+    public void setSnapshot(ProjectSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+    
+    /**
+     * Shows the dialog with the query field focused and selected.
+     */
+    public void open() {
+        setVisible(true);
+        queryField.selectAll();
+        queryField.requestFocusInWindow();
+    }
+    
+    @Override
+    public void dispose() {
+        cancelSearch();
+        super.dispose();
+    }
+    
+    private void search() {
+        cancelSearch();
+        results.clear();
+        String query = queryField.getText();
+        if (query.isEmpty()) {
+            statusLabel.setText(" ");
+            return;
+        }
+        if (snapshot == null) {
+            statusLabel.setText("The project is still being scanned.");
+            return;
+        }
+        try {
+            search = ProjectSearcher.start(snapshot, useIndexBox.isSelected() ? index : null, query,
+                regexBox.isSelected(), matchCaseBox.isSelected(), new ProjectSearcher.Listener() {
+                    @Override
+                    public void found(List<ProjectSearcher.Hit> hits) {
+                        boolean first = results.getSize() == 0;
+                        results.addAll(hits);
+                        if (first) {
+                            resultList.setSelectedIndex(0);
+                        }
+                        statusLabel.setText("Searching... " + results.getSize() + " matches");
+                    }
+                    
+                    @Override
+                    public void finished(int filesSearched, int filesMatched, int hits, boolean truncated, long nanos) {
+                        search = null;
+                        statusLabel.setText(String.format("%d matches in %d files%s, %d files searched (%d ms)",
+                            hits, filesMatched, truncated ? " (stopped at " + ProjectSearcher.MAX_HITS + ")" : "",
+                            filesSearched, nanos / 1000000));
+                    }
+                });
+            statusLabel.setText("Searching...");
+        } catch (PatternSyntaxException e) {
+            statusLabel.setText("Invalid regular expression: " + e.getDescription());
+        }
+    }
+    
+    private void cancelSearch() {
+        if (search != null) {
+            search.cancel();
+            search = null;
+        }
+    }
+    
+    private void loadIndex() {
+        indexButton.setEnabled(false);
+        SearchIndex.loadLater(projectDir, new SearchIndex.Listener() {
+            @Override
+            public void ready(SearchIndex loaded) {
+                setIndex(loaded);
+                useIndexBox.setSelected(true);
+            }
+            
+            @Override
+            public void failed(IOException e) {
+                // Unreadable or from another version; it can be built again
+                indexButton.setEnabled(true);
+            }
+        });
+    }
+    
+    private void buildIndex() {
+        if (snapshot == null) {
+            statusLabel.setText("The project is still being scanned.");
+            return;
+        }
+        indexButton.setEnabled(false);
+        statusLabel.setText("Indexing " + snapshot.getFileCount() + " files...");
+        final long started = System.nanoTime();
+        SearchIndex.buildLater(snapshot, new SearchIndex.Listener() {
+            @Override
+            public void ready(SearchIndex built) {
+                setIndex(built);
+                useIndexBox.setSelected(true);
+                statusLabel.setText(String.format("Indexed %d files (%d ms)",
+                    built.getFileCount(), (System.nanoTime() - started) / 1000000));
+            }
+            
+            @Override
+            public void failed(IOException e) {
+                indexButton.setEnabled(true);
+                statusLabel.setText("Cannot build index: " + e.getMessage());
+            }
+        });
+    }
+    
+    private void setIndex(SearchIndex index) {
+        this.index = index;
+        useIndexBox.setEnabled(true);
+        indexButton.setText("Rebuild Index");
+        indexButton.setEnabled(true);
+    }
+    
+    private void openSelected() {
+        ProjectSearcher.Hit hit = resultList.getSelectedValue();
+        if (hit != null) {
+            listener.open(hit.file, hit.line, hit.column);
+        }
+    }
+    
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
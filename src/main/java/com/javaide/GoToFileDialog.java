@@ -0,0 +1,145 @@
+package com.javaide;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.File;
+import java.util.List;
+
+/**
+ * Quick open: type part of a file name, pick from the ranked matches.
+ *
+ * The list is refreshed on every keystroke straight from the
+ * {@link FileIndex}, which answers well within a frame even for very large
+ * projects. Up and Down move through the list while typing, Enter opens the
+ * selected file and Escape closes the dialog.
+ */
+public class GoToFileDialog extends JDialog {
+    private static final int MAX_RESULTS = 50;
+    
+    /**
+     * Receives the file the user picked.
+     */
+    public interface Listener {
+        void open(File file);
+    }
+    
+    private final FileIndex index;
+    private final Listener listener;
+    private final JTextField queryField = new JTextField(40);
+    private final DefaultListModel<FileIndex.Match> results = new DefaultListModel<>();
+    private final JList<FileIndex.Match> resultList = new JList<>(results);
+    
+    public GoToFileDialog(Frame owner, FileIndex index, Listener listener) {
+        super(owner, "Go to File", true);
+        this.index = index;
+        this.listener = listener;
+        
+        resultList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        resultList.setVisibleRowCount(15);
+        resultList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                FileIndex.Match match = (FileIndex.Match) value;
+                String text = "<html><b>" + escape(match.getName()) + "</b>&nbsp;&nbsp;<font color=gray>"
+                    + escape(match.getDirectory()) + "</font></html>";
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        resultList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    openSelected();
+                }
+            }
+        });
+        
+        queryField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                search();
+            }
+            
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                search();
+            }
+            
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        queryField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_DOWN:
+                        moveSelection(1);
+                        e.consume();
+                        break;
+                    case KeyEvent.VK_UP:
+                        moveSelection(-1);
+                        e.consume();
+                        break;
+                    case KeyEvent.VK_ENTER:
+                        openSelected();
+                        e.consume();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+        getRootPane().registerKeyboardAction(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        }, KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_IN_FOCUSED_WINDOW);
+        
+        JPanel panel = new JPanel(new BorderLayout(0, 5));
+        panel.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        panel.add(queryField, BorderLayout.NORTH);
+        panel.add(new JScrollPane(resultList), BorderLayout.CENTER);
+        setContentPane(panel);
+        pack();
+        setLocationRelativeTo(owner);
+    }
+    
+    private void search() {
+        List<FileIndex.Match> matches = index.search(queryField.getText(), MAX_RESULTS);
+        results.clear();
+        for (FileIndex.Match match : matches) {
+            results.addElement(match);
+        }
+        if (!matches.isEmpty()) {
+            resultList.setSelectedIndex(0);
+        }
+    }
+    
+    private void moveSelection(int delta) {
+        int size = results.getSize();
+        if (size == 0) {
+            return;
+        }
+        int selected = Math.max(0, Math.min(size - 1, resultList.getSelectedIndex() + delta));
+        resultList.setSelectedIndex(selected);
+        resultList.ensureIndexIsVisible(selected);
+    }
+    
+    private void openSelected() {
+        FileIndex.Match match = resultList.getSelectedValue();
+        if (match != null) {
+            dispose();
+            listener.open(new File(index.getRoot(), match.path));
+        }
+    }
+    
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
@@ -0,0 +1,297 @@
+package com.javaide;
+
+import javax.swing.JComponent;
+import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
+import javax.swing.ToolTipManager;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+
+/**
+ * The strip left of an editor with the line numbers and line markers.
+ *
+ * Only the lines in the clip are painted, each at the place the text
+ * pane's view puts it, so wrapped lines and scrolling far down a large
+ * file cost the same as the top of a small one. The widths of the digits
+ * are measured once per font, and the gutter only changes width when the
+ * number of lines gains or loses a digit. It is as tall as the text pane
+ * and follows it when the text pane is resized, which the scroll pane does
+ * whenever lines are added, removed or wrap differently.
+ *
+ * Markers are kept as a {@link LineMarkers} bit mask per line and move
+ * with the lines when lines are inserted or removed above them. Clicking
+ * a line in the gutter toggles its breakpoint.
+ */
+public class Gutter extends JComponent {
+    /**
+     * What a line can be marked with.
+     */
+    public enum Marker {
+        ERROR, WARNING, BREAKPOINT;
+        
+        public int mask() {
+            return 1 << ordinal();
+        }
+    }
+    
+    /**
+     * Supplies the tooltip of a 0-based line, or null for none.
+     */
+    public interface ToolTips {
+        String lineToolTip(int line);
+    }
+    
+    private static final int MARKER_WIDTH = 14;
+    private static final int PADDING = 5;
+    private static final Color ERROR_COLOR = new Color(220, 40, 40);
+    private static final Color WARNING_COLOR = new Color(230, 160, 0);
+    private static final Color BREAKPOINT_COLOR = new Color(150, 20, 20);
+    
+    private final JTextPane textPane;
+    private final LineMarkers markers = new LineMarkers();
+    private final int[] digitWidths = new int[10];
+    private final char[] digits = new char[10];
+    private int maxDigitWidth;
+    private int digitCount;
+    // Lines before the last edit, to tell how many it added or removed
+    private int lineCount;
+    private ToolTips toolTips;
+    
+    public Gutter(JTextPane textPane) {
+        this.textPane = textPane;
+        setBackground(new Color(240, 240, 240));
+        setForeground(new Color(100, 100, 100));
+        measure();
+        lineCount = textPane.getDocument().getDefaultRootElement().getElementCount();
+        digitCount = digitCount(lineCount);
+        
+        textPane.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                linesChanged(e);
+            }
+            
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                linesChanged(e);
+            }
+            
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                // Highlighting changes colors only
+            }
+        });
+        textPane.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                // The scroll pane resizes the text pane to its preferred
+                // height, so this follows new lines and wrapping
+                if (getHeight() != Gutter.this.textPane.getHeight()) {
+                    revalidate();
+                }
+            }
+        });
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                if (SwingUtilities.isLeftMouseButton(e) && e.getY() < Gutter.this.textPane.getHeight()) {
+                    toggleMarker(lineAt(e.getY()), Marker.BREAKPOINT);
+                }
+            }
+        });
+        textPane.addPropertyChangeListener("font", new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                measure();
+                revalidate();
+                repaint();
+            }
+        });
+    }
+    
+    public boolean hasMarker(int line, Marker marker) {
+        return (markers.get(line) & marker.mask()) != 0;
+    }
+    
+    /**
+     * Marks a 0-based line.
+     */
+    public void addMarker(int line, Marker marker) {
+        if (markers.add(line, marker.mask())) {
+            repaint();
+        }
+    }
+    
+    public void removeMarker(int line, Marker marker) {
+        if (markers.remove(line, marker.mask())) {
+            repaint();
+        }
+    }
+    
+    /**
+     * Marks a line, or takes the marker off if it has it.
+     */
+    public void toggleMarker(int line, Marker marker) {
+        if (hasMarker(line, marker)) {
+            removeMarker(line, marker);
+        } else {
+            addMarker(line, marker);
+        }
+    }
+    
+    /**
+     * Takes a kind of marker off every line.
+     */
+    public void clearMarkers(Marker marker) {
+        if (markers.removeAll(marker.mask())) {
+            repaint();
+        }
+    }
+    
+    public void setToolTips(ToolTips toolTips) {
+        this.toolTips = toolTips;
+        if (toolTips != null) {
+            ToolTipManager.sharedInstance().registerComponent(this);
+        } else {
+            ToolTipManager.sharedInstance().unregisterComponent(this);
+        }
+    }
+    
+    @Override
+    public String getToolTipText(MouseEvent e) {
+        if (toolTips == null) {
+            return null;
+        }
+        return toolTips.lineToolTip(lineAt(e.getY()));
+    }
+    
+    private int lineAt(int y) {
+        Element root = textPane.getDocument().getDefaultRootElement();
+        return root.getElementIndex(textPane.viewToModel(new Point(0, y)));
+    }
+    
+    private void measure() {
+        Font font = textPane.getFont();
+        setFont(font);
+        FontMetrics metrics = getFontMetrics(font);
+        maxDigitWidth = 0;
+        for (int i = 0; i < 10; i++) {
+            digitWidths[i] = metrics.charWidth((char) ('0' + i));
+            maxDigitWidth = Math.max(maxDigitWidth, digitWidths[i]);
+        }
+    }
+    
+    private void linesChanged(DocumentEvent e) {
+        Element root = textPane.getDocument().getDefaultRootElement();
+        int count = root.getElementCount();
+        if (count != lineCount) {
+            // Markers go with the text of their line: an edit at the start
+            // of a line moves it, one further in splits or joins it
+            int line = root.getElementIndex(e.getOffset());
+            if (root.getElement(line).getStartOffset() != e.getOffset()) {
+                line++;
+            }
+            if (count > lineCount) {
+                markers.linesInserted(line, count - lineCount);
+            } else {
+                markers.linesRemoved(line, lineCount - count);
+            }
+            lineCount = count;
+            int newDigitCount = digitCount(count);
+            if (newDigitCount != digitCount) {
+                digitCount = newDigitCount;
+                revalidate();
+            }
+        }
+        // Lines below may have moved, in number or by wrapping
+        repaint();
+    }
+    
+    private static int digitCount(int lines) {
+        return Math.max(2, Integer.toString(lines).length());
+    }
+    
+    @Override
+    public Dimension getPreferredSize() {
+        // As tall as the text, so the row header scrolls with it
+        return new Dimension(MARKER_WIDTH + digitCount * maxDigitWidth + 2 * PADDING,
+            textPane.getPreferredSize().height);
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        
+        Element root = textPane.getDocument().getDefaultRootElement();
+        int first = root.getElementIndex(textPane.viewToModel(new Point(0, clip.y)));
+        int last = root.getElementIndex(textPane.viewToModel(new Point(0, clip.y + clip.height)));
+        FontMetrics metrics = g.getFontMetrics();
+        ((Graphics2D) g).setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        int marker = markers.ceiling(first);
+        for (int line = first; line <= last; line++) {
+            Rectangle bounds;
+            try {
+                bounds = textPane.modelToView(root.getElement(line).getStartOffset());
+            } catch (BadLocationException e) {
+                break;
+            }
+            if (bounds == null) {
+                // Not laid out yet
+                break;
+            }
+            if (marker < markers.size() && markers.lineAt(marker) == line) {
+                paintMarkers(g, markers.maskAt(marker++), bounds);
+            }
+            paintNumber(g, line + 1, bounds.y + bounds.height - metrics.getDescent());
+        }
+    }
+    
+    /**
+     * Draws a line number right aligned, without making a string of it.
+     */
+    private void paintNumber(Graphics g, int number, int baseline) {
+        int start = digits.length;
+        int width = 0;
+        do {
+            int digit = number % 10;
+            digits[--start] = (char) ('0' + digit);
+            width += digitWidths[digit];
+            number /= 10;
+        } while (number > 0);
+        g.setColor(getForeground());
+        g.drawChars(digits, start, digits.length - start, getWidth() - PADDING - width, baseline);
+    }
+    
+    private void paintMarkers(Graphics g, int mask, Rectangle line) {
+        int centerY = line.y + line.height / 2;
+        int centerX = MARKER_WIDTH / 2 + 1;
+        if ((mask & Marker.BREAKPOINT.mask()) != 0) {
+            g.setColor(BREAKPOINT_COLOR);
+            g.fillOval(centerX - 5, centerY - 5, 10, 10);
+        }
+        // An error or warning shows inside a breakpoint
+        if ((mask & (Marker.ERROR.mask() | Marker.WARNING.mask())) != 0) {
+            g.setColor((mask & Marker.ERROR.mask()) != 0 ? ERROR_COLOR : WARNING_COLOR);
+            g.fillOval(centerX - 3, centerY - 3, 7, 7);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.javaide;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which project files are left out of scans.
+ *
+ * Hidden entries, node_modules and the usual build output directories at the
+ * top of the project are always ignored. On top of that the patterns of
+ * every .gitignore on the way down apply to their own directory, with the
+ * usual rules: the last matching pattern wins, "!" re-includes, a trailing
+ * "/" only matches directories, and a pattern without a "/" in it matches a
+ * name at any depth. Instances are immutable; rules for a subdirectory are
+ * derived from its parent's.
+ */
+public class IgnoreRules {
+    private static final List<String> OUTPUT_DIRS = Arrays.asList("build", "target", "out");
+    
+    private static final IgnoreRules DEFAULTS = new IgnoreRules(new Rule[0]);
+    
+    /**
+     * One .gitignore pattern.
+     */
+    private static class Rule {
+        final String base;
+        // Set instead of pattern for plain names and "*suffix" globs
+        final String literal;
+        final String suffix;
+        final Pattern pattern;
+        final boolean negate;
+        final boolean directoryOnly;
+        final boolean nameOnly;
+        
+        Rule(String base, String glob, boolean negate, boolean directoryOnly, boolean nameOnly) {
+            this.base = base;
+            if (!hasWildcards(glob)) {
+                literal = glob;
+                suffix = null;
+                pattern = null;
+            } else if (glob.startsWith("*") && !hasWildcards(glob.substring(1))) {
+                literal = null;
+                suffix = glob.substring(1);
+                pattern = null;
+            } else {
+                literal = null;
+                suffix = null;
+                pattern = Pattern.compile(toRegex(glob));
+            }
+            this.negate = negate;
+            this.directoryOnly = directoryOnly;
+            this.nameOnly = nameOnly;
+        }
+        
+        boolean matches(String path, String name, boolean directory) {
+            if (directoryOnly && !directory) {
+                return false;
+            }
+            String subject;
+            if (nameOnly) {
+                subject = name;
+            } else if (path.startsWith(base)) {
+                subject = path.substring(base.length());
+            } else {
+                return false;
+            }
+            if (literal != null) {
+                return subject.equals(literal);
+            }
+            if (suffix != null) {
+                // "*" does not cross directories
+                return subject.endsWith(suffix) && subject.lastIndexOf('/', subject.length() - suffix.length()) < 0;
+            }
+            return pattern.matcher(subject).matches();
+        }
+    }
+    
+    private final Rule[] rules;
+    
+    private IgnoreRules(Rule[] rules) {
+        this.rules = rules;
+    }
+    
+    public static IgnoreRules defaults() {
+        return DEFAULTS;
+    }
+    
+    /**
+     * Returns true if the entry is left out.
+     *
+     * @param path path relative to the project root, separated by "/"
+     * @param name last element of the path
+     */
+    public boolean isIgnored(String path, String name, boolean directory) {
+        if (name.startsWith(".")) {
+            return true;
+        }
+        if (directory && (name.equals("node_modules") || (path.equals(name) && OUTPUT_DIRS.contains(name)))) {
+            return true;
+        }
+        for (int i = rules.length - 1; i >= 0; i--) {
+            if (rules[i].matches(path, name, directory)) {
+                return !rules[i].negate;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Adds the patterns of an ignore file.
+     *
+     * @param base directory of the file relative to the project root, empty
+     *             or ending with "/"
+     */
+    public IgnoreRules withIgnoreFile(Path file, String base) throws IOException {
+        List<Rule> added = new ArrayList<>();
+        // A reader made from a charset replaces bytes that are not UTF-8
+        // instead of failing, so one bad line does not cost the rest
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Rule rule = parse(line.trim(), base);
+                if (rule != null) {
+                    added.add(rule);
+                }
+            }
+        }
+        if (added.isEmpty()) {
+            return this;
+        }
+        Rule[] combined = Arrays.copyOf(rules, rules.length + added.size());
+        for (int i = 0; i < added.size(); i++) {
+            combined[rules.length + i] = added.get(i);
+        }
+        return new IgnoreRules(combined);
+    }
+    
+    private static Rule parse(String line, String base) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+        boolean negate = line.startsWith("!");
+        if (negate) {
+            line = line.substring(1);
+        }
+        boolean directoryOnly = line.endsWith("/");
+        if (directoryOnly) {
+            line = line.substring(0, line.length() - 1);
+        }
+        // A slash anywhere but at the end anchors the pattern to its directory
+        boolean nameOnly = line.indexOf('/') < 0;
+        if (line.startsWith("/")) {
+            line = line.substring(1);
+        }
+        if (line.isEmpty()) {
+            return null;
+        }
+        try {
+            return new Rule(base, line, negate, directoryOnly, nameOnly);
+        } catch (PatternSyntaxException e) {
+            // Such as an empty set in "foo[]"; git matches nothing with it
+            return null;
+        }
+    }
+    
+    private static boolean hasWildcards(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            if ("*?[\\".indexOf(glob.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Translates a glob: "*" and "?" stay within one path element, "**"
+     * crosses them.
+     */
+    static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int length = glob.length();
+        for (int i = 0; i < length; i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < length && glob.charAt(i + 1) == '*') {
+                        if (i + 2 < length && glob.charAt(i + 2) == '/') {
+                            regex.append("(?:.*/)?");
+                            i += 2;
+                        } else {
+                            regex.append(".*");
+                            i++;
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end < 0) {
+                        regex.append("\\[");
+                    } else {
+                        String set = glob.substring(i + 1, end);
+                        if (set.startsWith("!")) {
+                            set = "^" + set.substring(1);
+                        }
+                        regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+                        i = end;
+                    }
+                    break;
+                case '\\':
+                    if (i + 1 < length) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                    break;
+                default:
+                    if (".$^{}()+|]".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+                    break;
+            }
+        }
+        return regex.toString();
+    }
+}
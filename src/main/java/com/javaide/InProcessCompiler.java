@@ -0,0 +1,245 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import javax.tools.Diagnostic;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Compiles a project inside the IDE process with javax.tools.
+ *
+ * The compiler and its file manager are created once and reused, so after
+ * the first build the compiler code is JIT compiled and the platform class
+ * path is already indexed; repeat builds skip JVM startup and most of the
+ * warm-up a javac process pays every time. Builds run on a background
+ * thread and report their diagnostics as objects on the EDT.
+ */
+public class InProcessCompiler {
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Compiler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Outcome of a build.
+     */
+    public static class Result {
+        public final boolean success;
+        public final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+        public final int fileCount;
+        public final int compiledCount;
+        public final boolean full;
+        public final long nanos;
+        
+        Result(boolean success, List<Diagnostic<? extends JavaFileObject>> diagnostics,
+               int fileCount, int compiledCount, boolean full, long nanos) {
+            this.success = success;
+            this.diagnostics = diagnostics;
+            this.fileCount = fileCount;
+            this.compiledCount = compiledCount;
+            this.full = full;
+            this.nanos = nanos;
+        }
+    }
+    
+    /**
+     * Receives the result of a build on the EDT.
+     */
+    public interface Listener {
+        void finished(Result result);
+        
+        void failed(Exception e);
+    }
+    
+    private final JavaCompiler compiler;
+    private final StandardJavaFileManager fileManager;
+    private final Map<File, IncrementalBuilder> builders = new HashMap<>();
+    
+    private InProcessCompiler(JavaCompiler compiler) {
+        this.compiler = compiler;
+        this.fileManager = compiler.getStandardFileManager(null, null, Charset.forName("UTF-8"));
+    }
+    
+    /**
+     * Returns null when running on a JRE without the compiler.
+     */
+    public static InProcessCompiler create() {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        return compiler != null ? new InProcessCompiler(compiler) : null;
+    }
+    
+    /**
+     * Source root of a project: src/main/java if it exists, src otherwise.
+     */
+    public static File sourceRoot(File projectDir) {
+        File mainJava = new File(projectDir, "src/main/java");
+        return mainJava.isDirectory() ? mainJava : new File(projectDir, "src");
+    }
+    
+    public static File outputDir(File projectDir) {
+        return new File(projectDir, "build/classes");
+    }
+    
+    /**
+     * Collects the .java files below dir in a stable order.
+     */
+    public static List<File> findSources(File dir) {
+        List<File> sources = new ArrayList<>();
+        collectSources(dir, sources);
+        return sources;
+    }
+    
+    /**
+     * Collects the .java files below dir from the project snapshot, which
+     * leaves out ignored files and needs no file system walk. Falls back to
+     * walking dir when there is no snapshot of its project yet.
+     */
+    public static List<File> findSources(File dir, ProjectSnapshot snapshot) {
+        if (snapshot == null || !isInside(snapshot.getRoot(), dir)) {
+            return findSources(dir);
+        }
+        List<File> sources = new ArrayList<>();
+        String path = dir.getPath().substring(snapshot.getRoot().getPath().length());
+        int index = snapshot.find(path.replace(File.separatorChar, '/'));
+        if (index >= 0 && snapshot.isDirectory(index)) {
+            collectSources(snapshot, index, sources);
+        }
+        return sources;
+    }
+    
+    private static boolean isInside(File root, File dir) {
+        String rootPath = root.getPath();
+        String path = dir.getPath();
+        return path.equals(rootPath) || path.startsWith(rootPath + File.separator);
+    }
+    
+    private static void collectSources(ProjectSnapshot snapshot, int dir, List<File> sources) {
+        int first = snapshot.getFirstChild(dir);
+        for (int i = first; i < first + snapshot.getChildCount(dir); i++) {
+            if (snapshot.isDirectory(i)) {
+                collectSources(snapshot, i, sources);
+            } else if (snapshot.getName(i).endsWith(".java")) {
+                sources.add(snapshot.getFile(i));
+            }
+        }
+    }
+    
+    private static void collectSources(File dir, List<File> sources) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectSources(file, sources);
+            } else if (file.getName().endsWith(".java")) {
+                sources.add(file);
+            }
+        }
+    }
+    
+    /**
+     * Brings build/classes up to date with the project sources in the
+     * background, see {@link IncrementalBuilder}. The sources are taken from
+     * the snapshot when there is one.
+     */
+    public void build(final File projectDir, final ProjectSnapshot snapshot, final Listener listener) {
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Result result = compile(projectDir, snapshot);
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.finished(result);
+                        }
+                    });
+                } catch (final Exception e) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.failed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+    
+    private Result compile(File projectDir, ProjectSnapshot snapshot) throws IOException {
+        long start = System.nanoTime();
+        IncrementalBuilder builder = builders.get(projectDir);
+        if (builder == null) {
+            builder = new IncrementalBuilder(compiler, fileManager, projectDir);
+            builders.put(projectDir, builder);
+        }
+        IncrementalBuilder.Outcome outcome = builder.build(snapshot);
+        return new Result(outcome.success, outcome.diagnostics, outcome.sourceCount,
+            outcome.compiledCount, outcome.full, System.nanoTime() - start);
+    }
+    
+    /**
+     * Jars in the project's lib directory.
+     */
+    static List<File> classPath(File projectDir) {
+        List<File> classPath = new ArrayList<>();
+        File[] jars = new File(projectDir, "lib").listFiles();
+        if (jars != null) {
+            Arrays.sort(jars);
+            for (File jar : jars) {
+                if (jar.getName().endsWith(".jar")) {
+                    classPath.add(jar);
+                }
+            }
+        }
+        return classPath;
+    }
+    
+    /**
+     * Formats a diagnostic the way javac prints it.
+     */
+    public static String format(Diagnostic<? extends JavaFileObject> diagnostic) {
+        StringBuilder text = new StringBuilder();
+        if (diagnostic.getSource() != null) {
+            text.append(diagnostic.getSource().getName());
+            if (diagnostic.getLineNumber() != Diagnostic.NOPOS) {
+                text.append(':').append(diagnostic.getLineNumber());
+            }
+            text.append(": ");
+        }
+        String kind;
+        switch (diagnostic.getKind()) {
+            case ERROR:
+                kind = "error";
+                break;
+            case WARNING:
+            case MANDATORY_WARNING:
+                kind = "warning";
+                break;
+            default:
+                kind = "note";
+                break;
+        }
+        text.append(kind).append(": ").append(diagnostic.getMessage(null));
+        return text.toString();
+    }
+}
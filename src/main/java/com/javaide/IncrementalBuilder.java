@@ -0,0 +1,707 @@
+package com.javaide;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Incremental build of one project with a shared compiler.
+ *
+ * After every compile the class files written for each source are read
+ * back to record which classes the source defines, which classes they
+ * reference and a hash of their non-private API. The next build only
+ * compiles sources whose content changed, then keeps adding the sources
+ * that reference a class whose API changed until nothing changes any more.
+ * Everything else is resolved from the class files already in the output
+ * directory.
+ *
+ * Constants are inlined by javac and leave no trace in the class files that
+ * use them, so an API change in a class declaring constants, a different
+ * class path or missing state all fall back to a full rebuild. The state is
+ * kept in memory and saved next to the output directory, so the first build
+ * after a restart is incremental too.
+ */
+public class IncrementalBuilder {
+    private static final int STATE_VERSION = 2;
+    private static final String STATE_FILE = "javaide-build.state";
+    
+    private static final List<String> OPTIONS = Arrays.asList("-g", "-encoding", "UTF-8");
+    
+    /**
+     * What the last successful compile of a source produced.
+     */
+    static class SourceState {
+        long lastModified;
+        long length;
+        long hash;
+        boolean failed;
+        List<ClassInfo> classes = new ArrayList<>();
+    }
+    
+    /**
+     * Facts about one class file, see {@link #readClass}.
+     */
+    static class ClassInfo {
+        String name;
+        long apiHash;
+        boolean hasConstants;
+        List<String> supertypes = new ArrayList<>();
+        Set<String> references = new HashSet<>();
+    }
+    
+    /**
+     * Outcome of a build, before it is wrapped into an InProcessCompiler.Result.
+     */
+    static class Outcome {
+        boolean success = true;
+        boolean full;
+        int sourceCount;
+        int compiledCount;
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<>();
+    }
+    
+    private final JavaCompiler compiler;
+    private final StandardJavaFileManager fileManager;
+    private final File projectDir;
+    private final File outputDir;
+    private final File stateFile;
+    
+    // Keyed by source path relative to the source root
+    private Map<String, SourceState> sources;
+    private String classPathKey;
+    
+    IncrementalBuilder(JavaCompiler compiler, StandardJavaFileManager fileManager, File projectDir) {
+        this.compiler = compiler;
+        this.fileManager = fileManager;
+        this.projectDir = projectDir;
+        this.outputDir = InProcessCompiler.outputDir(projectDir);
+        this.stateFile = new File(outputDir.getParentFile(), STATE_FILE);
+    }
+    
+    Outcome build(ProjectSnapshot snapshot) throws IOException {
+        File sourceRoot = InProcessCompiler.sourceRoot(projectDir);
+        List<File> files = InProcessCompiler.findSources(sourceRoot, snapshot);
+        Map<String, File> current = new HashMap<>();
+        for (File file : files) {
+            current.put(relativePath(sourceRoot, file), file);
+        }
+        
+        List<File> classPath = InProcessCompiler.classPath(projectDir);
+        String newClassPathKey = classPathKey(classPath);
+        if (sources == null) {
+            loadState();
+        }
+        
+        Outcome outcome = new Outcome();
+        outcome.sourceCount = files.size();
+        if (sources == null || !newClassPathKey.equals(classPathKey) || !outputDir.isDirectory()) {
+            classPathKey = newClassPathKey;
+            fullBuild(current, classPath, outcome);
+        } else {
+            incrementalBuild(current, classPath, outcome);
+        }
+        saveState();
+        return outcome;
+    }
+    
+    private void fullBuild(Map<String, File> current, List<File> classPath, Outcome outcome)
+            throws IOException {
+        outcome.full = true;
+        deleteClassFiles(outputDir);
+        sources = new HashMap<>();
+        compile(current.keySet(), current, classPath, outcome);
+    }
+    
+    private void incrementalBuild(Map<String, File> current, List<File> classPath, Outcome outcome)
+            throws IOException {
+        Set<String> dirty = new LinkedHashSet<>();
+        for (Map.Entry<String, File> entry : current.entrySet()) {
+            SourceState state = sources.get(entry.getKey());
+            File file = entry.getValue();
+            if (state == null || state.failed) {
+                dirty.add(entry.getKey());
+            } else if (state.lastModified != file.lastModified() || state.length != file.length()) {
+                long hash = hash(file);
+                if (hash != state.hash) {
+                    dirty.add(entry.getKey());
+                } else {
+                    // Touched but not changed
+                    state.lastModified = file.lastModified();
+                    state.length = file.length();
+                }
+            }
+        }
+        
+        // Sources that were deleted take their classes with them
+        Set<String> removedClasses = new HashSet<>();
+        for (String path : new ArrayList<>(sources.keySet())) {
+            if (!current.containsKey(path)) {
+                for (ClassInfo info : sources.remove(path).classes) {
+                    removedClasses.add(info.name);
+                    classFile(info.name).delete();
+                }
+            }
+        }
+        dirty.addAll(dependents(removedClasses));
+        dirty.retainAll(current.keySet());
+        
+        Set<String> compiled = new HashSet<>();
+        while (!dirty.isEmpty()) {
+            Map<String, ClassInfo> before = new HashMap<>();
+            for (String path : dirty) {
+                SourceState state = sources.get(path);
+                if (state != null) {
+                    for (ClassInfo info : state.classes) {
+                        before.put(info.name, info);
+                    }
+                }
+            }
+            
+            if (!compile(dirty, current, classPath, outcome)) {
+                return;
+            }
+            compiled.addAll(dirty);
+            
+            // Classes whose API changed, appeared or disappeared
+            Set<String> changed = new HashSet<>();
+            boolean constantsChanged = false;
+            for (String path : dirty) {
+                for (ClassInfo info : sources.get(path).classes) {
+                    ClassInfo old = before.remove(info.name);
+                    if (old == null || old.apiHash != info.apiHash) {
+                        changed.add(info.name);
+                        constantsChanged |= info.hasConstants || (old != null && old.hasConstants);
+                    }
+                }
+            }
+            for (ClassInfo old : before.values()) {
+                changed.add(old.name);
+                constantsChanged |= old.hasConstants;
+            }
+            if (constantsChanged) {
+                // Users of inlined constants cannot be found
+                outcome.compiledCount = 0;
+                outcome.diagnostics.clear();
+                fullBuild(current, classPath, outcome);
+                return;
+            }
+            
+            addSubtypes(changed);
+            dirty = dependents(changed);
+            dirty.removeAll(compiled);
+        }
+    }
+    
+    /**
+     * Compiles the given sources and records what they produced. Returns
+     * false if compilation failed, the sources are then retried next time.
+     */
+    private boolean compile(Set<String> paths, Map<String, File> current, List<File> classPath,
+                            Outcome outcome) throws IOException {
+        if (paths.isEmpty()) {
+            return true;
+        }
+        List<File> files = new ArrayList<>();
+        Map<File, String> pathsByFile = new HashMap<>();
+        for (String path : paths) {
+            File file = current.get(path);
+            files.add(file);
+            pathsByFile.put(file.getAbsoluteFile(), path);
+            SourceState state = sources.get(path);
+            if (state != null) {
+                // Stale nested and local classes must not survive
+                for (ClassInfo info : state.classes) {
+                    classFile(info.name).delete();
+                }
+            }
+        }
+        
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create " + outputDir);
+        }
+        fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(outputDir));
+        List<File> fullClassPath = new ArrayList<>();
+        fullClassPath.add(outputDir);
+        fullClassPath.addAll(classPath);
+        fileManager.setLocation(StandardLocation.CLASS_PATH, fullClassPath);
+        // Unchanged classes come from the output directory, never from sources
+        fileManager.setLocation(StandardLocation.SOURCE_PATH, Collections.<File>emptyList());
+        
+        RecordingFileManager recorder = new RecordingFileManager(fileManager);
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        boolean success = compiler.getTask(null, recorder, diagnostics, OPTIONS, null,
+            fileManager.getJavaFileObjectsFromFiles(files)).call();
+        outcome.diagnostics.addAll(diagnostics.getDiagnostics());
+        outcome.compiledCount += files.size();
+        
+        Map<String, SourceState> produced = new HashMap<>();
+        for (Map.Entry<String, File> output : recorder.outputs.entrySet()) {
+            String path = pathsByFile.get(output.getValue());
+            if (path == null) {
+                continue;
+            }
+            SourceState state = produced.get(path);
+            if (state == null) {
+                state = new SourceState();
+                produced.put(path, state);
+            }
+            state.classes.add(readClass(classFile(output.getKey())));
+        }
+        
+        for (String path : paths) {
+            File file = current.get(path);
+            SourceState state = produced.get(path);
+            if (!success) {
+                // Keep the old classes known so dependents can still be found
+                SourceState old = sources.get(path);
+                state = old != null ? old : new SourceState();
+                state.failed = true;
+            } else if (state == null) {
+                // Sources without classes, e.g. package-info.java
+                state = new SourceState();
+            }
+            state.lastModified = file.lastModified();
+            state.length = file.length();
+            state.hash = hash(file);
+            sources.put(path, state);
+        }
+        outcome.success = success;
+        return success;
+    }
+    
+    /**
+     * Sources with a class referencing one of the given classes.
+     */
+    private Set<String> dependents(Set<String> classes) {
+        Set<String> result = new LinkedHashSet<>();
+        if (classes.isEmpty()) {
+            return result;
+        }
+        for (Map.Entry<String, SourceState> entry : sources.entrySet()) {
+            for (ClassInfo info : entry.getValue().classes) {
+                if (!Collections.disjoint(info.references, classes)) {
+                    result.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Adds the classes that inherit from a changed class, their inherited
+     * API changed too even though their own class files did not.
+     */
+    private void addSubtypes(Set<String> changed) {
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (SourceState state : sources.values()) {
+                for (ClassInfo info : state.classes) {
+                    if (!changed.contains(info.name) && !Collections.disjoint(info.supertypes, changed)) {
+                        changed.add(info.name);
+                        grown = true;
+                    }
+                }
+            }
+        }
+    }
+    
+    private File classFile(String binaryName) {
+        return new File(outputDir, binaryName.replace('.', File.separatorChar) + ".class");
+    }
+    
+    /**
+     * Remembers which source every class file was written for.
+     */
+    private static class RecordingFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+        final Map<String, File> outputs = new HashMap<>();
+        
+        RecordingFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+        
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling)
+                throws IOException {
+            if (kind == JavaFileObject.Kind.CLASS && sibling != null) {
+                outputs.put(className, new File(sibling.toUri()).getAbsoluteFile());
+            }
+            return super.getJavaFileForOutput(location, className, kind, sibling);
+        }
+    }
+    
+    /**
+     * Reads the name, the referenced classes and the API hash of a class
+     * file. References are taken from class constants and from every type
+     * descriptor or signature in the constant pool, which may add a few
+     * false positives but never misses a type the class was compiled against.
+     */
+    /**
+     * Length of a constant pool entry after its tag, or -1 for a tag this
+     * reader does not know. Utf8 entries are 2 plus the length they start
+     * with, so they are not covered.
+     */
+    static int constantLength(int tag) {
+        switch (tag) {
+            case 7:
+            case 8:
+            case 16:
+            case 19:
+            case 20:
+                // Class, String, MethodType, Module, Package
+                return 2;
+            case 15:
+                // MethodHandle
+                return 3;
+            case 3:
+            case 4:
+            case 9:
+            case 10:
+            case 11:
+            case 12:
+            case 17:
+            case 18:
+                // Integer, Float, references, NameAndType, Dynamic, InvokeDynamic
+                return 4;
+            case 5:
+            case 6:
+                // Long, Double
+                return 8;
+            default:
+                return -1;
+        }
+    }
+    
+    static ClassInfo readClass(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            ClassInfo info = new ClassInfo();
+            in.readInt();
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+            
+            int poolSize = in.readUnsignedShort();
+            byte[] skipped = new byte[8];
+            String[] utf8 = new String[poolSize];
+            int[] classNames = new int[poolSize];
+            // Literal values, with strings as indexes into utf8
+            long[] literals = new long[poolSize];
+            List<Integer> classIndexes = new ArrayList<>();
+            for (int i = 1; i < poolSize; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1:
+                        utf8[i] = in.readUTF();
+                        break;
+                    case 7:
+                        classNames[i] = in.readUnsignedShort();
+                        classIndexes.add(i);
+                        break;
+                    case 8:
+                        literals[i] = in.readUnsignedShort();
+                        break;
+                    case 3:
+                    case 4:
+                        literals[i] = in.readInt();
+                        break;
+                    case 5:
+                    case 6:
+                        literals[i] = in.readLong();
+                        i++;
+                        break;
+                    default:
+                        int length = constantLength(tag);
+                        if (length < 0) {
+                            throw new IOException("Unknown constant pool tag " + tag + " in " + file);
+                        }
+                        in.readFully(skipped, 0, length);
+                        break;
+                }
+            }
+            
+            for (int index : classIndexes) {
+                addTypeName(utf8[classNames[index]], info.references);
+            }
+            for (String value : utf8) {
+                if (value != null && value.indexOf(';') > 0) {
+                    addDescriptorTypes(value, info.references);
+                }
+            }
+            
+            Hasher api = new Hasher();
+            int access = in.readUnsignedShort();
+            info.name = utf8[classNames[in.readUnsignedShort()]].replace('/', '.');
+            int superClass = in.readUnsignedShort();
+            if (superClass != 0) {
+                info.supertypes.add(utf8[classNames[superClass]].replace('/', '.'));
+            }
+            int interfaceCount = in.readUnsignedShort();
+            for (int i = 0; i < interfaceCount; i++) {
+                info.supertypes.add(utf8[classNames[in.readUnsignedShort()]].replace('/', '.'));
+            }
+            api.add(access);
+            for (String supertype : info.supertypes) {
+                api.add(supertype);
+            }
+            
+            // Fields, then methods, each with their attributes
+            for (int kind = 0; kind < 2; kind++) {
+                int count = in.readUnsignedShort();
+                for (int i = 0; i < count; i++) {
+                    int memberAccess = in.readUnsignedShort();
+                    String name = utf8[in.readUnsignedShort()];
+                    String descriptor = utf8[in.readUnsignedShort()];
+                    boolean visible = (memberAccess & 0x0002) == 0;
+                    if (visible) {
+                        api.add(kind).add(memberAccess).add(name).add(descriptor);
+                    }
+                    int attributeCount = in.readUnsignedShort();
+                    for (int a = 0; a < attributeCount; a++) {
+                        String attribute = utf8[in.readUnsignedShort()];
+                        int length = in.readInt();
+                        if (kind == 0 && visible && "ConstantValue".equals(attribute)) {
+                            // Hash the value itself, its pool index may stay the same
+                            int index = in.readUnsignedShort();
+                            info.hasConstants = true;
+                            if (descriptor.equals("Ljava/lang/String;")) {
+                                api.add(utf8[(int) literals[index]]);
+                            } else {
+                                api.add((int) literals[index]).add((int) (literals[index] >>> 32));
+                            }
+                            length -= 2;
+                        } else if (visible && "Signature".equals(attribute)) {
+                            // Type arguments, which erased descriptors leave out
+                            api.add(attribute).add(utf8[in.readUnsignedShort()]);
+                            length -= 2;
+                        } else if (visible && "Exceptions".equals(attribute)) {
+                            int exceptionCount = in.readUnsignedShort();
+                            api.add(attribute).add(exceptionCount);
+                            for (int x = 0; x < exceptionCount; x++) {
+                                api.add(utf8[classNames[in.readUnsignedShort()]]);
+                            }
+                            length -= 2 + 2 * exceptionCount;
+                        }
+                        in.skipBytes(length);
+                    }
+                }
+            }
+            
+            // The class's own generic signature, such as Comparable<A>
+            int attributeCount = in.readUnsignedShort();
+            for (int a = 0; a < attributeCount; a++) {
+                String attribute = utf8[in.readUnsignedShort()];
+                int length = in.readInt();
+                if ("Signature".equals(attribute)) {
+                    api.add(attribute).add(utf8[in.readUnsignedShort()]);
+                    length -= 2;
+                }
+                in.skipBytes(length);
+            }
+            info.apiHash = api.value();
+            info.references.remove(info.name);
+            return info;
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static void addTypeName(String internalName, Set<String> names) {
+        if (internalName.startsWith("[")) {
+            addDescriptorTypes(internalName, names);
+        } else {
+            names.add(internalName.replace('/', '.'));
+        }
+    }
+    
+    /**
+     * Adds every L...; type in a descriptor or generic signature.
+     */
+    private static void addDescriptorTypes(String descriptor, Set<String> names) {
+        int start = descriptor.indexOf('L');
+        while (start >= 0) {
+            int end = start + 1;
+            while (end < descriptor.length() && ";<.".indexOf(descriptor.charAt(end)) < 0) {
+                end++;
+            }
+            if (end < descriptor.length() && end > start + 1) {
+                names.add(descriptor.substring(start + 1, end).replace('/', '.'));
+            }
+            start = descriptor.indexOf('L', end);
+        }
+    }
+    
+    /**
+     * 64-bit FNV-1a over ints and strings.
+     */
+    private static class Hasher {
+        private long hash = 0xcbf29ce484222325L;
+        
+        Hasher add(int value) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                hash = (hash ^ ((value >>> shift) & 0xFF)) * 0x100000001b3L;
+            }
+            return this;
+        }
+        
+        Hasher add(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+            return add(value.length());
+        }
+        
+        long value() {
+            return hash;
+        }
+    }
+    
+    private static long hash(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue() ^ (file.length() << 32);
+    }
+    
+    private static String relativePath(File root, File file) {
+        return file.getPath().substring(root.getPath().length() + 1);
+    }
+    
+    private static String classPathKey(List<File> classPath) {
+        StringBuilder key = new StringBuilder();
+        for (File entry : classPath) {
+            key.append(entry.getPath()).append('@').append(entry.lastModified()).append(';');
+        }
+        return key.toString();
+    }
+    
+    private static void deleteClassFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deleteClassFiles(file);
+            } else if (file.getName().endsWith(".class")) {
+                file.delete();
+            }
+        }
+    }
+    
+    private void loadState() {
+        if (!stateFile.isFile()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            try {
+                if (in.readInt() != STATE_VERSION) {
+                    return;
+                }
+                String key = in.readUTF();
+                Map<String, SourceState> loaded = new HashMap<>();
+                int sourceCount = in.readInt();
+                for (int i = 0; i < sourceCount; i++) {
+                    String path = in.readUTF();
+                    SourceState state = new SourceState();
+                    state.lastModified = in.readLong();
+                    state.length = in.readLong();
+                    state.hash = in.readLong();
+                    state.failed = in.readBoolean();
+                    int classCount = in.readInt();
+                    for (int c = 0; c < classCount; c++) {
+                        ClassInfo info = new ClassInfo();
+                        info.name = in.readUTF();
+                        info.apiHash = in.readLong();
+                        info.hasConstants = in.readBoolean();
+                        int supertypeCount = in.readInt();
+                        for (int t = 0; t < supertypeCount; t++) {
+                            info.supertypes.add(in.readUTF());
+                        }
+                        int referenceCount = in.readInt();
+                        for (int r = 0; r < referenceCount; r++) {
+                            info.references.add(in.readUTF());
+                        }
+                        state.classes.add(info);
+                    }
+                    loaded.put(path, state);
+                }
+                sources = loaded;
+                classPathKey = key;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // A broken state only costs a full build
+            sources = null;
+        }
+    }
+    
+    private void saveState() throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stateFile)));
+        try {
+            out.writeInt(STATE_VERSION);
+            out.writeUTF(classPathKey);
+            out.writeInt(sources.size());
+            for (Map.Entry<String, SourceState> entry : sources.entrySet()) {
+                SourceState state = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(state.lastModified);
+                out.writeLong(state.length);
+                out.writeLong(state.hash);
+                out.writeBoolean(state.failed);
+                out.writeInt(state.classes.size());
+                for (ClassInfo info : state.classes) {
+                    out.writeUTF(info.name);
+                    out.writeLong(info.apiHash);
+                    out.writeBoolean(info.hasConstants);
+                    out.writeInt(info.supertypes.size());
+                    for (String supertype : info.supertypes) {
+                        out.writeUTF(supertype);
+                    }
+                    out.writeInt(info.references.size());
+                    for (String reference : info.references) {
+                        out.writeUTF(reference);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
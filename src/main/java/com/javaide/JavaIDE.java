@@ -1,20 +1,20 @@
 package com.javaide;
 
 import javax.swing.*;
-import javax.swing.border.EmptyBorder;
 import javax.swing.event.TreeSelectionEvent;
 import javax.swing.event.TreeSelectionListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreePath;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 /**
  * JavaIDE - A Java IDE built with Swing
@@ -26,12 +26,35 @@ import java.util.Map;
  * - Project Management
  */
 public class JavaIDE extends JFrame {
+    // Find Usages lists at most this many
+    private static final int MAX_USAGES = 1000;
+    
     private String currentProjectPath;
+    // Latest scan of the open project, null until the first scan finishes
+    private ProjectSnapshot projectSnapshot;
+    private FileIndex fileIndex;
+    private SymbolIndex symbolIndex;
+    private WorkspaceCache workspaceCache;
+    private final CompletionEngine completionEngine = new CompletionEngine();
+    // Null when running without a compiler
+    private final DiagnosticsEngine diagnosticsEngine = DiagnosticsEngine.create();
+    // Null if the journal could not be started
+    private EditJournal editJournal;
+    // Kept between uses so results and the index stay loaded
+    private FindInFilesDialog findInFilesDialog;
     private JTree fileTree;
     private DefaultTreeModel treeModel;
+    private ProjectTreeLoader treeLoader;
+    private ProjectWatcher projectWatcher;
     private JTabbedPane editorNotebook;
-    private JTextArea outputView;
-    private Map<JScrollPane, EditorTab> tabMap;
+    private OutputConsole outputView;
+    private TabManager tabManager;
+    private ConsoleTask runningTask;
+    private EmbeddedAnt embeddedAnt;
+    private boolean antLoaded;
+    private InProcessCompiler compiler;
+    private JButton stopBtn;
+    private JMenuItem stopItem;
     
     public JavaIDE() {
         super("JavaIDE - Java Development Environment");
@@ -39,8 +62,6 @@ public class JavaIDE extends JFrame {
         setSize(1200, 800);
         setLocationRelativeTo(null);
         
-        tabMap = new HashMap<>();
-        
         createMenuBar();
         createToolbar();
         createMainPanel();
@@ -52,6 +73,20 @@ public class JavaIDE extends JFrame {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                closeEditJournal();
+            }
+        });
+        // Asks once the window is showing
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                startEditJournal();
+            }
+        });
     }
     
     private void createMenuBar() {
@@ -81,6 +116,17 @@ public class JavaIDE extends JFrame {
         });
         fileMenu.add(openFileItem);
         
+        JMenuItem goToFileItem = new JMenuItem("Go to File...");
+        goToFileItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_N, 
+            InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
+        goToFileItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                onGoToFile();
+            }
+        });
+        fileMenu.add(goToFileItem);
+        
         JMenuItem saveFileItem = new JMenuItem("Save File", KeyEvent.VK_S);
         saveFileItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, InputEvent.CTRL_DOWN_MASK));
         saveFileItem.addActionListener(new ActionListener() {
@@ -102,6 +148,17 @@ public class JavaIDE extends JFrame {
         });
         fileMenu.add(saveAsItem);
         
+        JMenuItem saveAllItem = new JMenuItem("Save All");
+        saveAllItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S,
+            InputEvent.CTRL_DOWN_MASK | InputEvent.ALT_DOWN_MASK));
+        saveAllItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                onSaveAll();
+            }
+        });
+        fileMenu.add(saveAllItem);
+        
         fileMenu.addSeparator();
         
         JMenuItem openProjectItem = new JMenuItem("Open Project");
@@ -129,6 +186,7 @@ public class JavaIDE extends JFrame {
         quitItem.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
+                closeEditJournal();
                 System.exit(0);
             }
         });
@@ -193,6 +251,49 @@ public class JavaIDE extends JFrame {
         });
         editMenu.add(pasteItem);
         
+        editMenu.addSeparator();
+        
+        JMenuItem findInFilesItem = new JMenuItem("Find in Files...");
+        findInFilesItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, 
+            InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
+        findInFilesItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                onFindInFiles();
+            }
+        });
+        editMenu.add(findInFilesItem);
+        
+        JMenuItem goToDeclarationItem = new JMenuItem("Go to Declaration");
+        goToDeclarationItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_B, InputEvent.CTRL_DOWN_MASK));
+        goToDeclarationItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                onGoToDeclaration();
+            }
+        });
+        editMenu.add(goToDeclarationItem);
+        
+        JMenuItem findUsagesItem = new JMenuItem("Find Usages");
+        findUsagesItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F7, InputEvent.ALT_DOWN_MASK));
+        findUsagesItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                onFindUsages();
+            }
+        });
+        editMenu.add(findUsagesItem);
+        
+        JMenuItem completeItem = new JMenuItem("Complete Code");
+        completeItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_SPACE, InputEvent.CTRL_DOWN_MASK));
+        completeItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                onCompleteCode();
+            }
+        });
+        editMenu.add(completeItem);
+        
         menuBar.add(editMenu);
         
         // Build menu
@@ -227,6 +328,27 @@ public class JavaIDE extends JFrame {
         });
         buildMenu.add(cleanItem);
         
+        stopItem = new JMenuItem("Stop");
+        stopItem.setEnabled(false);
+        stopItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                onStop();
+            }
+        });
+        buildMenu.add(stopItem);
+        
+        buildMenu.addSeparator();
+        JMenuItem diagnosticsItem = new JMenuItem("Diagnostics Statistics");
+        diagnosticsItem.setEnabled(diagnosticsEngine != null);
+        diagnosticsItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                appendOutput(diagnosticsEngine.statistics());
+            }
+        });
+        buildMenu.add(diagnosticsItem);
+        
         menuBar.add(buildMenu);
         
         // View menu
@@ -325,6 +447,17 @@ public class JavaIDE extends JFrame {
         });
         toolbar.add(runBtn);
         
+        stopBtn = new JButton("Stop");
+        stopBtn.setToolTipText("Stop Running Process");
+        stopBtn.setEnabled(false);
+        stopBtn.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                onStop();
+            }
+        });
+        toolbar.add(stopBtn);
+        
         add(toolbar, BorderLayout.NORTH);
     }
     
@@ -358,20 +491,21 @@ public class JavaIDE extends JFrame {
     private void createFileBrowser() {
         DefaultMutableTreeNode root = new DefaultMutableTreeNode("No Project");
         treeModel = new DefaultTreeModel(root);
+        // Directories that turn out empty still show as folders
+        treeModel.setAsksAllowsChildren(true);
         fileTree = new JTree(treeModel);
         fileTree.setRootVisible(true);
         fileTree.setShowsRootHandles(true);
+        treeLoader = new ProjectTreeLoader(treeModel);
+        fileTree.addTreeWillExpandListener(treeLoader);
         fileTree.addTreeSelectionListener(new TreeSelectionListener() {
             @Override
             public void valueChanged(TreeSelectionEvent e) {
                 TreePath path = e.getPath();
                 if (path != null) {
-                    DefaultMutableTreeNode node = (DefaultMutableTreeNode) path.getLastPathComponent();
-                    if (node.getUserObject() instanceof FileInfo) {
-                        FileInfo info = (FileInfo) node.getUserObject();
-                        if (info.isFile()) {
-                            onFileSelected(info.getPath());
-                        }
+                    Object node = path.getLastPathComponent();
+                    if (node instanceof FileNode && !((FileNode) node).isDirectory()) {
+                        onFileSelected(((FileNode) node).getFile().getPath());
                     }
                 }
             }
@@ -381,117 +515,312 @@ public class JavaIDE extends JFrame {
     private void createEditor() {
         editorNotebook = new JTabbedPane();
         editorNotebook.setTabPlacement(JTabbedPane.TOP);
+        tabManager = new TabManager(editorNotebook, new TabManager.Factory() {
+            @Override
+            public EditorTab create(File file) {
+                return createEditorTab(file);
+            }
+        });
     }
     
     private void createOutputPanel() {
-        outputView = new JTextArea();
-        outputView.setEditable(false);
-        outputView.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-        outputView.setBackground(Color.BLACK);
-        outputView.setForeground(Color.GREEN);
+        outputView = new OutputConsole();
     }
     
     private void loadProjectTree(String path) {
-        File projectPath = new File(path);
-        DefaultMutableTreeNode root = new DefaultMutableTreeNode(new FileInfo(path, false));
+        if (projectWatcher != null) {
+            projectWatcher.close();
+        }
+        projectWatcher = createWatcher();
+        treeLoader.reset(projectWatcher);
+        projectSnapshot = null;
+        fileIndex = new FileIndex(new File(path));
+        symbolIndex = new SymbolIndex(new File(path));
+        completionEngine.setSymbolIndex(symbolIndex);
+        if (diagnosticsEngine != null) {
+            diagnosticsEngine.setProject(new File(path));
+        }
+        workspaceCache = new WorkspaceCache(new File(path));
+        if (findInFilesDialog != null) {
+            findInFilesDialog.dispose();
+            findInFilesDialog = null;
+        }
+        
+        FileNode root = new FileNode(new File(path), true);
         treeModel.setRoot(root);
-        loadDirectory(root, projectPath);
+        // The tree expands a new root without asking the loader
+        treeLoader.load(root);
         fileTree.expandPath(new TreePath(root.getPath()));
+        loadWorkspaceCache(new File(path));
     }
     
-    private void loadDirectory(DefaultMutableTreeNode parent, File dirPath) {
-        try {
-            File[] files = dirPath.listFiles();
-            if (files == null) {
-                return;
+    /**
+     * Starts with the cached snapshot and symbols if there are any; the scan
+     * that follows picks up whatever changed since they were saved.
+     */
+    private void loadWorkspaceCache(final File projectDir) {
+        workspaceCache.loadLater(new WorkspaceCache.Listener() {
+            @Override
+            public void loaded(ProjectSnapshot snapshot, SymbolIndex symbols) {
+                if (!projectDir.getPath().equals(currentProjectPath)) {
+                    return;
+                }
+                // A scan that finished first is newer than the cache
+                if (projectSnapshot == null) {
+                    projectSnapshot = snapshot;
+                    fileIndex.updateLater(snapshot);
+                    symbolIndex = symbols;
+                    completionEngine.setSymbolIndex(symbols);
+                }
+                scanProject(projectDir);
             }
             
-            // Sort files
-            Arrays.sort(files, new Comparator<File>() {
-                @Override
-                public int compare(File f1, File f2) {
-                    return f1.getName().compareTo(f2.getName());
+            @Override
+            public void missing() {
+                if (projectDir.getPath().equals(currentProjectPath)) {
+                    scanProject(projectDir);
                 }
-            });
+            }
+        });
+    }
+    
+    private void scanProject(final File projectDir) {
+        ProjectScanner.scan(projectDir, new ProjectScanner.Listener() {
+            @Override
+            public void finished(ProjectSnapshot snapshot) {
+                // Ignore scans of a project that was replaced meanwhile
+                if (!projectDir.getPath().equals(currentProjectPath)) {
+                    return;
+                }
+                projectSnapshot = snapshot;
+                fileIndex.updateLater(snapshot);
+                updateSymbols(projectDir, snapshot);
+                if (findInFilesDialog != null) {
+                    findInFilesDialog.setSnapshot(snapshot);
+                }
+                // Watch the scanned directories so the snapshot can be renewed
+                if (projectWatcher != null) {
+                    for (int i = 0; i < snapshot.size(); i++) {
+                        if (snapshot.isDirectory(i)) {
+                            projectWatcher.watch(snapshot.getFile(i));
+                        }
+                    }
+                }
+            }
             
-            for (File file : files) {
-                if (file.getName().startsWith(".")) {
-                    continue;
+            @Override
+            public void failed(IOException e) {
+                appendOutput("Cannot scan project: " + e.getMessage() + "\n");
+            }
+        });
+    }
+    
+    /**
+     * Brings the symbol index in line with a scan, then caches both.
+     */
+    private void updateSymbols(final File projectDir, final ProjectSnapshot snapshot) {
+        final SymbolIndex symbols = symbolIndex;
+        final WorkspaceCache cache = workspaceCache;
+        symbols.updateLater(snapshot, new SymbolIndex.Listener() {
+            @Override
+            public void updated(boolean changed) {
+                cache.saveLater(snapshot, symbols, changed);
+            }
+            
+            @Override
+            public void failed(Exception e) {
+                if (projectDir.getPath().equals(currentProjectPath)) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    appendOutput("Cannot index symbols: " + cause + "\n");
                 }
-                
-                FileInfo info = new FileInfo(file.getAbsolutePath(), file.isFile());
-                DefaultMutableTreeNode node = new DefaultMutableTreeNode(info);
-                parent.add(node);
-                
-                if (file.isDirectory()) {
-                    loadDirectory(node, file);
+            }
+        });
+    }
+    
+    /**
+     * Returns a watcher that keeps the tree and the project snapshot in step
+     * with the disk, or null if the platform has none.
+     */
+    private ProjectWatcher createWatcher() {
+        try {
+            return new ProjectWatcher(new ProjectWatcher.Listener() {
+                @Override
+                public void changed(Set<File> directories, boolean overflow) {
+                    if (overflow) {
+                        treeLoader.refreshAll();
+                    } else {
+                        for (File dir : directories) {
+                            treeLoader.refresh(dir);
+                        }
+                    }
+                    if (currentProjectPath != null && (overflow || affectsSnapshot(directories))) {
+                        scanProject(new File(currentProjectPath));
+                    }
                 }
+            });
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns true if any of the directories is part of the project
+     * snapshot; changes in ignored directories such as build output don't
+     * need a new scan.
+     */
+    private boolean affectsSnapshot(Set<File> directories) {
+        ProjectSnapshot snapshot = projectSnapshot;
+        if (snapshot == null) {
+            return false;
+        }
+        String root = snapshot.getRoot().getPath();
+        for (File dir : directories) {
+            String path = dir.getPath();
+            if (path.startsWith(root) && snapshot.find(path.substring(root.length()).replace(File.separatorChar, '/')) >= 0) {
+                return true;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        return false;
     }
     
     private void onFileSelected(String filepath) {
         File filePath = new File(filepath);
         if (filePath.isFile()) {
-            try {
-                String contents = readFile(filePath);
-                openEditorTab(filepath, contents);
-            } catch (IOException e) {
-                showError("Error opening file: " + e.getMessage());
-            }
+            openFile(filePath);
         }
     }
     
-    private void openEditorTab(String filepath, String contents) {
-        EditorTab tab = new EditorTab(filepath, contents);
-        
-        String label = filepath != null ? new File(filepath).getName() : "Untitled";
-        
-        JPanel tabPanel = new JPanel(new BorderLayout());
-        JLabel tabLabel = new JLabel(label);
-        JButton closeBtn = new JButton("×");
-        closeBtn.setBorder(new EmptyBorder(0, 5, 0, 0));
-        closeBtn.setContentAreaFilled(false);
-        closeBtn.addActionListener(new ActionListener() {
+    /**
+     * Shows the file's tab, opening the file if it has none.
+     */
+    private void openFile(File file) {
+        tabManager.open(file);
+    }
+    
+    /**
+     * Returns an editor for the file, or null after telling the user why
+     * it cannot be opened.
+     */
+    private EditorTab createEditorTab(File file) {
+        if (FileLoader.isLarge(file)) {
+            return createLargeFileTab(file);
+        }
+        try {
+            EditorTab tab = new EditorTab(file.getAbsolutePath(), readFile(file));
+            setUpTab(tab);
+            return tab;
+        } catch (IOException e) {
+            showError("Error opening file: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Streams a file into a read-only editor, which becomes editable once
+     * loading completes.
+     */
+    private EditorTab createLargeFileTab(final File file) {
+        appendOutput("Loading " + file.getName() + "...\n");
+        final EditorTab[] holder = new EditorTab[1];
+        holder[0] = new EditorTab(file, new FileLoader.Listener() {
             @Override
-            public void actionPerformed(ActionEvent e) {
-                closeTab(tab.scrollPane);
+            public void loaded(long bytes, long nanos, long peakHeap) {
+                appendOutput(String.format("Opened %s (%.1f MB) in %.2f s, peak heap %d MB%n",
+                    file.getName(), bytes / (1024.0 * 1024.0), nanos / 1e9, peakHeap >> 20));
+            }
+            
+            @Override
+            public void failed(IOException e) {
+                tabManager.close(holder[0]);
+                showError("Error opening file: " + e.getMessage());
             }
         });
-        
-        tabPanel.add(tabLabel, BorderLayout.CENTER);
-        tabPanel.add(closeBtn, BorderLayout.EAST);
-        
-        editorNotebook.addTab(label, tab.scrollPane);
-        int index = editorNotebook.getTabCount() - 1;
-        editorNotebook.setTabComponentAt(index, tabPanel);
-        editorNotebook.setSelectedIndex(index);
-        
-        tabMap.put(tab.scrollPane, tab);
+        setUpTab(holder[0]);
+        return holder[0];
     }
     
-    private void closeTab(JScrollPane scrollPane) {
-        int index = editorNotebook.indexOfComponent(scrollPane);
-        if (index >= 0) {
-            editorNotebook.removeTabAt(index);
-            tabMap.remove(scrollPane);
+    private void setUpTab(EditorTab tab) {
+        tab.setCompletionEngine(completionEngine);
+        tab.setJournal(editJournal);
+        if (diagnosticsEngine != null) {
+            tab.setDiagnosticsEngine(diagnosticsEngine);
         }
     }
     
-    private EditorTab getCurrentTab() {
-        int index = editorNotebook.getSelectedIndex();
-        if (index < 0) {
-            return null;
+    /**
+     * Offers back the unsaved text of sessions that crashed, then starts
+     * journaling the edits of this one.
+     */
+    private void startEditJournal() {
+        EditJournal.Recovery recovery = EditJournal.recover();
+        try {
+            editJournal = EditJournal.start(new EditJournal.Listener() {
+                @Override
+                public void stopped(IOException e) {
+                    showError("Unsaved changes can no longer be recovered after a crash.\n"
+                        + "The edit journal stopped: " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            appendOutput("Unsaved changes will not survive a crash: " + e.getMessage() + "\n");
+        }
+        if (!recovery.documents.isEmpty()) {
+            int answer = JOptionPane.showConfirmDialog(this,
+                "JavaIDE did not exit normally. Restore unsaved changes to "
+                    + recovery.documents.size() + " file(s)?",
+                "Restore Unsaved Changes", JOptionPane.YES_NO_OPTION);
+            if (answer == JOptionPane.YES_OPTION) {
+                for (EditJournal.Recovered document : recovery.documents) {
+                    EditorTab tab = new EditorTab(document.path, document.text);
+                    tab.isModified = true;
+                    setUpTab(tab);
+                    tabManager.add(tab);
+                }
+            }
+        }
+        if (recovery.lost > 0) {
+            appendOutput("Unsaved changes to " + recovery.lost
+                + " file(s) could not be restored, the files changed since.\n");
+        }
+        try {
+            recovery.discard();
+        } catch (IOException e) {
+            appendOutput("Cannot delete the journal of a crashed session, it will be offered again: "
+                + e.getMessage() + "\n");
+        }
+    }
+    
+    /**
+     * Deletes the journal when the IDE exits normally.
+     */
+    private void closeEditJournal() {
+        if (editJournal != null) {
+            try {
+                editJournal.close();
+            } catch (IOException e) {
+                showError("Cannot delete the edit journal, its changes will be offered again at the next start: "
+                    + e.getMessage());
+            }
+            editJournal = null;
         }
-        JScrollPane scrollPane = (JScrollPane) editorNotebook.getComponentAt(index);
-        return tabMap.get(scrollPane);
+    }
+    
+    /**
+     * Opens a file and moves to a 1-based line and 0-based column.
+     */
+    private void openFileAt(File file, int line, int column) {
+        EditorTab tab = tabManager.open(file);
+        if (tab != null) {
+            tab.goToLine(line, column);
+        }
+    }
+    
+    private EditorTab getCurrentTab() {
+        return tabManager.getCurrentTab();
     }
     
     private void appendOutput(String text) {
         outputView.append(text);
-        outputView.setCaretPosition(outputView.getDocument().getLength());
     }
     
     private void showError(String message) {
@@ -504,16 +833,17 @@ public class JavaIDE extends JFrame {
     
     private String readFile(File file) throws IOException {
         FileInputStream fis = null;
-        ByteArrayOutputStream baos = null;
         try {
             fis = new FileInputStream(file);
-            baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[4096];
+            // Read straight into a buffer of the file size and decode once
+            byte[] bytes = new byte[(int) file.length()];
+            int length = 0;
             int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                baos.write(buffer, 0, bytesRead);
+            while (length < bytes.length
+                    && (bytesRead = fis.read(bytes, length, bytes.length - length)) != -1) {
+                length += bytesRead;
             }
-            return new String(baos.toByteArray(), "UTF-8");
+            return new String(bytes, 0, length, "UTF-8");
         } finally {
             if (fis != null) {
                 try {
@@ -522,60 +852,214 @@ public class JavaIDE extends JFrame {
                     // Ignore
                 }
             }
-            if (baos != null) {
-                try {
-                    baos.close();
-                } catch (IOException e) {
-                    // Ignore
-                }
-            }
         }
     }
     
     private void writeFile(File file, String content) throws IOException {
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(file);
-            fos.write(content.getBytes("UTF-8"));
-        } finally {
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    // Ignore
-                }
-            }
-        }
+        SavePipeline.write(file, content);
     }
     
+    /**
+     * Starts a command in the background, its output is streamed to the
+     * output panel. Only one command runs at a time.
+     */
     private void runCommand(String[] command, String workingDir) {
-        try {
-            ProcessBuilder pb = new ProcessBuilder(command);
-            if (workingDir != null) {
-                pb.directory(new File(workingDir));
-            }
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                appendOutput(line + "\n");
+        if (checkIdle()) {
+            startTask(new ProcessRunner(command, workingDir != null ? new File(workingDir) : null,
+                taskListener()));
+        }
+    }
+    
+    /**
+     * Runs an Ant target of the current project, in-process if a local Ant
+     * installation can be loaded and through the ant command otherwise.
+     */
+    private void runAnt(String target) {
+        if (!checkIdle()) {
+            return;
+        }
+        if (!antLoaded) {
+            embeddedAnt = EmbeddedAnt.create();
+            antLoaded = true;
+        }
+        if (embeddedAnt == null) {
+            runCommand(new String[]{"ant", target}, currentProjectPath);
+        } else if (embeddedAnt.isBusy()) {
+            showError("A stopped Ant build is still running inside the IDE and cannot be killed.\n"
+                + "Wait for it to end, or restart the IDE to build again.");
+        } else {
+            startTask(embeddedAnt.target(new File(currentProjectPath), target, taskListener()));
+        }
+    }
+    
+    private boolean checkIdle() {
+        if (runningTask != null) {
+            showError("A process is already running. Stop it first.");
+            return false;
+        }
+        return true;
+    }
+    
+    private void startTask(ConsoleTask task) {
+        runningTask = task;
+        stopBtn.setEnabled(true);
+        stopItem.setEnabled(true);
+        task.start();
+    }
+    
+    private ConsoleTask.Listener taskListener() {
+        return new ConsoleTask.Listener() {
+            @Override
+            public void output(String text) {
+                appendOutput(text);
             }
             
-            int exitCode = process.waitFor();
-            if (exitCode != 0) {
-                appendOutput("Command exited with status: " + exitCode + "\n");
+            @Override
+            public void finished(int exitCode, boolean stopped) {
+                int stalls = runningTask.getStallCount();
+                runningTask = null;
+                stopBtn.setEnabled(false);
+                stopItem.setEnabled(false);
+                if (stopped) {
+                    appendOutput("Process stopped.\n");
+                } else if (exitCode != 0) {
+                    appendOutput("Command exited with status: " + exitCode + "\n");
+                }
+                if (stalls > 0) {
+                    appendOutput("Output was throttled " + stalls
+                        + " times, the process printed faster than it could be shown.\n");
+                }
             }
-        } catch (Exception e) {
-            appendOutput("Error running command: " + e.getMessage() + "\n");
-        }
+        };
     }
     
     // Menu actions
     private void onNewFile() {
-        openEditorTab(null, "");
+        EditorTab tab = new EditorTab(null, "");
+        setUpTab(tab);
+        tabManager.add(tab);
+    }
+    
+    private void onGoToFile() {
+        if (fileIndex == null) {
+            showError("No project open. Please open a project first.");
+            return;
+        }
+        new GoToFileDialog(this, fileIndex, new GoToFileDialog.Listener() {
+            @Override
+            public void open(File file) {
+                openFile(file);
+            }
+        }).setVisible(true);
+    }
+    
+    private void onFindInFiles() {
+        if (currentProjectPath == null) {
+            showError("No project open. Please open a project first.");
+            return;
+        }
+        if (findInFilesDialog == null) {
+            findInFilesDialog = new FindInFilesDialog(this, new File(currentProjectPath), new FindInFilesDialog.Listener() {
+                @Override
+                public void open(File file, int line, int column) {
+                    openFileAt(file, line, column);
+                }
+            });
+        }
+        findInFilesDialog.setSnapshot(projectSnapshot);
+        findInFilesDialog.open();
+    }
+    
+    private void onGoToDeclaration() {
+        String name = identifierAtCaret();
+        if (name == null) {
+            return;
+        }
+        List<SymbolIndex.Declaration> declarations = symbolIndex.declarations(name);
+        if (declarations.isEmpty()) {
+            showInfo("No declaration of " + name + " found.");
+        } else if (declarations.size() == 1) {
+            openLocation(declarations.get(0));
+        } else {
+            showLocations("Declarations of " + name, declarations);
+        }
+    }
+    
+    private void onFindUsages() {
+        String name = identifierAtCaret();
+        if (name == null) {
+            return;
+        }
+        List<SymbolIndex.Location> usages = symbolIndex.usages(name, MAX_USAGES);
+        if (usages.isEmpty()) {
+            showInfo("No usages of " + name + " found.");
+        } else {
+            showLocations("Usages of " + name + " (" + usages.size()
+                + (usages.size() == MAX_USAGES ? "+" : "") + ")", usages);
+        }
+    }
+    
+    private void onCompleteCode() {
+        EditorTab tab = getCurrentTab();
+        if (tab != null) {
+            tab.showCompletions();
+        }
+    }
+    
+    /**
+     * Returns the name at the caret of the current tab, or null after
+     * telling the user why there is none.
+     */
+    private String identifierAtCaret() {
+        if (symbolIndex == null) {
+            showError("No project open. Please open a project first.");
+            return null;
+        }
+        EditorTab tab = getCurrentTab();
+        String name = tab != null ? tab.getIdentifierAtCaret() : null;
+        if (name == null) {
+            showInfo("Place the caret on a name first.");
+        }
+        return name;
+    }
+    
+    private void showLocations(String title, List<? extends SymbolIndex.Location> locations) {
+        new LocationsDialog(this, title, locations, new LocationsDialog.Listener() {
+            @Override
+            public void open(SymbolIndex.Location location) {
+                openLocation(location);
+            }
+        }).setVisible(true);
+    }
+    
+    private void openLocation(SymbolIndex.Location location) {
+        openFileAt(location.file, location.line, location.column);
+    }
+    
+    /**
+     * Keeps the symbol index current with files saved from the editor.
+     */
+    private void fileSaved(File file) {
+        if (symbolIndex != null) {
+            symbolIndex.updateLater(file);
+        }
+    }
+    
+    /**
+     * Saves a tab in the background and reports failures.
+     */
+    private void saveTab(EditorTab tab) {
+        tab.save(new SavePipeline.Listener() {
+            @Override
+            public void saved(File file, long bytes, long nanos) {
+                fileSaved(file);
+            }
+            
+            @Override
+            public void failed(File file, IOException e) {
+                showError("Error saving " + file.getName() + ": " + e.getMessage());
+            }
+        });
     }
     
     private void onOpenFile() {
@@ -587,13 +1071,7 @@ public class JavaIDE extends JFrame {
         chooser.addChoosableFileFilter(new FileNameExtensionFilter("All files", "*"));
         
         if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            File file = chooser.getSelectedFile();
-            try {
-                String contents = readFile(file);
-                openEditorTab(file.getAbsolutePath(), contents);
-            } catch (IOException e) {
-                showError("Error opening file: " + e.getMessage());
-            }
+            openFile(chooser.getSelectedFile());
         }
     }
     
@@ -602,10 +1080,14 @@ public class JavaIDE extends JFrame {
         if (tab == null) {
             return;
         }
+        if (tab.isLoading()) {
+            showInfo("The file is still loading.");
+            return;
+        }
         if (tab.filepath == null) {
             onSaveAs();
         } else {
-            tab.save();
+            saveTab(tab);
         }
     }
     
@@ -614,6 +1096,10 @@ public class JavaIDE extends JFrame {
         if (tab == null) {
             return;
         }
+        if (tab.isLoading()) {
+            showInfo("The file is still loading.");
+            return;
+        }
         
         JFileChooser chooser = new JFileChooser();
         if (tab.filepath != null) {
@@ -622,12 +1108,53 @@ public class JavaIDE extends JFrame {
         
         if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
             tab.filepath = chooser.getSelectedFile().getAbsolutePath();
-            tab.save();
-            // Update tab title
-            int index = editorNotebook.getSelectedIndex();
-            if (index >= 0) {
-                editorNotebook.setTitleAt(index, new File(tab.filepath).getName());
+            saveTab(tab);
+            tabManager.renamed(tab);
+        }
+    }
+    
+    /**
+     * Saves every modified tab that has a file, all at once in the
+     * background, and reports the total when the last one is done.
+     */
+    private void onSaveAll() {
+        final List<EditorTab> tabs = new ArrayList<>();
+        for (EditorTab tab : tabManager.getLiveTabs()) {
+            if (tab.isModified && tab.filepath != null && !tab.isLoading()) {
+                tabs.add(tab);
+            }
+        }
+        if (tabs.isEmpty()) {
+            return;
+        }
+        final long started = System.nanoTime();
+        final int[] pending = {tabs.size()};
+        final int[] savedCount = new int[1];
+        final long[] totalBytes = new long[1];
+        SavePipeline.Listener listener = new SavePipeline.Listener() {
+            @Override
+            public void saved(File file, long bytes, long nanos) {
+                fileSaved(file);
+                savedCount[0]++;
+                totalBytes[0] += bytes;
+                done();
+            }
+            
+            @Override
+            public void failed(File file, IOException e) {
+                appendOutput("Error saving " + file.getName() + ": " + e.getMessage() + "\n");
+                done();
             }
+            
+            private void done() {
+                if (--pending[0] == 0) {
+                    appendOutput(String.format("Saved %d files (%d KB) in %d ms%n", savedCount[0],
+                        totalBytes[0] / 1024, (System.nanoTime() - started) / 1000000));
+                }
+            }
+        };
+        for (EditorTab tab : tabs) {
+            tab.save(listener);
         }
     }
     
@@ -686,7 +1213,7 @@ public class JavaIDE extends JFrame {
                 "        <delete dir=\"${build.dir}\"/>\n" +
                 "    </target>\n" +
                 "    \n" +
-                "    <target name=\"compile\" depends=\"clean\">\n" +
+                "    <target name=\"compile\">\n" +
                 "        <mkdir dir=\"${classes.dir}\"/>\n" +
                 "        <javac srcdir=\"${src.dir}\" destdir=\"${classes.dir}\" \n" +
                 "               source=\"1.6\" target=\"1.6\" encoding=\"UTF-8\" includeantruntime=\"false\"/>\n" +
@@ -762,13 +1289,53 @@ public class JavaIDE extends JFrame {
         
         // Check for Ant
         if (new File(currentProjectPath, "build.xml").exists()) {
-            runCommand(new String[]{"ant", "compile"}, currentProjectPath);
+            runAnt("compile");
         } else {
             appendOutput("No build system found. Using javac...\n");
-            // Try to compile Java files
-            runCommand(new String[]{"javac", "-d", "build/classes", 
-                "src/main/java/**/*.java"}, currentProjectPath);
+            buildWithJavac(new File(currentProjectPath));
+        }
+    }
+    
+    /**
+     * Compiles the project with the in-process compiler, or with an
+     * external javac when the IDE runs on a JRE.
+     */
+    private void buildWithJavac(File projectDir) {
+        if (compiler == null) {
+            compiler = InProcessCompiler.create();
+        }
+        if (compiler == null) {
+            List<String> command = new ArrayList<>();
+            command.add("javac");
+            command.add("-d");
+            command.add(InProcessCompiler.outputDir(projectDir).getPath());
+            InProcessCompiler.outputDir(projectDir).mkdirs();
+            for (File source : InProcessCompiler.findSources(InProcessCompiler.sourceRoot(projectDir), projectSnapshot)) {
+                command.add(source.getPath());
+            }
+            runCommand(command.toArray(new String[0]), projectDir.getPath());
+            return;
         }
+        
+        compiler.build(projectDir, projectSnapshot, new InProcessCompiler.Listener() {
+            @Override
+            public void finished(InProcessCompiler.Result result) {
+                StringBuilder text = new StringBuilder();
+                for (Diagnostic<? extends JavaFileObject> diagnostic : result.diagnostics) {
+                    text.append(InProcessCompiler.format(diagnostic)).append('\n');
+                }
+                text.append(String.format("%s: %s%d of %d files compiled in %d ms%n",
+                    result.success ? "Build successful" : "Build failed",
+                    result.full ? "full build, " : "", result.compiledCount, result.fileCount,
+                    result.nanos / 1000000));
+                appendOutput(text.toString());
+            }
+            
+            @Override
+            public void failed(Exception e) {
+                appendOutput("Error compiling: " + e.getMessage() + "\n");
+            }
+        });
     }
     
     private void onRun() {
@@ -781,7 +1348,7 @@ public class JavaIDE extends JFrame {
         
         // Check for Ant
         if (new File(currentProjectPath, "build.xml").exists()) {
-            runCommand(new String[]{"ant", "run"}, currentProjectPath);
+            runAnt("run");
         } else {
             // Try to run Main class
             EditorTab tab = getCurrentTab();
@@ -796,6 +1363,12 @@ public class JavaIDE extends JFrame {
         }
     }
     
+    private void onStop() {
+        if (runningTask != null) {
+            runningTask.stop();
+        }
+    }
+    
     private void onClean() {
         if (currentProjectPath == null) {
             showError("No project open. Please open a project first.");
@@ -815,6 +1388,17 @@ public class JavaIDE extends JFrame {
             }
         }
         
+        // Remove classes of the built-in compiler, the next build is a full one
+        File classesPath = InProcessCompiler.outputDir(new File(currentProjectPath));
+        if (classesPath.exists() && !new File(currentProjectPath, "build.xml").exists()) {
+            try {
+                deleteDirectory(classesPath);
+                appendOutput("Removed build/classes/\n");
+            } catch (IOException e) {
+                appendOutput("Error removing build/classes/: " + e.getMessage() + "\n");
+            }
+        }
+        
         appendOutput("Clean complete.\n");
     }
     
@@ -885,30 +1469,4 @@ public class JavaIDE extends JFrame {
             }
         };
     }
-    
-    // Helper class for file tree
-    private static class FileInfo {
-        private String path;
-        private boolean isFile;
-        
-        public FileInfo(String path, boolean isFile) {
-            this.path = path;
-            this.isFile = isFile;
-        }
-        
-        public String getPath() {
-            return path;
-        }
-        
-        public boolean isFile() {
-            return isFile;
-        }
-        
-        @Override
-        public String toString() {
-            File f = new File(path);
-            return isFile ? f.getName() : f.getName() + "/";
-        }
-    }
 }
-
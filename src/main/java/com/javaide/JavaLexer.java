@@ -0,0 +1,382 @@
+package com.javaide;
+
+/**
+ * Single pass, table driven Java lexer used by the syntax highlighter and
+ * the symbol index.
+ *
+ * The lexer works on one line at a time and carries the state that crosses
+ * line boundaries (block comments and text blocks) in a single int, so callers
+ * can remember the state at the start of every line and restart from there.
+ * Characters are classified through a lookup table and keywords are matched
+ * through a perfect hash, so no strings are created while scanning.
+ */
+public class JavaLexer {
+    public static final int STATE_DEFAULT = 0;
+    public static final int STATE_BLOCK_COMMENT = 1;
+    public static final int STATE_TEXT_BLOCK = 2;
+    
+    public static final int TOKEN_DEFAULT = 0;
+    public static final int TOKEN_KEYWORD = 1;
+    public static final int TOKEN_STRING = 2;
+    public static final int TOKEN_COMMENT = 3;
+    // Only reported by tokenize()
+    public static final int TOKEN_IDENTIFIER = 4;
+    public static final int TOKEN_OPERATOR = 5;
+    
+    // Character classes for ASCII input, anything above is resolved through Character
+    private static final byte CLASS_OTHER = 0;
+    private static final byte CLASS_IDENTIFIER = 1;
+    private static final byte CLASS_DIGIT = 2;
+    private static final byte CLASS_SLASH = 3;
+    private static final byte CLASS_QUOTE = 4;
+    private static final byte CLASS_APOSTROPHE = 5;
+    
+    private static final byte[] CHAR_CLASSES = new byte[128];
+    
+    private static final String[] KEYWORDS = {
+        "abstract", "assert", "boolean", "break", "byte", "case", "catch",
+        "char", "class", "const", "continue", "default", "do", "double",
+        "else", "enum", "extends", "final", "finally", "float", "for",
+        "goto", "if", "implements", "import", "instanceof", "int", "interface",
+        "long", "native", "new", "package", "private", "protected", "public",
+        "return", "short", "static", "strictfp", "super", "switch",
+        "synchronized", "this", "throw", "throws", "transient", "try",
+        "void", "volatile", "while", "record", "sealed", "permits", "non-sealed"
+    };
+    
+    // Perfect hash table over KEYWORDS, see buildKeywordTable()
+    private static char[][] keywordTable;
+    private static int hashMask;
+    private static int hashFirst;
+    private static int hashLast;
+    
+    static {
+        for (int c = 'a'; c <= 'z'; c++) {
+            CHAR_CLASSES[c] = CLASS_IDENTIFIER;
+        }
+        for (int c = 'A'; c <= 'Z'; c++) {
+            CHAR_CLASSES[c] = CLASS_IDENTIFIER;
+        }
+        for (int c = '0'; c <= '9'; c++) {
+            CHAR_CLASSES[c] = CLASS_DIGIT;
+        }
+        CHAR_CLASSES['_'] = CLASS_IDENTIFIER;
+        CHAR_CLASSES['$'] = CLASS_IDENTIFIER;
+        CHAR_CLASSES['/'] = CLASS_SLASH;
+        CHAR_CLASSES['"'] = CLASS_QUOTE;
+        CHAR_CLASSES['\''] = CLASS_APOSTROPHE;
+        
+        buildKeywordTable();
+    }
+    
+    /**
+     * Receives the tokens found by the lexer. Offsets are absolute positions
+     * in the text passed to {@link JavaLexer#scanLine}.
+     */
+    public interface TokenHandler {
+        void token(int start, int length, int type);
+    }
+    
+    /**
+     * Searches multipliers for which the keyword hash has no collisions. This
+     * runs once per class load and takes a fraction of a millisecond.
+     */
+    private static void buildKeywordTable() {
+        for (int size = 128; ; size <<= 1) {
+            for (int first = 1; first < 64; first++) {
+                for (int last = 1; last < 64; last++) {
+                    char[][] table = new char[size][];
+                    boolean perfect = true;
+                    for (String keyword : KEYWORDS) {
+                        int hash = (keyword.charAt(0) * first + keyword.charAt(keyword.length() - 1) * last
+                            + keyword.charAt(1) + keyword.length()) & (size - 1);
+                        if (table[hash] != null) {
+                            perfect = false;
+                            break;
+                        }
+                        table[hash] = keyword.toCharArray();
+                    }
+                    if (perfect) {
+                        keywordTable = table;
+                        hashMask = size - 1;
+                        hashFirst = first;
+                        hashLast = last;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Scans the line text[start, end) starting in the given state and returns
+     * the state at the start of the next line.
+     */
+    public int scanLine(CharSequence text, int start, int end, int state, TokenHandler handler) {
+        int pos = start;
+        
+        if (state == STATE_BLOCK_COMMENT) {
+            int close = findCommentEnd(text, pos, end);
+            if (close < 0) {
+                handler.token(pos, end - pos, TOKEN_COMMENT);
+                return STATE_BLOCK_COMMENT;
+            }
+            handler.token(pos, close - pos, TOKEN_COMMENT);
+            pos = close;
+        } else if (state == STATE_TEXT_BLOCK) {
+            int close = findTextBlockEnd(text, pos, end);
+            if (close < 0) {
+                handler.token(pos, end - pos, TOKEN_STRING);
+                return STATE_TEXT_BLOCK;
+            }
+            handler.token(pos, close - pos, TOKEN_STRING);
+            pos = close;
+        }
+        
+        while (pos < end) {
+            char c = text.charAt(pos);
+            int charClass;
+            if (c < 128) {
+                charClass = CHAR_CLASSES[c];
+            } else {
+                charClass = Character.isJavaIdentifierStart(c) ? CLASS_IDENTIFIER : CLASS_OTHER;
+            }
+            
+            switch (charClass) {
+                case CLASS_IDENTIFIER: {
+                    int wordEnd = skipIdentifier(text, pos + 1, end);
+                    if (isKeyword(text, pos, wordEnd)) {
+                        handler.token(pos, wordEnd - pos, TOKEN_KEYWORD);
+                    } else if (wordEnd - pos == 3 && regionMatches(text, pos, end, "non-sealed")) {
+                        handler.token(pos, 10, TOKEN_KEYWORD);
+                        wordEnd = pos + 10;
+                    }
+                    pos = wordEnd;
+                    break;
+                }
+                case CLASS_DIGIT:
+                    // Numbers such as 0x1F or 10L must not yield keywords
+                    pos = skipIdentifier(text, pos + 1, end);
+                    break;
+                case CLASS_SLASH:
+                    if (pos + 1 < end && text.charAt(pos + 1) == '/') {
+                        handler.token(pos, end - pos, TOKEN_COMMENT);
+                        return STATE_DEFAULT;
+                    }
+                    if (pos + 1 < end && text.charAt(pos + 1) == '*') {
+                        int close = findCommentEnd(text, pos + 2, end);
+                        if (close < 0) {
+                            handler.token(pos, end - pos, TOKEN_COMMENT);
+                            return STATE_BLOCK_COMMENT;
+                        }
+                        handler.token(pos, close - pos, TOKEN_COMMENT);
+                        pos = close;
+                    } else {
+                        pos++;
+                    }
+                    break;
+                case CLASS_QUOTE:
+                    if (regionMatches(text, pos, end, "\"\"\"")) {
+                        int close = findTextBlockEnd(text, pos + 3, end);
+                        if (close < 0) {
+                            handler.token(pos, end - pos, TOKEN_STRING);
+                            return STATE_TEXT_BLOCK;
+                        }
+                        handler.token(pos, close - pos, TOKEN_STRING);
+                        pos = close;
+                    } else {
+                        int close = findQuoteEnd(text, pos + 1, end, '"');
+                        handler.token(pos, close - pos, TOKEN_STRING);
+                        pos = close;
+                    }
+                    break;
+                case CLASS_APOSTROPHE: {
+                    int close = findQuoteEnd(text, pos + 1, end, '\'');
+                    handler.token(pos, close - pos, TOKEN_STRING);
+                    pos = close;
+                    break;
+                }
+                default:
+                    pos++;
+                    break;
+            }
+        }
+        return STATE_DEFAULT;
+    }
+    
+    /**
+     * Scans text[start, end) as a whole and reports keywords, identifiers,
+     * string and character literals, and every other visible character as a
+     * one character operator. Comments, numbers and white space are skipped.
+     */
+    public void tokenize(CharSequence text, int start, int end, TokenHandler handler) {
+        int pos = start;
+        while (pos < end) {
+            char c = text.charAt(pos);
+            int charClass;
+            if (c < 128) {
+                charClass = CHAR_CLASSES[c];
+            } else {
+                charClass = Character.isJavaIdentifierStart(c) ? CLASS_IDENTIFIER : CLASS_OTHER;
+            }
+            
+            switch (charClass) {
+                case CLASS_IDENTIFIER: {
+                    int wordEnd = skipIdentifier(text, pos + 1, end);
+                    if (isKeyword(text, pos, wordEnd)) {
+                        handler.token(pos, wordEnd - pos, TOKEN_KEYWORD);
+                    } else if (wordEnd - pos == 3 && regionMatches(text, pos, end, "non-sealed")) {
+                        handler.token(pos, 10, TOKEN_KEYWORD);
+                        wordEnd = pos + 10;
+                    } else {
+                        handler.token(pos, wordEnd - pos, TOKEN_IDENTIFIER);
+                    }
+                    pos = wordEnd;
+                    break;
+                }
+                case CLASS_DIGIT:
+                    pos = skipIdentifier(text, pos + 1, end);
+                    break;
+                case CLASS_SLASH:
+                    if (pos + 1 < end && text.charAt(pos + 1) == '/') {
+                        while (pos < end && text.charAt(pos) != '\n') {
+                            pos++;
+                        }
+                    } else if (pos + 1 < end && text.charAt(pos + 1) == '*') {
+                        int close = findCommentEnd(text, pos + 2, end);
+                        pos = close < 0 ? end : close;
+                    } else {
+                        handler.token(pos, 1, TOKEN_OPERATOR);
+                        pos++;
+                    }
+                    break;
+                case CLASS_QUOTE: {
+                    int close;
+                    if (regionMatches(text, pos, end, "\"\"\"")) {
+                        close = findTextBlockEnd(text, pos + 3, end);
+                        if (close < 0) {
+                            close = end;
+                        }
+                    } else {
+                        close = findQuoteEnd(text, pos + 1, end, '"');
+                    }
+                    handler.token(pos, close - pos, TOKEN_STRING);
+                    pos = close;
+                    break;
+                }
+                case CLASS_APOSTROPHE: {
+                    int close = findQuoteEnd(text, pos + 1, end, '\'');
+                    handler.token(pos, close - pos, TOKEN_STRING);
+                    pos = close;
+                    break;
+                }
+                default:
+                    if (c > ' ') {
+                        handler.token(pos, 1, TOKEN_OPERATOR);
+                    }
+                    pos++;
+                    break;
+            }
+        }
+    }
+    
+    private static int skipIdentifier(CharSequence text, int pos, int end) {
+        while (pos < end) {
+            char c = text.charAt(pos);
+            if (c < 128) {
+                byte charClass = CHAR_CLASSES[c];
+                if (charClass != CLASS_IDENTIFIER && charClass != CLASS_DIGIT) {
+                    break;
+                }
+            } else if (!Character.isJavaIdentifierPart(c)) {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static boolean isKeyword(CharSequence text, int start, int end) {
+        int length = end - start;
+        if (length < 2 || length > 12) {
+            return false;
+        }
+        int hash = (text.charAt(start) * hashFirst + text.charAt(end - 1) * hashLast
+            + text.charAt(start + 1) + length) & hashMask;
+        char[] keyword = keywordTable[hash];
+        if (keyword == null || keyword.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (keyword[i] != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean regionMatches(CharSequence text, int pos, int end, String expected) {
+        if (pos + expected.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (text.charAt(pos + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the offset just past the closing star-slash, or -1 if the
+     * comment continues on the next line.
+     */
+    private static int findCommentEnd(CharSequence text, int pos, int end) {
+        for (int i = pos; i + 1 < end; i++) {
+            if (text.charAt(i) == '*' && text.charAt(i + 1) == '/') {
+                return i + 2;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the offset just past the closing triple quote, or -1 if the
+     * text block continues on the next line.
+     */
+    private static int findTextBlockEnd(CharSequence text, int pos, int end) {
+        int i = pos;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '"' && regionMatches(text, i, end, "\"\"\"")) {
+                return i + 3;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the offset just past the closing quote. Unterminated string and
+     * character literals end with the line.
+     */
+    private static int findQuoteEnd(CharSequence text, int pos, int end, char quote) {
+        int i = pos;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                return i + 1;
+            } else if (c == '\n') {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return end;
+    }
+}
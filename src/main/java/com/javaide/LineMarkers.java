@@ -0,0 +1,127 @@
+package com.javaide;
+
+import java.util.Arrays;
+
+/**
+ * Markers on the lines of one document, as a bit mask per line.
+ *
+ * Only lines with markers take space: their 0-based numbers are kept
+ * sorted in one array and their masks in a parallel one, so finding the
+ * markers of the visible lines is a binary search and a short walk.
+ * Inserting or removing lines shifts the markers below.
+ */
+public class LineMarkers {
+    private int[] lines = new int[16];
+    private int[] masks = new int[16];
+    private int size;
+    
+    public int size() {
+        return size;
+    }
+    
+    public int lineAt(int index) {
+        return lines[index];
+    }
+    
+    public int maskAt(int index) {
+        return masks[index];
+    }
+    
+    /**
+     * Returns the index of the first marked line at or after a line.
+     */
+    public int ceiling(int line) {
+        int index = Arrays.binarySearch(lines, 0, size, line);
+        return index >= 0 ? index : -index - 1;
+    }
+    
+    public int get(int line) {
+        int index = Arrays.binarySearch(lines, 0, size, line);
+        return index >= 0 ? masks[index] : 0;
+    }
+    
+    /**
+     * Adds the bits of a mask to a line. Returns false if it had them.
+     */
+    public boolean add(int line, int mask) {
+        int index = Arrays.binarySearch(lines, 0, size, line);
+        if (index >= 0) {
+            if ((masks[index] & mask) == mask) {
+                return false;
+            }
+            masks[index] |= mask;
+            return true;
+        }
+        index = -index - 1;
+        if (size == lines.length) {
+            lines = Arrays.copyOf(lines, size * 2);
+            masks = Arrays.copyOf(masks, size * 2);
+        }
+        System.arraycopy(lines, index, lines, index + 1, size - index);
+        System.arraycopy(masks, index, masks, index + 1, size - index);
+        lines[index] = line;
+        masks[index] = mask;
+        size++;
+        return true;
+    }
+    
+    /**
+     * Takes the bits of a mask off a line. Returns false if it had none.
+     */
+    public boolean remove(int line, int mask) {
+        int index = Arrays.binarySearch(lines, 0, size, line);
+        if (index < 0 || (masks[index] & mask) == 0) {
+            return false;
+        }
+        masks[index] &= ~mask;
+        if (masks[index] == 0) {
+            System.arraycopy(lines, index + 1, lines, index, size - index - 1);
+            System.arraycopy(masks, index + 1, masks, index, size - index - 1);
+            size--;
+        }
+        return true;
+    }
+    
+    /**
+     * Takes the bits of a mask off every line. Returns false if none had
+     * them.
+     */
+    public boolean removeAll(int mask) {
+        int kept = 0;
+        boolean changed = false;
+        for (int i = 0; i < size; i++) {
+            int remaining = masks[i] & ~mask;
+            changed |= remaining != masks[i];
+            if (remaining != 0) {
+                lines[kept] = lines[i];
+                masks[kept] = remaining;
+                kept++;
+            }
+        }
+        size = kept;
+        return changed;
+    }
+    
+    /**
+     * Moves the markers from a line on down by a number of new lines.
+     */
+    public void linesInserted(int line, int count) {
+        for (int i = ceiling(line); i < size; i++) {
+            lines[i] += count;
+        }
+    }
+    
+    /**
+     * Drops the markers of removed lines and moves those below up.
+     */
+    public void linesRemoved(int line, int count) {
+        int from = ceiling(line);
+        int to = ceiling(line + count);
+        System.arraycopy(lines, to, lines, from, size - to);
+        System.arraycopy(masks, to, masks, from, size - to);
+        size -= to - from;
+        for (int i = from; i < size; i++) {
+            lines[i] -= count;
+        }
+    }
+}
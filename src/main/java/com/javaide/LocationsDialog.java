@@ -0,0 +1,104 @@
+package com.javaide;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.util.List;
+
+/**
+ * Lists declarations or usages from the {@link SymbolIndex} to pick one
+ * from. Enter or double-click opens the selected location, Escape closes
+ * the dialog.
+ */
+public class LocationsDialog extends JDialog {
+    /**
+     * Receives the location the user picked.
+     */
+    public interface Listener {
+        void open(SymbolIndex.Location location);
+    }
+    
+    private final Listener listener;
+    private final JList<SymbolIndex.Location> list;
+    
+    public LocationsDialog(Frame owner, String title, List<? extends SymbolIndex.Location> locations,
+                           Listener listener) {
+        super(owner, title, true);
+        this.listener = listener;
+        
+        DefaultListModel<SymbolIndex.Location> model = new DefaultListModel<>();
+        for (SymbolIndex.Location location : locations) {
+            model.addElement(location);
+        }
+        list = new JList<>(model);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setVisibleRowCount(15);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                return super.getListCellRendererComponent(list, describe((SymbolIndex.Location) value), index,
+                    isSelected, cellHasFocus);
+            }
+        });
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    openSelected();
+                }
+            }
+        });
+        list.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_ENTER) {
+                    openSelected();
+                    e.consume();
+                }
+            }
+        });
+        if (!locations.isEmpty()) {
+            list.setSelectedIndex(0);
+        }
+        getRootPane().registerKeyboardAction(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        }, KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_IN_FOCUSED_WINDOW);
+        
+        JScrollPane scrollPane = new JScrollPane(list);
+        scrollPane.setPreferredSize(new Dimension(600, 300));
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        panel.add(scrollPane, BorderLayout.CENTER);
+        setContentPane(panel);
+        pack();
+        setLocationRelativeTo(owner);
+    }
+    
+    private static String describe(SymbolIndex.Location location) {
+        String place = "<font color=gray>" + escape(location.path) + ":" + location.line + "</font>";
+        if (!(location instanceof SymbolIndex.Declaration)) {
+            return "<html>" + place + "</html>";
+        }
+        SymbolIndex.Declaration declaration = (SymbolIndex.Declaration) location;
+        String kind = declaration.kind.name().toLowerCase().replace('_', ' ');
+        String name = declaration.container != null
+            ? escape(declaration.container) + "." + escape(declaration.name) : escape(declaration.name);
+        return "<html><b>" + name + "</b>&nbsp;&nbsp;" + kind + "&nbsp;&nbsp;" + place + "</html>";
+    }
+    
+    private void openSelected() {
+        SymbolIndex.Location location = list.getSelectedValue();
+        if (location != null) {
+            dispose();
+            listener.open(location);
+        }
+    }
+    
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
@@ -0,0 +1,381 @@
+package com.javaide;
+
+import javax.swing.AbstractAction;
+import javax.swing.JComponent;
+import javax.swing.JMenuItem;
+import javax.swing.JPopupMenu;
+import javax.swing.JViewport;
+import javax.swing.KeyStroke;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+/**
+ * Output panel that keeps a bounded number of lines.
+ *
+ * Lines live in a fixed-capacity ring buffer, so the oldest ones are evicted
+ * once it is full and memory use does not depend on how much a process
+ * prints. Only the lines inside the clip are painted, so appending and
+ * scrolling cost the same for ten lines as for the full buffer. Evicted
+ * lines, and lines that did not even fit into the buffer when they arrived,
+ * are counted and reported in a banner above the first line.
+ */
+public class OutputConsole extends JComponent implements Scrollable {
+    /** Number of lines kept, older lines are evicted */
+    public static final int CAPACITY = Integer.getInteger("javaide.outputLines", 20000);
+    
+    // Longer lines are broken, so a process printing without newlines stays bounded
+    private static final int MAX_LINE_CHARS = 4096;
+    
+    private static final String TAB = "    ";
+    
+    private static final Color SELECTION_COLOR = new Color(40, 80, 40);
+    
+    private final String[] lines = new String[CAPACITY];
+    private int first;
+    private int count;
+    
+    // Text after the last newline, shown as the last line
+    private final StringBuilder openLine = new StringBuilder();
+    
+    // Lines evicted after being shown, and lines that never made it into the buffer
+    private long evicted;
+    private long dropped;
+    
+    private int maxLineChars;
+    
+    // Selected lines as indexes into the whole output, -1 when nothing is selected
+    private long selectionAnchor = -1;
+    private long selectionEnd = -1;
+    
+    public OutputConsole() {
+        setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        setBackground(Color.BLACK);
+        setForeground(Color.GREEN);
+        setOpaque(true);
+        setFocusable(true);
+        
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                requestFocusInWindow();
+                if (e.isPopupTrigger()) {
+                    showPopup(e);
+                } else if (e.getButton() == MouseEvent.BUTTON1) {
+                    selectionAnchor = lineAt(e.getY());
+                    selectionEnd = selectionAnchor;
+                    repaint();
+                }
+            }
+            
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (e.isPopupTrigger()) {
+                    showPopup(e);
+                }
+            }
+            
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (selectionAnchor >= 0) {
+                    selectionEnd = lineAt(e.getY());
+                    scrollRectToVisible(new Rectangle(0, e.getY(), 1, 1));
+                    repaint();
+                }
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        
+        getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_C, InputEvent.CTRL_DOWN_MASK), "copy");
+        getActionMap().put("copy", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                copySelection();
+            }
+        });
+    }
+    
+    /**
+     * Appends text, which may contain any number of lines. Must be called on
+     * the EDT.
+     */
+    public void append(String text) {
+        if (text.isEmpty()) {
+            return;
+        }
+        boolean atBottom = isScrolledToBottom();
+        
+        int pos = 0;
+        int length = text.length();
+        // Lines that will be evicted by the end of this append are skipped
+        long incoming = countNewlines(text);
+        long skip = Math.max(0, incoming - CAPACITY);
+        while (pos < length) {
+            int newline = text.indexOf('\n', pos);
+            int end = newline < 0 ? length : newline;
+            if (skip > 0 && newline >= 0) {
+                openLine.setLength(0);
+                dropped++;
+                skip--;
+            } else {
+                appendToOpenLine(text, pos, end);
+                if (newline >= 0) {
+                    addLine(openLine.toString());
+                    openLine.setLength(0);
+                }
+            }
+            pos = end + 1;
+        }
+        
+        revalidate();
+        repaint();
+        if (atBottom) {
+            scrollToBottom();
+        }
+    }
+    
+    public void clear() {
+        first = 0;
+        count = 0;
+        evicted = 0;
+        dropped = 0;
+        maxLineChars = 0;
+        openLine.setLength(0);
+        selectionAnchor = -1;
+        selectionEnd = -1;
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = null;
+        }
+        revalidate();
+        repaint();
+    }
+    
+    public long getEvictedLineCount() {
+        return evicted;
+    }
+    
+    public long getDroppedLineCount() {
+        return dropped;
+    }
+    
+    private void appendToOpenLine(String text, int start, int end) {
+        while (start < end) {
+            int room = MAX_LINE_CHARS - openLine.length();
+            int chunkEnd = Math.min(end, start + room);
+            for (int i = start; i < chunkEnd; i++) {
+                char c = text.charAt(i);
+                if (c == '\t') {
+                    openLine.append(TAB);
+                } else if (c != '\r') {
+                    openLine.append(c);
+                }
+            }
+            start = chunkEnd;
+            if (openLine.length() >= MAX_LINE_CHARS) {
+                addLine(openLine.toString());
+                openLine.setLength(0);
+            }
+        }
+    }
+    
+    private void addLine(String line) {
+        if (count == lines.length) {
+            lines[first] = line;
+            first = (first + 1) % lines.length;
+            evicted++;
+        } else {
+            lines[(first + count) % lines.length] = line;
+            count++;
+        }
+        maxLineChars = Math.max(maxLineChars, line.length());
+    }
+    
+    private static long countNewlines(String text) {
+        long newlines = 0;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+            newlines++;
+        }
+        return newlines;
+    }
+    
+    /**
+     * Number of rows painted: the banner, the stored lines and the open line.
+     */
+    private int rowCount() {
+        return (hasBanner() ? 1 : 0) + count + (openLine.length() > 0 ? 1 : 0);
+    }
+    
+    private boolean hasBanner() {
+        return evicted + dropped > 0;
+    }
+    
+    /**
+     * Text of the given row, rows start with the banner if there is one.
+     */
+    private String rowText(int row) {
+        if (hasBanner()) {
+            if (row == 0) {
+                return "[" + evicted + " earlier lines discarded, " + dropped
+                    + " dropped before display, keeping the last " + CAPACITY + "]";
+            }
+            row--;
+        }
+        return row < count ? lines[(first + row) % lines.length] : openLine.toString();
+    }
+    
+    /**
+     * Index of the row at y in the whole output, including evicted lines.
+     */
+    private long lineAt(int y) {
+        int row = Math.max(0, Math.min(rowCount() - 1, y / lineHeight()));
+        if (hasBanner()) {
+            row = Math.max(0, row - 1);
+        }
+        return evicted + dropped + row;
+    }
+    
+    private int lineHeight() {
+        return getFontMetrics(getFont()).getHeight();
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        
+        g.setFont(getFont());
+        FontMetrics fm = g.getFontMetrics();
+        int lineHeight = fm.getHeight();
+        int rows = rowCount();
+        int firstRow = Math.max(0, clip.y / lineHeight);
+        int lastRow = Math.min(rows - 1, (clip.y + clip.height) / lineHeight);
+        long selectionFrom = Math.min(selectionAnchor, selectionEnd);
+        long selectionTo = Math.max(selectionAnchor, selectionEnd);
+        int bannerRows = hasBanner() ? 1 : 0;
+        
+        for (int row = firstRow; row <= lastRow; row++) {
+            int y = row * lineHeight;
+            long line = evicted + dropped + row - bannerRows;
+            if (row >= bannerRows && selectionFrom >= 0 && line >= selectionFrom && line <= selectionTo) {
+                g.setColor(SELECTION_COLOR);
+                g.fillRect(clip.x, y, clip.width, lineHeight);
+            }
+            g.setColor(row < bannerRows ? Color.GRAY : getForeground());
+            g.drawString(rowText(row), 2, y + fm.getAscent());
+        }
+    }
+    
+    @Override
+    public Dimension getPreferredSize() {
+        FontMetrics fm = getFontMetrics(getFont());
+        int width = fm.charWidth('m') * Math.max(maxLineChars, openLine.length()) + 4;
+        return new Dimension(width, rowCount() * fm.getHeight());
+    }
+    
+    private boolean isScrolledToBottom() {
+        if (!(getParent() instanceof JViewport)) {
+            return true;
+        }
+        Rectangle view = ((JViewport) getParent()).getViewRect();
+        return view.y + view.height >= getPreferredSize().height - lineHeight();
+    }
+    
+    private void scrollToBottom() {
+        if (getParent() instanceof JViewport) {
+            JViewport viewport = (JViewport) getParent();
+            viewport.validate();
+            int height = getPreferredSize().height;
+            Rectangle view = viewport.getViewRect();
+            viewport.setViewPosition(new Point(view.x,
+                Math.max(0, height - view.height)));
+        }
+    }
+    
+    private void copySelection() {
+        long firstLine = evicted + dropped;
+        long from = Math.max(firstLine, Math.min(selectionAnchor, selectionEnd));
+        long to = Math.max(selectionAnchor, selectionEnd);
+        if (selectionAnchor < 0) {
+            // Nothing selected, copy everything
+            from = firstLine;
+            to = Long.MAX_VALUE;
+        }
+        int bannerRows = hasBanner() ? 1 : 0;
+        int rows = rowCount();
+        StringBuilder text = new StringBuilder();
+        for (long line = from; line <= to; line++) {
+            int row = (int) (line - firstLine) + bannerRows;
+            if (row >= rows) {
+                break;
+            }
+            text.append(rowText(row)).append('\n');
+        }
+        Toolkit.getDefaultToolkit().getSystemClipboard().setContents(
+            new StringSelection(text.toString()), null);
+    }
+    
+    private void showPopup(MouseEvent e) {
+        JPopupMenu popup = new JPopupMenu();
+        JMenuItem copyItem = new JMenuItem("Copy");
+        copyItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                copySelection();
+            }
+        });
+        popup.add(copyItem);
+        JMenuItem clearItem = new JMenuItem("Clear");
+        clearItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                clear();
+            }
+        });
+        popup.add(clearItem);
+        popup.show(this, e.getX(), e.getY());
+    }
+    
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+    
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? lineHeight() : getFontMetrics(getFont()).charWidth('m');
+    }
+    
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+    
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return getParent() instanceof JViewport && getParent().getWidth() > getPreferredSize().width;
+    }
+    
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return getParent() instanceof JViewport && getParent().getHeight() > getPreferredSize().height;
+    }
+}
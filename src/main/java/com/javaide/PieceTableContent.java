@@ -0,0 +1,564 @@
+package com.javaide;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Document content backed by a piece table.
+ *
+ * The text is described by a persistent treap of pieces pointing into two
+ * buffers: the original text, which is never copied, and an append-only add
+ * buffer holding everything typed or pasted. Inserts and removes only
+ * rebuild the path to the affected pieces, O(log n), and leave older trees
+ * untouched, so {@link #snapshot} is O(1). The add buffer stores one byte per
+ * character until the first character above U+00FF is inserted.
+ *
+ * Positions follow the same rules as GapContent: they move with inserts at
+ * or before them (except at offset 0), collapse onto removed ranges and are
+ * restored when a removal is undone. Marks are kept sorted and shifted
+ * lazily around a movable split point, so consecutive edits close to each
+ * other only touch a few marks.
+ */
+public class PieceTableContent implements AbstractDocument.Content {
+    private static final int INITIAL_ADD_CAPACITY = 1024;
+    
+    private final CharSequence original;
+    private byte[] addLatin1;
+    private char[] addChars;
+    private int addLength;
+    private TextSnapshot.Node root;
+    private int seed = 0x2545F491;
+    
+    // Marks sorted by offset. Marks before markSplit store their offset,
+    // the others store it minus markShift.
+    private Mark[] marks = new Mark[64];
+    private int markCount;
+    private int markSplit;
+    private int markShift;
+    private final ReferenceQueue<StickyPosition> collected = new ReferenceQueue<>();
+    // Text of the last removal, the same string its undo edit keeps
+    private String lastRemoved;
+    
+    /**
+     * Creates content holding the implied newline every document ends with.
+     */
+    public PieceTableContent() {
+        this("\n");
+    }
+    
+    /**
+     * Creates content over existing text, which must end with a newline.
+     * The text is referenced, not copied.
+     */
+    public PieceTableContent(CharSequence original) {
+        this.original = original;
+        this.addLatin1 = new byte[INITIAL_ADD_CAPACITY];
+        this.root = new TextSnapshot.Node(null, null, nextPriority(), false, 0, original.length());
+    }
+    
+    /**
+     * Creates content over the text of a file, followed by the implied
+     * newline. The text is referenced, not copied.
+     */
+    public static PieceTableContent over(CharSequence text) {
+        if (text.length() == 0) {
+            return new PieceTableContent();
+        }
+        PieceTableContent content = new PieceTableContent(text);
+        content.insertText(text.length(), "\n");
+        return content;
+    }
+    
+    /**
+     * Returns an immutable view of the first length characters.
+     */
+    public TextSnapshot snapshot(int length) {
+        return new TextSnapshot(root, original, addChars == null ? addLatin1 : null, addChars, length);
+    }
+    
+    @Override
+    public int length() {
+        return TextSnapshot.size(root);
+    }
+    
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        checkRange(where, len);
+        char[] chars = new char[len];
+        snapshot(length()).getChars(where, where + len, chars, 0);
+        return new String(chars);
+    }
+    
+    @Override
+    public void getChars(int where, int len, Segment txt) throws BadLocationException {
+        checkRange(where, len);
+        
+        // Hand out the add buffer itself when the range lies in a single piece
+        if (addChars != null) {
+            TextSnapshot.Node node = root;
+            int offset = where;
+            while (node != null) {
+                int leftSize = TextSnapshot.size(node.left);
+                if (offset < leftSize) {
+                    node = node.left;
+                } else if (offset < leftSize + node.length) {
+                    int inPiece = offset - leftSize;
+                    int available = node.length - inPiece;
+                    if (node.added && (available >= len || txt.isPartialReturn())) {
+                        txt.array = addChars;
+                        txt.offset = node.start + inPiece;
+                        txt.count = Math.min(len, available);
+                        return;
+                    }
+                    break;
+                } else {
+                    offset -= leftSize + node.length;
+                    node = node.right;
+                }
+            }
+        }
+        
+        char[] chars = new char[len];
+        snapshot(length()).getChars(where, where + len, chars, 0);
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+    
+    @Override
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where < 0 || where > length()) {
+            throw new BadLocationException("Invalid insert", where);
+        }
+        insertText(where, str);
+        return new InsertUndo(where, str.length());
+    }
+    
+    @Override
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || nitems < 0 || where + nitems >= length()) {
+            throw new BadLocationException("Invalid remove", where + nitems);
+        }
+        String removed = getString(where, nitems);
+        List<MarkOffset> positions = marksInRange(where, where + nitems);
+        removeText(where, nitems);
+        lastRemoved = removed;
+        return new RemoveUndo(where, removed, positions);
+    }
+    
+    /**
+     * Returns the text the last removal took out, once.
+     */
+    String takeRemoved() {
+        String text = lastRemoved;
+        lastRemoved = null;
+        return text != null ? text : "";
+    }
+    
+    @Override
+    public Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > length()) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        purgeCollectedMarks();
+        
+        int index = findMark(offset, false);
+        if (index < markCount && markOffset(index) == offset) {
+            StickyPosition existing = marks[index].get();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        
+        StickyPosition position = new StickyPosition();
+        Mark mark = new Mark(position, collected);
+        position.mark = mark;
+        if (index < markSplit) {
+            mark.raw = offset;
+            mark.afterSplit = false;
+            markSplit++;
+        } else {
+            mark.raw = offset - markShift;
+            mark.afterSplit = true;
+        }
+        if (markCount == marks.length) {
+            marks = Arrays.copyOf(marks, markCount * 2);
+        }
+        System.arraycopy(marks, index, marks, index + 1, markCount - index);
+        marks[index] = mark;
+        markCount++;
+        return position;
+    }
+    
+    private void insertText(int where, String str) {
+        int len = str.length();
+        if (len == 0) {
+            return;
+        }
+        int addStart = addLength;
+        appendToAddBuffer(str);
+        
+        // Typing usually continues the piece that ends right at the insertion point
+        TextSnapshot.Node extended = where > 0 ? extendPiece(root, where, addStart, len) : null;
+        if (extended != null) {
+            root = extended;
+        } else {
+            TextSnapshot.Node[] parts = split(root, where);
+            TextSnapshot.Node piece = new TextSnapshot.Node(null, null, nextPriority(), true, addStart, len);
+            root = merge(merge(parts[0], piece), parts[1]);
+        }
+        
+        // Marks at the insertion point move along, except those at offset 0
+        moveMarkSplit(findMark(where, where == 0));
+        markShift += len;
+    }
+    
+    private void removeText(int where, int len) {
+        if (len == 0) {
+            return;
+        }
+        TextSnapshot.Node[] head = split(root, where);
+        TextSnapshot.Node[] tail = split(head[1], len);
+        root = merge(head[0], tail[1]);
+        
+        // Marks inside the removed range collapse onto its start
+        int index = findMark(where, false);
+        moveMarkSplit(index);
+        markShift -= len;
+        for (int i = index; i < markCount; i++) {
+            Mark mark = marks[i];
+            if (mark.raw + markShift + len > where + len) {
+                break;
+            }
+            mark.raw = where - markShift;
+        }
+    }
+    
+    private void appendToAddBuffer(String str) {
+        int len = str.length();
+        if (addChars == null) {
+            for (int i = 0; i < len; i++) {
+                if (str.charAt(i) > 0xFF) {
+                    inflateAddBuffer(addLength + len);
+                    break;
+                }
+            }
+        }
+        if (addChars != null) {
+            if (addLength + len > addChars.length) {
+                addChars = Arrays.copyOf(addChars, Math.max(addLength + len, addChars.length * 2));
+            }
+            str.getChars(0, len, addChars, addLength);
+        } else {
+            if (addLength + len > addLatin1.length) {
+                addLatin1 = Arrays.copyOf(addLatin1, Math.max(addLength + len, addLatin1.length * 2));
+            }
+            for (int i = 0; i < len; i++) {
+                addLatin1[addLength + i] = (byte) str.charAt(i);
+            }
+        }
+        addLength += len;
+    }
+    
+    private void inflateAddBuffer(int capacity) {
+        char[] chars = new char[Math.max(capacity, addLatin1.length)];
+        for (int i = 0; i < addLength; i++) {
+            chars[i] = (char) (addLatin1[i] & 0xFF);
+        }
+        addChars = chars;
+        addLatin1 = null;
+    }
+    
+    /**
+     * Returns a new tree in which the add piece ending at offset where, and at
+     * the end of the add buffer, is longer by len; null if there is none.
+     */
+    private static TextSnapshot.Node extendPiece(TextSnapshot.Node node, int where, int addStart, int len) {
+        if (node == null) {
+            return null;
+        }
+        int leftSize = TextSnapshot.size(node.left);
+        int pieceEnd = leftSize + node.length;
+        if (where <= leftSize) {
+            TextSnapshot.Node left = extendPiece(node.left, where, addStart, len);
+            return left == null ? null : node.with(left, node.right);
+        }
+        if (where > pieceEnd) {
+            TextSnapshot.Node right = extendPiece(node.right, where - pieceEnd, addStart, len);
+            return right == null ? null : node.with(node.left, right);
+        }
+        if (where == pieceEnd && node.added && node.start + node.length == addStart) {
+            return new TextSnapshot.Node(node.left, node.right, node.priority, true, node.start, node.length + len);
+        }
+        return null;
+    }
+    
+    /**
+     * Splits a tree into the first offset characters and the rest.
+     */
+    private TextSnapshot.Node[] split(TextSnapshot.Node node, int offset) {
+        if (node == null) {
+            return new TextSnapshot.Node[2];
+        }
+        int leftSize = TextSnapshot.size(node.left);
+        if (offset <= leftSize) {
+            TextSnapshot.Node[] parts = split(node.left, offset);
+            parts[1] = node.with(parts[1], node.right);
+            return parts;
+        }
+        if (offset >= leftSize + node.length) {
+            TextSnapshot.Node[] parts = split(node.right, offset - leftSize - node.length);
+            parts[0] = node.with(node.left, parts[0]);
+            return parts;
+        }
+        int inPiece = offset - leftSize;
+        TextSnapshot.Node head = new TextSnapshot.Node(node.left, null, node.priority,
+            node.added, node.start, inPiece);
+        TextSnapshot.Node tail = new TextSnapshot.Node(null, null, nextPriority(),
+            node.added, node.start + inPiece, node.length - inPiece);
+        return new TextSnapshot.Node[] { head, merge(tail, node.right) };
+    }
+    
+    private static TextSnapshot.Node merge(TextSnapshot.Node a, TextSnapshot.Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            return a.with(a.left, merge(a.right, b));
+        }
+        return b.with(merge(a, b.left), b.right);
+    }
+    
+    private int nextPriority() {
+        // xorshift, good enough to keep the treap balanced
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+    
+    private void checkRange(int where, int len) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length()) {
+            throw new BadLocationException("Invalid range", where + len);
+        }
+    }
+    
+    private int markOffset(int index) {
+        Mark mark = marks[index];
+        return mark.afterSplit ? mark.raw + markShift : mark.raw;
+    }
+    
+    /**
+     * Returns the index of the first mark at or after offset, or strictly
+     * after it if after is set.
+     */
+    private int findMark(int offset, boolean after) {
+        int low = 0;
+        int high = markCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int markOffset = markOffset(mid);
+            if (markOffset < offset || (after && markOffset == offset)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Moves the split point to index, converting the marks in between.
+     */
+    private void moveMarkSplit(int index) {
+        for (int i = index; i < markSplit; i++) {
+            Mark mark = marks[i];
+            mark.raw -= markShift;
+            mark.afterSplit = true;
+        }
+        for (int i = markSplit; i < index; i++) {
+            Mark mark = marks[i];
+            mark.raw += markShift;
+            mark.afterSplit = false;
+        }
+        markSplit = index;
+    }
+    
+    private List<MarkOffset> marksInRange(int start, int end) {
+        List<MarkOffset> positions = new ArrayList<>();
+        for (int i = findMark(start, false); i < markCount; i++) {
+            int offset = markOffset(i);
+            if (offset > end) {
+                break;
+            }
+            if (marks[i].get() != null) {
+                positions.add(new MarkOffset(marks[i], offset));
+            }
+        }
+        return positions;
+    }
+    
+    /**
+     * Puts marks back where they were before [where, where + length) was
+     * removed, after the text has been inserted again.
+     */
+    private void restoreMarks(List<MarkOffset> positions, int where, int length) {
+        if (positions.isEmpty()) {
+            return;
+        }
+        // The restored marks all lie in [where, where + length] before and after
+        int low = findMark(where, false);
+        int high = findMark(where + length, true);
+        moveMarkSplit(low);
+        for (MarkOffset position : positions) {
+            position.mark.raw = position.offset - markShift;
+        }
+        Arrays.sort(marks, low, high, new Comparator<Mark>() {
+            @Override
+            public int compare(Mark a, Mark b) {
+                return Integer.compare(a.raw, b.raw);
+            }
+        });
+    }
+    
+    private void purgeCollectedMarks() {
+        if (collected.poll() == null) {
+            return;
+        }
+        while (collected.poll() != null) {
+            // Drain, the marks themselves are found by scanning below
+        }
+        int kept = 0;
+        int split = markSplit;
+        for (int i = 0; i < markCount; i++) {
+            if (marks[i].get() != null) {
+                marks[kept++] = marks[i];
+            } else if (i < markSplit) {
+                split--;
+            }
+        }
+        Arrays.fill(marks, kept, markCount, null);
+        markCount = kept;
+        markSplit = split;
+    }
+    
+    /**
+     * Tracks the offset of a position; only weakly reachable from the
+     * content so positions nobody uses any more are dropped.
+     */
+    private static final class Mark extends WeakReference<StickyPosition> {
+        int raw;
+        boolean afterSplit;
+        
+        Mark(StickyPosition position, ReferenceQueue<StickyPosition> queue) {
+            super(position, queue);
+        }
+    }
+    
+    private final class StickyPosition implements Position {
+        Mark mark;
+        
+        @Override
+        public int getOffset() {
+            return mark.afterSplit ? mark.raw + markShift : mark.raw;
+        }
+        
+        @Override
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+    
+    private static final class MarkOffset {
+        final Mark mark;
+        final int offset;
+        
+        MarkOffset(Mark mark, int offset) {
+            this.mark = mark;
+            this.offset = offset;
+        }
+    }
+    
+    private final class InsertUndo extends AbstractUndoableEdit {
+        private final int offset;
+        private final int length;
+        private String string;
+        private List<MarkOffset> positions;
+        
+        InsertUndo(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+        
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            try {
+                positions = marksInRange(offset, offset + length);
+                string = getString(offset, length);
+                removeText(offset, length);
+            } catch (BadLocationException e) {
+                throw new CannotUndoException();
+            }
+        }
+        
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            insertText(offset, string);
+            restoreMarks(positions, offset, length);
+            string = null;
+            positions = null;
+        }
+    }
+    
+    private final class RemoveUndo extends AbstractUndoableEdit {
+        private final int offset;
+        private final int length;
+        private String string;
+        private List<MarkOffset> positions;
+        
+        RemoveUndo(int offset, String string, List<MarkOffset> positions) {
+            this.offset = offset;
+            this.length = string.length();
+            this.string = string;
+            this.positions = positions;
+        }
+        
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            insertText(offset, string);
+            restoreMarks(positions, offset, length);
+            string = null;
+            positions = null;
+        }
+        
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            try {
+                positions = marksInRange(offset, offset + length);
+                string = getString(offset, length);
+                removeText(offset, length);
+            } catch (BadLocationException e) {
+                throw new CannotRedoException();
+            }
+        }
+    }
+}
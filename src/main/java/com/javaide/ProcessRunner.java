@@ -0,0 +1,162 @@
+package com.javaide;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an external command without blocking the event dispatch thread.
+ *
+ * A reader thread starts the process and pumps its combined stdout and
+ * stderr to the output panel through {@link ConsoleTask}. When the panel
+ * falls behind the reader stops reading, which in turn blocks the process
+ * on its output pipe.
+ *
+ * The end of the task is taken from the process exit, not from the end of
+ * its output: children of the process may hold the pipe open long after
+ * it is gone, so the reader only gets a moment to catch up.
+ */
+public class ProcessRunner extends ConsoleTask {
+    // Time a process gets to exit after a stop request before it is killed
+    private static final long STOP_GRACE_MS = 2000;
+    // Time the reader gets to pass on the last output after the process exits
+    private static final long DRAIN_GRACE_MS = 500;
+    
+    private final String[] command;
+    private final File workingDir;
+    
+    // Guarded by this
+    private Process process;
+    
+    public ProcessRunner(String[] command, File workingDir, Listener listener) {
+        super(listener);
+        this.command = command;
+        this.workingDir = workingDir;
+    }
+    
+    @Override
+    protected void run() {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pump();
+            }
+        }, "Process output " + command[0]);
+        reader.setDaemon(true);
+        reader.start();
+    }
+    
+    /**
+     * Asks the process to terminate and kills it if it is still alive after
+     * a grace period.
+     */
+    @Override
+    public void stop() {
+        final Process target;
+        synchronized (this) {
+            if (!markStopped()) {
+                return;
+            }
+            target = process;
+        }
+        // Before the process is started pump() terminates it instead
+        if (target != null) {
+            terminate(target);
+        }
+    }
+    
+    /**
+     * Destroys the process, kills it if it is still alive after a grace
+     * period and then ends the task, on a thread of its own.
+     */
+    private void terminate(final Process target) {
+        target.destroy();
+        Thread killer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!target.waitFor(STOP_GRACE_MS, TimeUnit.MILLISECONDS)) {
+                        target.destroyForcibly().waitFor();
+                    }
+                } catch (InterruptedException e) {
+                    target.destroyForcibly();
+                    finish(-1);
+                    return;
+                }
+                finish(target.exitValue());
+            }
+        }, "Process stop " + command[0]);
+        killer.setDaemon(true);
+        killer.start();
+    }
+    
+    /**
+     * Ends the task once the process exits, after giving the reader a
+     * moment to pass on what is left in the pipe.
+     */
+    private void watch(final Process target, final Thread reader) {
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int code = -1;
+                try {
+                    code = target.waitFor();
+                    reader.join(DRAIN_GRACE_MS);
+                } catch (InterruptedException e) {
+                    // Ends the task with what was read so far
+                }
+                finish(code);
+            }
+        }, "Process exit " + command[0]);
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+    
+    private void pump() {
+        Process started;
+        try {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            if (workingDir != null) {
+                pb.directory(workingDir);
+            }
+            pb.redirectErrorStream(true);
+            started = pb.start();
+        } catch (IOException e) {
+            offer("Error running command: " + e.getMessage() + "\n");
+            finish(-1);
+            return;
+        }
+        boolean stopped;
+        synchronized (this) {
+            process = started;
+            stopped = isStopped();
+        }
+        if (stopped) {
+            // Stopped while starting, stop() left the process to us
+            terminate(started);
+            return;
+        }
+        watch(started, Thread.currentThread());
+        
+        try {
+            Reader reader = new InputStreamReader(started.getInputStream());
+            try {
+                char[] buffer = new char[8192];
+                int count;
+                while ((count = reader.read(buffer)) != -1) {
+                    if (!offer(buffer, 0, count)) {
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // The pipe is closed when the process is killed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Walks a project directory in parallel and produces a
+ * {@link ProjectSnapshot}.
+ *
+ * Every directory is a fork-join task that lists its entries, reads their
+ * attributes with a single stat each, and forks a task per subdirectory, so
+ * the file system sees many requests in flight at once. Entries rejected by
+ * {@link IgnoreRules} are never descended into. Symbolic links to
+ * directories are not followed, which keeps cycles out.
+ */
+public class ProjectScanner {
+    // Scanning waits on the file system, so more threads than cores pay off
+    private static final ForkJoinPool POOL = new ForkJoinPool(
+        Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Project scanner");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Receives the result of a scan on the EDT.
+     */
+    public interface Listener {
+        void finished(ProjectSnapshot snapshot);
+        
+        void failed(IOException e);
+    }
+    
+    /**
+     * Entry found by the walk, flattened into the snapshot afterwards.
+     */
+    private static class Entry {
+        static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return e1.name.compareTo(e2.name);
+            }
+        };
+        
+        final String name;
+        final boolean directory;
+        final long length;
+        final long lastModified;
+        List<Entry> children = Collections.emptyList();
+        
+        Entry(String name, BasicFileAttributes attributes) {
+            this.name = name;
+            this.directory = attributes.isDirectory();
+            this.length = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+    }
+    
+    /**
+     * Lists one directory and forks its subdirectories.
+     */
+    private static class DirectoryTask extends RecursiveTask<List<Entry>> {
+        private final Path dir;
+        private final String path;
+        private final IgnoreRules rules;
+        
+        DirectoryTask(Path dir, String path, IgnoreRules rules) {
+            this.dir = dir;
+            this.path = path;
+            this.rules = rules;
+        }
+        
+        @Override
+        protected List<Entry> compute() {
+            List<Path> paths = new ArrayList<>();
+            IgnoreRules rules = this.rules;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    paths.add(child);
+                }
+            } catch (IOException e) {
+                // Unreadable directories show up empty
+                return Collections.emptyList();
+            }
+            Path gitignore = dir.resolve(".gitignore");
+            if (paths.contains(gitignore)) {
+                try {
+                    rules = rules.withIgnoreFile(gitignore, path);
+                } catch (IOException e) {
+                    // An unreadable or dangling .gitignore ignores nothing
+                }
+            }
+            
+            List<Entry> entries = new ArrayList<>(paths.size());
+            List<Entry> directories = new ArrayList<>();
+            List<DirectoryTask> tasks = new ArrayList<>();
+            for (Path child : paths) {
+                String name = child.getFileName().toString();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isSymbolicLink()) {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                        if (attributes.isDirectory()) {
+                            continue;
+                        }
+                    }
+                } catch (IOException e) {
+                    // Deleted while scanning, or a dangling link
+                    continue;
+                }
+                String childPath = path + name;
+                if (rules.isIgnored(childPath, name, attributes.isDirectory())) {
+                    continue;
+                }
+                Entry entry = new Entry(name, attributes);
+                entries.add(entry);
+                if (entry.directory) {
+                    directories.add(entry);
+                    tasks.add(new DirectoryTask(child, childPath + "/", rules));
+                }
+            }
+            
+            invokeAll(tasks);
+            for (int i = 0; i < tasks.size(); i++) {
+                directories.get(i).children = tasks.get(i).join();
+            }
+            Collections.sort(entries, Entry.BY_NAME);
+            return entries;
+        }
+    }
+    
+    private ProjectScanner() {
+    }
+    
+    /**
+     * Scans the project, blocking until done.
+     */
+    public static ProjectSnapshot scan(File root) throws IOException {
+        long start = System.nanoTime();
+        Path rootPath = root.toPath();
+        BasicFileAttributes attributes = Files.readAttributes(rootPath, BasicFileAttributes.class);
+        if (!attributes.isDirectory()) {
+            throw new IOException(root + " is not a directory");
+        }
+        Entry top = new Entry(root.getName(), attributes);
+        top.children = POOL.invoke(new DirectoryTask(rootPath, "", IgnoreRules.defaults()));
+        return flatten(root, top, start);
+    }
+    
+    /**
+     * Scans the project in the background.
+     */
+    public static void scan(final File root, final Listener listener) {
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final ProjectSnapshot snapshot = scan(root);
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.finished(snapshot);
+                        }
+                    });
+                } catch (IOException e) {
+                    failed(e);
+                } catch (RuntimeException e) {
+                    // The listener must hear of the scan either way
+                    failed(new IOException(e.toString(), e));
+                }
+            }
+            
+            private void failed(final IOException e) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.failed(e);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Numbers the entries breadth first so each directory's children end up
+     * next to each other.
+     */
+    private static ProjectSnapshot flatten(File root, Entry top, long start) {
+        int count = count(top);
+        String[] names = new String[count];
+        int[] parents = new int[count];
+        int[] firstChildren = new int[count];
+        int[] childCounts = new int[count];
+        long[] lengths = new long[count];
+        long[] lastModified = new long[count];
+        BitSet directories = new BitSet(count);
+        
+        ArrayDeque<Entry> queue = new ArrayDeque<>();
+        queue.add(top);
+        parents[0] = -1;
+        int next = 1;
+        for (int index = 0; index < count; index++) {
+            Entry entry = queue.poll();
+            names[index] = entry.name;
+            lengths[index] = entry.length;
+            lastModified[index] = entry.lastModified;
+            firstChildren[index] = next;
+            childCounts[index] = entry.children.size();
+            if (entry.directory) {
+                directories.set(index);
+            }
+            for (Entry child : entry.children) {
+                parents[next++] = index;
+                queue.add(child);
+            }
+        }
+        return new ProjectSnapshot(root, names, parents, firstChildren, childCounts,
+            lengths, lastModified, directories, System.nanoTime() - start);
+    }
+    
+    private static int count(Entry entry) {
+        int count = 1;
+        for (Entry child : entry.children) {
+            count += count(child);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,356 @@
+package com.javaide;
+
+import javax.swing.Timer;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Searches the text of every file in the project on all cores.
+ *
+ * Workers take files from a shared counter and read each one through a
+ * {@link TextReader}, so matching runs over a reused buffer and no String is
+ * created per file; only the lines that match are copied out. Literal
+ * queries are matched by a plain character scan, which is several times
+ * faster than a case insensitive regular expression. Hits are
+ * handed to the EDT once per frame while the search runs, so the first
+ * results show up long before the last file is read.
+ *
+ * With a {@link SearchIndex}, literal searches read only the files that
+ * can contain the text.
+ */
+public class ProjectSearcher {
+    static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    
+    static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Search");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    // Buffers stay with the pool threads from one search to the next
+    private static final ThreadLocal<TextReader> READERS = new ThreadLocal<TextReader>() {
+        @Override
+        protected TextReader initialValue() {
+            return new TextReader();
+        }
+    };
+    
+    // Hits are handed to the EDT at most this often
+    private static final int FRAME_MS = 50;
+    
+    // The search stops after this many hits
+    static final int MAX_HITS = 10000;
+    
+    // Longer lines are cut in the results
+    private static final int MAX_LINE_CHARS = 300;
+    
+    /**
+     * One matching line. Only the first match of a line is reported.
+     */
+    public static class Hit {
+        public final File file;
+        public final String path;
+        // 1-based
+        public final int line;
+        // 0-based, within the line
+        public final int column;
+        public final String text;
+        
+        Hit(File file, String path, int line, int column, String text) {
+            this.file = file;
+            this.path = path;
+            this.line = line;
+            this.column = column;
+            this.text = text;
+        }
+    }
+    
+    /**
+     * Receives hits and the end of the search on the EDT.
+     */
+    public interface Listener {
+        void found(List<Hit> hits);
+        
+        /**
+         * @param truncated true if the search stopped at {@link #MAX_HITS}
+         */
+        void finished(int filesSearched, int filesMatched, int hits, boolean truncated, long nanos);
+    }
+    
+    /**
+     * Finds literal text, with or without regard to case.
+     */
+    private static class Literal {
+        private final char[] lower;
+        private final char[] upper;
+        private final boolean matchCase;
+        
+        Literal(String text, boolean matchCase) {
+            this.matchCase = matchCase;
+            lower = new char[text.length()];
+            upper = new char[text.length()];
+            for (int i = 0; i < lower.length; i++) {
+                char c = text.charAt(i);
+                upper[i] = matchCase ? c : Character.toUpperCase(c);
+                lower[i] = matchCase ? c : Character.toLowerCase(upper[i]);
+            }
+        }
+        
+        /**
+         * Returns the index of the first occurrence at or after from, or -1.
+         */
+        int find(char[] chars, int from, int length) {
+            int last = length - lower.length;
+            for (int i = from; i <= last; i++) {
+                if (matches(chars[i], 0)) {
+                    int k = 1;
+                    while (k < lower.length && matches(chars[i + k], k)) {
+                        k++;
+                    }
+                    if (k == lower.length) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+        
+        private boolean matches(char c, int k) {
+            if (c == lower[k] || c == upper[k]) {
+                return true;
+            }
+            // Same rule as String.equalsIgnoreCase for the rest of Unicode
+            return !matchCase && c >= 0x80 && Character.toLowerCase(Character.toUpperCase(c)) == lower[k];
+        }
+    }
+    
+    /**
+     * Compiles the query the way searches use it.
+     *
+     * @throws PatternSyntaxException if a regular expression is invalid
+     */
+    public static Pattern compile(String query, boolean regex, boolean matchCase) {
+        int flags = regex ? 0 : Pattern.LITERAL;
+        if (!matchCase) {
+            flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        }
+        return Pattern.compile(query, flags);
+    }
+    
+    /**
+     * Starts searching. Must be called on the EDT.
+     *
+     * @param index used to narrow literal searches, may be null
+     */
+    public static Search start(ProjectSnapshot snapshot, SearchIndex index, String query,
+                               boolean regex, boolean matchCase, Listener listener) {
+        Search search = regex
+            ? new Search(snapshot, null, query, compile(query, true, matchCase), null, listener)
+            : new Search(snapshot, index, query, null, new Literal(query, matchCase), listener);
+        search.start();
+        return search;
+    }
+    
+    /**
+     * A running search.
+     */
+    public static class Search {
+        private final ProjectSnapshot snapshot;
+        private final SearchIndex index;
+        private final String query;
+        // One of these is set
+        private final Pattern pattern;
+        private final Literal literal;
+        private final Listener listener;
+        private final Timer frameTimer;
+        private final long started = System.nanoTime();
+        
+        private int[] files;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger hitCount = new AtomicInteger();
+        private final AtomicInteger filesMatched = new AtomicInteger();
+        
+        // Guarded by this
+        private List<Hit> pending = new ArrayList<>();
+        private int running;
+        
+        private volatile boolean cancelled;
+        private volatile boolean truncated;
+        
+        private Search(ProjectSnapshot snapshot, SearchIndex index, String query, Pattern pattern, Literal literal,
+                       Listener listener) {
+            this.snapshot = snapshot;
+            this.index = index;
+            this.query = query;
+            this.pattern = pattern;
+            this.literal = literal;
+            this.listener = listener;
+            this.frameTimer = new Timer(FRAME_MS, new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    drain();
+                }
+            });
+        }
+        
+        private void start() {
+            running = THREADS;
+            frameTimer.start();
+            POOL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    files = selectFiles();
+                    for (int i = 0; i < THREADS; i++) {
+                        POOL.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                work();
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        
+        /**
+         * Stops the search. No more hits are delivered, nor the end of the
+         * search. Must be called on the EDT.
+         */
+        public void cancel() {
+            cancelled = true;
+            frameTimer.stop();
+        }
+        
+        private int[] selectFiles() {
+            if (index != null) {
+                return index.candidates(snapshot, query);
+            }
+            int[] all = new int[snapshot.getFileCount()];
+            int count = 0;
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (!snapshot.isDirectory(i)) {
+                    all[count++] = i;
+                }
+            }
+            return all;
+        }
+        
+        private void work() {
+            try {
+                TextReader reader = READERS.get();
+                Matcher matcher = pattern != null ? pattern.matcher("") : null;
+                int i;
+                while (!cancelled && !truncated && (i = next.getAndIncrement()) < files.length) {
+                    CharBuffer text;
+                    try {
+                        text = reader.read(snapshot.getFile(files[i]));
+                    } catch (IOException e) {
+                        // Deleted or unreadable since the scan
+                        continue;
+                    }
+                    if (text != null) {
+                        search(files[i], text, matcher != null ? matcher.reset(text) : null);
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    running--;
+                }
+            }
+        }
+        
+        /**
+         * Reports the lines of one file that match.
+         *
+         * @param matcher reset to the text, null for a literal search
+         */
+        private void search(int entry, CharBuffer text, Matcher matcher) {
+            char[] chars = text.array();
+            int length = text.limit();
+            List<Hit> hits = null;
+            int line = 1;
+            int lineStart = 0;
+            int counted = 0;
+            int start = find(chars, 0, length, matcher);
+            while (start >= 0) {
+                for (; counted < start; counted++) {
+                    if (chars[counted] == '\n') {
+                        line++;
+                        lineStart = counted + 1;
+                    }
+                }
+                int lineEnd = lineStart;
+                while (lineEnd < length && chars[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                if (hitCount.incrementAndGet() > MAX_HITS) {
+                    truncated = true;
+                    break;
+                }
+                if (hits == null) {
+                    hits = new ArrayList<>();
+                }
+                int end = Math.min(lineEnd, lineStart + MAX_LINE_CHARS);
+                if (end > lineStart && chars[end - 1] == '\r') {
+                    end--;
+                }
+                hits.add(new Hit(snapshot.getFile(entry), snapshot.getPath(entry), line,
+                    start - lineStart, new String(chars, lineStart, end - lineStart)));
+                // One hit per line: go on with the next one
+                start = find(chars, lineEnd + 1, length, matcher);
+            }
+            if (hits != null) {
+                filesMatched.incrementAndGet();
+                synchronized (this) {
+                    pending.addAll(hits);
+                }
+            }
+        }
+        
+        private int find(char[] chars, int from, int length, Matcher matcher) {
+            if (from > length) {
+                return -1;
+            }
+            if (matcher == null) {
+                return literal.find(chars, from, length);
+            }
+            return matcher.find(from) ? matcher.start() : -1;
+        }
+        
+        private void drain() {
+            List<Hit> hits;
+            boolean done;
+            synchronized (this) {
+                hits = pending;
+                pending = new ArrayList<>();
+                done = running == 0;
+            }
+            if (cancelled) {
+                return;
+            }
+            if (!hits.isEmpty()) {
+                listener.found(hits);
+            }
+            if (done) {
+                frameTimer.stop();
+                listener.finished(Math.min(next.get(), files.length), filesMatched.get(),
+                    Math.min(hitCount.get(), MAX_HITS), truncated, System.nanoTime() - started);
+            }
+        }
+    }
+}
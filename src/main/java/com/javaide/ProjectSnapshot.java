@@ -0,0 +1,144 @@
+package com.javaide;
+
+import java.io.File;
+import java.util.BitSet;
+
+/**
+ * Immutable listing of the files in a project, built by
+ * {@link ProjectScanner}.
+ *
+ * Entries are numbered breadth first with the project directory at 0, so
+ * the children of a directory are a contiguous run of indices sorted by
+ * name. Everything is kept in parallel arrays instead of one object per
+ * entry, which keeps a 100,000 file project at a few megabytes and lets any
+ * number of threads read the snapshot without locking.
+ */
+public class ProjectSnapshot {
+    private final File root;
+    private final String[] names;
+    private final int[] parents;
+    private final int[] firstChildren;
+    private final int[] childCounts;
+    private final long[] lengths;
+    private final long[] lastModified;
+    private final BitSet directories;
+    private final int fileCount;
+    private final long scanNanos;
+    
+    ProjectSnapshot(File root, String[] names, int[] parents, int[] firstChildren, int[] childCounts,
+                    long[] lengths, long[] lastModified, BitSet directories, long scanNanos) {
+        this.root = root;
+        this.names = names;
+        this.parents = parents;
+        this.firstChildren = firstChildren;
+        this.childCounts = childCounts;
+        this.lengths = lengths;
+        this.lastModified = lastModified;
+        this.directories = directories;
+        this.fileCount = names.length - directories.cardinality();
+        this.scanNanos = scanNanos;
+    }
+    
+    public File getRoot() {
+        return root;
+    }
+    
+    /**
+     * Number of entries, directories included.
+     */
+    public int size() {
+        return names.length;
+    }
+    
+    public int getFileCount() {
+        return fileCount;
+    }
+    
+    public long getScanNanos() {
+        return scanNanos;
+    }
+    
+    public String getName(int index) {
+        return names[index];
+    }
+    
+    /**
+     * Index of the containing directory, -1 for the project directory.
+     */
+    public int getParent(int index) {
+        return parents[index];
+    }
+    
+    public boolean isDirectory(int index) {
+        return directories.get(index);
+    }
+    
+    public long getLength(int index) {
+        return lengths[index];
+    }
+    
+    public long getLastModified(int index) {
+        return lastModified[index];
+    }
+    
+    public int getFirstChild(int index) {
+        return firstChildren[index];
+    }
+    
+    public int getChildCount(int index) {
+        return childCounts[index];
+    }
+    
+    /**
+     * Path relative to the project directory, separated by "/".
+     */
+    public String getPath(int index) {
+        if (index == 0) {
+            return "";
+        }
+        StringBuilder path = new StringBuilder(names[index]);
+        for (int parent = parents[index]; parent > 0; parent = parents[parent]) {
+            path.insert(0, '/').insert(0, names[parent]);
+        }
+        return path.toString();
+    }
+    
+    public File getFile(int index) {
+        return index == 0 ? root : new File(root, getPath(index));
+    }
+    
+    /**
+     * Looks up a path relative to the project directory, returns -1 if it is
+     * not in the snapshot.
+     */
+    public int find(String path) {
+        int index = 0;
+        for (String name : path.split("/")) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            index = findChild(index, name);
+            if (index < 0) {
+                return -1;
+            }
+        }
+        return index;
+    }
+    
+    private int findChild(int directory, String name) {
+        int low = firstChildren[directory];
+        int high = low + childCounts[directory] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = names[mid].compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
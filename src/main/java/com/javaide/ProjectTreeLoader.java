@@ -0,0 +1,255 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeWillExpandListener;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeNode;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Fills in the project tree one directory at a time as it is expanded.
+ *
+ * Listing a directory touches the file system once per entry, which is slow
+ * on large checkouts and network drives, so it runs on a background thread
+ * while the directory shows a placeholder. Only expanded directories are
+ * ever listed, so opening a project costs one listing no matter how big it
+ * is.
+ *
+ * Listed directories are handed to the {@link ProjectWatcher}. When one of
+ * them changes it is listed again and the difference is applied as one
+ * removal and one insertion event, so nodes that stay keep their expansion
+ * state and the tree repaints once per directory.
+ */
+public class ProjectTreeLoader implements TreeWillExpandListener {
+    private static final ExecutorService WORKER = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Project tree");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    private static final Comparator<File> BY_NAME = new Comparator<File>() {
+        @Override
+        public int compare(File f1, File f2) {
+            return f1.getName().compareTo(f2.getName());
+        }
+    };
+    
+    private final DefaultTreeModel model;
+    // Listed directories of the current project, only used on the EDT
+    private final Map<File, FileNode> loaded = new HashMap<>();
+    private ProjectWatcher watcher;
+    
+    public ProjectTreeLoader(DefaultTreeModel model) {
+        this.model = model;
+    }
+    
+    /**
+     * Starts over for a new project. Directories listed from now on are
+     * watched by the given watcher, which may be null.
+     */
+    public void reset(ProjectWatcher watcher) {
+        loaded.clear();
+        this.watcher = watcher;
+    }
+    
+    @Override
+    public void treeWillExpand(TreeExpansionEvent event) {
+        Object node = event.getPath().getLastPathComponent();
+        if (node instanceof FileNode) {
+            load((FileNode) node);
+        }
+    }
+    
+    @Override
+    public void treeWillCollapse(TreeExpansionEvent event) {
+    }
+    
+    /**
+     * Lists the directory in the background unless that already happened.
+     */
+    public void load(FileNode node) {
+        if (node.state == FileNode.State.UNLOADED) {
+            list(node);
+        }
+    }
+    
+    /**
+     * Lists a directory again if it was listed before; directories the user
+     * never expanded are left for later.
+     */
+    public void refresh(File dir) {
+        FileNode node = loaded.get(dir);
+        if (node == null) {
+            return;
+        }
+        if (node.state == FileNode.State.LOADING) {
+            node.reloadPending = true;
+        } else {
+            list(node);
+        }
+    }
+    
+    /**
+     * Lists every directory that was listed before, for when change events
+     * were lost.
+     */
+    public void refreshAll() {
+        for (File dir : new ArrayList<>(loaded.keySet())) {
+            refresh(dir);
+        }
+    }
+    
+    private void list(final FileNode node) {
+        node.state = FileNode.State.LOADING;
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<FileNode> children = list(node.getFile());
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        setChildren(node, children);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Builds the child nodes of a directory, skipping hidden entries. Runs
+     * on the worker; the nodes are not part of the tree yet.
+     */
+    private static List<FileNode> list(File dir) {
+        List<FileNode> children = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return children;
+        }
+        Arrays.sort(files, BY_NAME);
+        for (File file : files) {
+            if (!file.getName().startsWith(".")) {
+                children.add(new FileNode(file, file.isDirectory()));
+            }
+        }
+        return children;
+    }
+    
+    /**
+     * Merges a fresh listing into the node's children. Both are sorted by
+     * name, so one pass finds what went away and what is new.
+     */
+    private void setChildren(FileNode node, List<FileNode> children) {
+        // The project may have been closed or switched meanwhile
+        if (node.getRoot() != model.getRoot()) {
+            return;
+        }
+        List<TreeNode> current = new ArrayList<>();
+        for (int i = 0; i < node.getChildCount(); i++) {
+            current.add(node.getChildAt(i));
+        }
+        
+        List<Integer> removedIndices = new ArrayList<>();
+        List<Object> removed = new ArrayList<>();
+        List<Integer> insertedIndices = new ArrayList<>();
+        List<FileNode> inserted = new ArrayList<>();
+        int kept = 0;
+        int i = 0;
+        int j = 0;
+        while (i < current.size() || j < children.size()) {
+            TreeNode old = i < current.size() ? current.get(i) : null;
+            FileNode fresh = j < children.size() ? children.get(j) : null;
+            if (old != null && !(old instanceof FileNode)) {
+                // Placeholder
+                removedIndices.add(i);
+                removed.add(old);
+                i++;
+                continue;
+            }
+            FileNode oldNode = (FileNode) old;
+            int cmp = oldNode == null ? 1 : fresh == null ? -1 : BY_NAME.compare(oldNode.getFile(), fresh.getFile());
+            if (cmp == 0 && oldNode.isDirectory() == fresh.isDirectory()) {
+                kept++;
+                i++;
+                j++;
+            } else if (cmp == 0) {
+                // Replaced by an entry of the other kind
+                removedIndices.add(i);
+                removed.add(old);
+                i++;
+                insertedIndices.add(kept + inserted.size());
+                inserted.add(fresh);
+                j++;
+            } else if (cmp < 0) {
+                removedIndices.add(i);
+                removed.add(old);
+                i++;
+            } else {
+                insertedIndices.add(kept + inserted.size());
+                inserted.add(fresh);
+                j++;
+            }
+        }
+        
+        if (!removed.isEmpty()) {
+            for (int k = removedIndices.size() - 1; k >= 0; k--) {
+                node.remove(removedIndices.get(k));
+            }
+            for (Object child : removed) {
+                forget(child);
+            }
+            model.nodesWereRemoved(node, toArray(removedIndices), removed.toArray());
+        }
+        if (!inserted.isEmpty()) {
+            for (int k = 0; k < inserted.size(); k++) {
+                node.insert(inserted.get(k), insertedIndices.get(k));
+            }
+            model.nodesWereInserted(node, toArray(insertedIndices));
+        }
+        
+        node.state = FileNode.State.LOADED;
+        loaded.put(node.getFile(), node);
+        if (watcher != null) {
+            watcher.watch(node.getFile());
+        }
+        if (node.reloadPending) {
+            node.reloadPending = false;
+            list(node);
+        }
+    }
+    
+    /**
+     * Drops removed directories and everything listed below them.
+     */
+    private void forget(Object child) {
+        if (child instanceof FileNode && ((FileNode) child).isDirectory()) {
+            FileNode dir = (FileNode) child;
+            if (loaded.get(dir.getFile()) == dir) {
+                loaded.remove(dir.getFile());
+            }
+            for (int i = 0; i < dir.getChildCount(); i++) {
+                forget(dir.getChildAt(i));
+            }
+        }
+    }
+    
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,149 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports directories of the open project whose entries were created or
+ * deleted outside the IDE's knowledge, such as by builds or git.
+ *
+ * Events are collected until nothing happened for a short while, or for at
+ * most a second during a long burst, and then delivered as one set of
+ * changed directories. A checkout touching thousands of files therefore
+ * arrives as a few batches naming each directory once. Only directories
+ * passed to {@link #watch(File)} are watched; subdirectories are not
+ * included.
+ */
+public class ProjectWatcher {
+    // Quiet time that ends a batch
+    private static final long DEBOUNCE_MS = 150;
+    
+    // Longest a batch is held back while events keep coming
+    private static final long MAX_DELAY_MS = 1000;
+    
+    /**
+     * Receives batches of changes on the EDT.
+     */
+    public interface Listener {
+        /**
+         * @param overflow true if events were lost and any watched
+         *                 directory may have changed
+         */
+        void changed(Set<File> directories, boolean overflow);
+    }
+    
+    private final WatchService service;
+    private final Listener listener;
+    
+    // Guarded by this
+    private final Map<WatchKey, File> directories = new HashMap<>();
+    private final Map<File, WatchKey> keys = new HashMap<>();
+    
+    public ProjectWatcher(Listener listener) throws IOException {
+        this.service = FileSystems.getDefault().newWatchService();
+        this.listener = listener;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "Project watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Watches the entries of a directory. Watching it again does nothing.
+     */
+    public synchronized void watch(File dir) {
+        if (keys.containsKey(dir)) {
+            return;
+        }
+        try {
+            WatchKey key = dir.toPath().register(service,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            directories.put(key, dir);
+            keys.put(dir, key);
+        } catch (IOException | ClosedWatchServiceException e) {
+            // Gone already, or out of watches; the directory just goes stale
+        }
+    }
+    
+    /**
+     * Stops watching and ends the watcher thread.
+     */
+    public void close() {
+        try {
+            service.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+    
+    private void loop() {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Set<File> changed = new LinkedHashSet<>();
+                boolean overflow = false;
+                long deadline = System.currentTimeMillis() + MAX_DELAY_MS;
+                do {
+                    overflow |= collect(key, changed);
+                    if (System.currentTimeMillis() >= deadline) {
+                        // Whatever is still coming goes into the next batch
+                        break;
+                    }
+                    key = service.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+                } while (key != null);
+                deliver(changed, overflow);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+    
+    /**
+     * Adds the directory of the key to the batch, returns true on overflow.
+     */
+    private boolean collect(WatchKey key, Set<File> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            }
+        }
+        synchronized (this) {
+            File dir = directories.get(key);
+            if (dir != null) {
+                changed.add(dir);
+            }
+            if (!key.reset()) {
+                // The directory was deleted, its parent reports that
+                directories.remove(key);
+                keys.remove(dir);
+            }
+        }
+        return overflow;
+    }
+    
+    private void deliver(final Set<File> changed, final boolean overflow) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                listener.changed(changed, overflow);
+            }
+        });
+    }
+}
@@ -0,0 +1,243 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes files as UTF-8 without stalling the editor or leaving half
+ * written files behind.
+ *
+ * A save takes an immutable {@link TextSnapshot}, so the text can be
+ * edited while it is written. The characters are encoded a chunk at a time
+ * into a pooled direct buffer and written through a FileChannel, so no
+ * copy of the whole text is made. The bytes go to a hidden file next to
+ * the target, which is forced to disk and then moved over the target in
+ * one step, so a crash leaves either the old or the new file.
+ *
+ * Saves of one file run one after the other in the order they were
+ * started; saves of different files run in parallel, at most
+ * {@link #THREADS} at a time.
+ */
+public class SavePipeline {
+    // Disks gain little from more concurrent writers
+    public static final int THREADS = 4;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int CHUNK_CHARS = 16 * 1024;
+    
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Save");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    // Direct buffers are costly to allocate, so saves hand them on
+    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFERS = new ConcurrentLinkedQueue<>();
+    
+    // Saves waiting for an earlier save of the same file; guarded by itself
+    private static final Map<File, ArrayDeque<Runnable>> WAITING = new HashMap<>();
+    
+    /**
+     * Receives the outcome of a save on the EDT.
+     */
+    public interface Listener {
+        void saved(File file, long bytes, long nanos);
+        
+        void failed(File file, IOException e);
+    }
+    
+    /**
+     * Writes the text to the file in the background.
+     */
+    public static void saveLater(final File file, final TextSnapshot text, final Listener listener) {
+        final File key = file.getAbsoluteFile();
+        Runnable save = new Runnable() {
+            @Override
+            public void run() {
+                long started = System.nanoTime();
+                IOException error = null;
+                long bytes = 0;
+                try {
+                    bytes = write(key, text);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    // Such as a security manager refusing access
+                    error = new IOException(e.toString(), e);
+                } finally {
+                    // The next save of the file must run whatever happened
+                    Runnable next;
+                    synchronized (WAITING) {
+                        next = WAITING.get(key).poll();
+                        if (next == null) {
+                            WAITING.remove(key);
+                        }
+                    }
+                    if (next != null) {
+                        POOL.execute(next);
+                    }
+                }
+                report(file, bytes, System.nanoTime() - started, error, listener);
+            }
+        };
+        synchronized (WAITING) {
+            ArrayDeque<Runnable> waiting = WAITING.get(key);
+            if (waiting != null) {
+                waiting.add(save);
+                return;
+            }
+            WAITING.put(key, new ArrayDeque<Runnable>());
+        }
+        POOL.execute(save);
+    }
+    
+    private static void report(final File file, final long bytes, final long nanos, final IOException error,
+                               final Listener listener) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    listener.failed(file, error);
+                } else {
+                    listener.saved(file, bytes, nanos);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Writes the text to the file right away and returns the number of
+     * bytes written.
+     */
+    public static long write(File file, CharSequence text) throws IOException {
+        // Replace what a link points to, not the link
+        Path target = file.toPath();
+        if (Files.exists(target)) {
+            target = target.toRealPath();
+        }
+        Path temp = target.resolveSibling("." + target.getFileName() + ".save");
+        ByteBuffer buffer = BUFFERS.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        long bytes;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            bytes = encode(text, buffer, channel);
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            deleteAfterFailure(temp, e);
+            throw e;
+        } finally {
+            buffer.clear();
+            BUFFERS.offer(buffer);
+        }
+        try {
+            if (Files.exists(target)) {
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                } catch (UnsupportedOperationException e) {
+                    // No POSIX permissions to keep
+                }
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteAfterFailure(temp, e);
+            throw e;
+        }
+        return bytes;
+    }
+    
+    /**
+     * Removes the hidden file of a failed save, keeping the first error.
+     */
+    private static void deleteAfterFailure(Path temp, Exception failure) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+    
+    private static long encode(CharSequence text, ByteBuffer out, FileChannel channel) throws IOException {
+        // Lone surrogates become '?', as with String.getBytes
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer in = CharBuffer.allocate(CHUNK_CHARS);
+        in.flip();
+        long bytes = 0;
+        int position = 0;
+        int length = text.length();
+        while (true) {
+            if (position < length) {
+                // Keeps half a surrogate pair left over from the last chunk
+                in.compact();
+                int count = Math.min(in.remaining(), length - position);
+                getChars(text, position, position + count, in.array(), in.position());
+                in.position(in.position() + count);
+                in.flip();
+                position += count;
+            }
+            boolean end = position == length;
+            CoderResult result = encoder.encode(in, out, end);
+            if (result.isOverflow()) {
+                bytes += drain(out, channel);
+            } else if (end) {
+                break;
+            }
+        }
+        while (encoder.flush(out).isOverflow()) {
+            bytes += drain(out, channel);
+        }
+        return bytes + drain(out, channel);
+    }
+    
+    private static int drain(ByteBuffer out, FileChannel channel) throws IOException {
+        out.flip();
+        int count = out.remaining();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+        return count;
+    }
+    
+    private static void getChars(CharSequence text, int start, int end, char[] dst, int dstBegin) {
+        if (text instanceof TextSnapshot) {
+            ((TextSnapshot) text).getChars(start, end, dst, dstBegin);
+        } else if (text instanceof String) {
+            ((String) text).getChars(start, end, dst, dstBegin);
+        } else {
+            for (int i = start; i < end; i++) {
+                dst[dstBegin++] = text.charAt(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trigram index of the project's file contents, kept in
+ * .javaide/search.index so it survives restarts.
+ *
+ * For every trigram of lower cased text the index lists the files that
+ * contain it, so the files that can contain a literal query are the ones
+ * listed under all of its trigrams. Posting lists are stored as
+ * variable-length deltas, which keeps them at one or two bytes per entry.
+ *
+ * The index remembers the length and modification time of every file it
+ * read. Files that changed or appeared since are always searched, and
+ * files that are gone are never reported, so a stale index only makes
+ * searches slower, never wrong.
+ */
+public class SearchIndex {
+    private static final int MAGIC = 0x4a494458;
+    private static final int VERSION = 1;
+    
+    // Three 7-bit characters
+    private static final int TRIGRAMS = 1 << 21;
+    
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Search index");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Receives the outcome of {@link #loadLater} and {@link #buildLater}
+     * on the EDT.
+     */
+    public interface Listener {
+        void ready(SearchIndex index);
+        
+        void failed(IOException e);
+    }
+    
+    /**
+     * Ascending ids as variable-length deltas.
+     */
+    private static class Postings {
+        byte[] data = new byte[8];
+        int length;
+        int size;
+        int last;
+        
+        void add(int id) {
+            int delta = id - last;
+            last = id;
+            size++;
+            while (true) {
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, length * 2);
+                }
+                if ((delta & ~0x7f) == 0) {
+                    data[length++] = (byte) delta;
+                    return;
+                }
+                data[length++] = (byte) ((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+        }
+        
+        static Postings of(int[] ids, int count) {
+            Postings list = new Postings();
+            for (int i = 0; i < count; i++) {
+                list.add(ids[i]);
+            }
+            return list;
+        }
+        
+        int[] decode() {
+            int[] ids = new int[size];
+            int id = 0;
+            int pos = 0;
+            for (int i = 0; i < size; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                ids[i] = id;
+            }
+            return ids;
+        }
+    }
+    
+    private final String[] paths;
+    private final long[] lengths;
+    private final long[] lastModified;
+    // Indexed by trigram, null where no file has it
+    private final Postings[] postings;
+    
+    // Mapping onto the snapshot the last query ran against
+    private ProjectSnapshot mappedSnapshot;
+    private int[] snapshotIndices;
+    private int[] unindexed;
+    
+    private SearchIndex(String[] paths, long[] lengths, long[] lastModified, Postings[] postings) {
+        this.paths = paths;
+        this.lengths = lengths;
+        this.lastModified = lastModified;
+        this.postings = postings;
+    }
+    
+    public static File location(File projectDir) {
+        return new File(projectDir, ".javaide/search.index");
+    }
+    
+    /**
+     * Loads the index saved for a project in the background.
+     */
+    public static void loadLater(final File projectDir, final Listener listener) {
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deliver(load(location(projectDir)), null, listener);
+                } catch (IOException e) {
+                    deliver(null, e, listener);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Indexes the snapshot in the background and saves the index with the
+     * project.
+     */
+    public static void buildLater(final ProjectSnapshot snapshot, final Listener listener) {
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SearchIndex index = build(snapshot);
+                    index.save(location(snapshot.getRoot()));
+                    deliver(index, null, listener);
+                } catch (IOException e) {
+                    deliver(null, e, listener);
+                }
+            }
+        });
+    }
+    
+    private static void deliver(final SearchIndex index, final IOException error, final Listener listener) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (index != null) {
+                    listener.ready(index);
+                } else {
+                    listener.failed(error);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Reads every file of the snapshot in parallel and indexes its
+     * trigrams.
+     */
+    public static SearchIndex build(final ProjectSnapshot snapshot) throws IOException {
+        final List<Integer> files = new ArrayList<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (!snapshot.isDirectory(i)) {
+                files.add(i);
+            }
+        }
+        String[] paths = new String[files.size()];
+        final long[] lengths = new long[files.size()];
+        long[] lastModified = new long[files.size()];
+        for (int id = 0; id < paths.length; id++) {
+            paths[id] = snapshot.getPath(files.get(id));
+            lengths[id] = snapshot.getLength(files.get(id));
+            lastModified[id] = snapshot.getLastModified(files.get(id));
+        }
+        
+        // Each worker takes ids in ascending order, so its lists stay sorted
+        final AtomicInteger next = new AtomicInteger();
+        List<Callable<Postings[]>> workers = new ArrayList<>();
+        for (int w = 0; w < ProjectSearcher.THREADS; w++) {
+            workers.add(new Callable<Postings[]>() {
+                @Override
+                public Postings[] call() throws IOException {
+                    Postings[] local = new Postings[TRIGRAMS];
+                    // Trigrams already listed for the current file
+                    long[] seen = new long[TRIGRAMS / 64];
+                    int[] touched = new int[1024];
+                    TextReader reader = new TextReader();
+                    int id;
+                    while ((id = next.getAndIncrement()) < files.size()) {
+                        CharBuffer text;
+                        try {
+                            text = reader.read(snapshot.getFile(files.get(id)));
+                        } catch (IOException e) {
+                            // Deleted since the scan or unreadable: searches
+                            // read it themselves, as a file not indexed
+                            lengths[id] = -1;
+                            continue;
+                        }
+                        if (text == null) {
+                            continue;
+                        }
+                        char[] chars = text.array();
+                        int count = 0;
+                        int trigram = 0;
+                        for (int i = 0; i < text.limit(); i++) {
+                            trigram = (trigram << 7 | fold(chars[i])) & (TRIGRAMS - 1);
+                            if (i < 2 || (seen[trigram >>> 6] & 1L << trigram) != 0) {
+                                continue;
+                            }
+                            seen[trigram >>> 6] |= 1L << trigram;
+                            if (count == touched.length) {
+                                touched = Arrays.copyOf(touched, count * 2);
+                            }
+                            touched[count++] = trigram;
+                            Postings list = local[trigram];
+                            if (list == null) {
+                                list = new Postings();
+                                local[trigram] = list;
+                            }
+                            list.add(id);
+                        }
+                        for (int i = 0; i < count; i++) {
+                            seen[touched[i] >>> 6] = 0;
+                        }
+                    }
+                    return local;
+                }
+            });
+        }
+        
+        Postings[] merged = null;
+        try {
+            for (Future<Postings[]> future : ProjectSearcher.POOL.invokeAll(workers)) {
+                Postings[] part = future.get();
+                if (merged == null) {
+                    merged = part;
+                    continue;
+                }
+                for (int trigram = 0; trigram < TRIGRAMS; trigram++) {
+                    if (part[trigram] != null) {
+                        merged[trigram] = merged[trigram] == null ? part[trigram] : union(merged[trigram], part[trigram]);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Indexing interrupted");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        return new SearchIndex(paths, lengths, lastModified, merged);
+    }
+    
+    private static Postings union(Postings a, Postings b) {
+        int[] x = a.decode();
+        int[] y = b.decode();
+        int[] ids = new int[x.length + y.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < x.length || j < y.length) {
+            if (j == y.length || i < x.length && x[i] < y[j]) {
+                ids[count++] = x[i++];
+            } else {
+                ids[count++] = y[j++];
+            }
+        }
+        return Postings.of(ids, count);
+    }
+    
+    public static SearchIndex load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a search index: " + file);
+            }
+            int fileCount = in.readInt();
+            String[] paths = new String[fileCount];
+            long[] lengths = new long[fileCount];
+            long[] lastModified = new long[fileCount];
+            for (int id = 0; id < fileCount; id++) {
+                paths[id] = in.readUTF();
+                lengths[id] = in.readLong();
+                lastModified[id] = in.readLong();
+            }
+            int trigramCount = in.readInt();
+            Postings[] postings = new Postings[TRIGRAMS];
+            for (int t = 0; t < trigramCount; t++) {
+                int trigram = in.readInt();
+                Postings list = new Postings();
+                list.size = in.readInt();
+                list.length = in.readInt();
+                list.data = new byte[list.length];
+                in.readFully(list.data);
+                postings[trigram & (TRIGRAMS - 1)] = list;
+            }
+            return new SearchIndex(paths, lengths, lastModified, postings);
+        }
+    }
+    
+    public void save(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(paths.length);
+            for (int id = 0; id < paths.length; id++) {
+                out.writeUTF(paths[id]);
+                out.writeLong(lengths[id]);
+                out.writeLong(lastModified[id]);
+            }
+            int trigramCount = 0;
+            for (Postings list : postings) {
+                if (list != null) {
+                    trigramCount++;
+                }
+            }
+            out.writeInt(trigramCount);
+            for (int trigram = 0; trigram < TRIGRAMS; trigram++) {
+                Postings list = postings[trigram];
+                if (list != null) {
+                    out.writeInt(trigram);
+                    out.writeInt(list.size);
+                    out.writeInt(list.length);
+                    out.write(list.data, 0, list.length);
+                }
+            }
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot write " + file);
+            }
+        }
+    }
+    
+    public int getFileCount() {
+        return paths.length;
+    }
+    
+    /**
+     * Returns the snapshot indices of the files that may contain the
+     * literal text, in snapshot order. Text shorter than three characters
+     * narrows nothing, so every file is returned.
+     */
+    public synchronized int[] candidates(ProjectSnapshot snapshot, CharSequence literal) {
+        map(snapshot);
+        int[] ids = null;
+        for (int i = 0; i + 3 <= literal.length() && (ids == null || ids.length > 0); i++) {
+            Postings list = postings[trigram(literal, i)];
+            int[] listed = list != null ? list.decode() : new int[0];
+            ids = ids == null ? listed : intersect(ids, listed);
+        }
+        
+        List<Integer> result = new ArrayList<>();
+        if (ids == null) {
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (!snapshot.isDirectory(i)) {
+                    result.add(i);
+                }
+            }
+        } else {
+            for (int id : ids) {
+                if (snapshotIndices[id] >= 0) {
+                    result.add(snapshotIndices[id]);
+                }
+            }
+            for (int index : unindexed) {
+                result.add(index);
+            }
+        }
+        int[] indices = new int[result.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = result.get(i);
+        }
+        Arrays.sort(indices);
+        return indices;
+    }
+    
+    /**
+     * Matches indexed files to snapshot entries, once per snapshot. Files
+     * that changed since indexing are treated as not indexed.
+     */
+    private void map(ProjectSnapshot snapshot) {
+        if (snapshot == mappedSnapshot) {
+            return;
+        }
+        Map<String, Integer> ids = new HashMap<>(paths.length * 2);
+        for (int id = 0; id < paths.length; id++) {
+            ids.put(paths[id], id);
+        }
+        snapshotIndices = new int[paths.length];
+        Arrays.fill(snapshotIndices, -1);
+        List<Integer> rest = new ArrayList<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (snapshot.isDirectory(i)) {
+                continue;
+            }
+            Integer id = ids.get(snapshot.getPath(i));
+            if (id != null && lengths[id] == snapshot.getLength(i) && lastModified[id] == snapshot.getLastModified(i)) {
+                snapshotIndices[id] = i;
+            } else {
+                rest.add(i);
+            }
+        }
+        unindexed = new int[rest.size()];
+        for (int i = 0; i < unindexed.length; i++) {
+            unindexed[i] = rest.get(i);
+        }
+        mappedSnapshot = snapshot;
+    }
+    
+    private static int[] intersect(int[] a, int[] b) {
+        int[] common = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int j = 0;
+        for (int id : a) {
+            while (j < b.length && b[j] < id) {
+                j++;
+            }
+            if (j < b.length && b[j] == id) {
+                common[count++] = id;
+            }
+        }
+        return Arrays.copyOf(common, count);
+    }
+    
+    private static int trigram(CharSequence text, int index) {
+        return fold(text.charAt(index)) << 14 | fold(text.charAt(index + 1)) << 7 | fold(text.charAt(index + 2));
+    }
+    
+    /**
+     * Lower cases a character and folds it to 7 bits; different trigrams
+     * may share a key, which only adds candidates.
+     */
+    private static int fold(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c + ('a' - 'A');
+        }
+        return (c < 0x80 ? c : Character.toLowerCase(c)) & 0x7f;
+    }
+}
@@ -0,0 +1,627 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Declarations and identifier occurrences of the project's Java sources,
+ * for going to a declaration and finding usages by name.
+ *
+ * Every distinct name gets an int id. Each file keeps its declarations and
+ * occurrences in a handful of int arrays, and per name the index lists the
+ * files that declare or mention it, so a query touches only those files and
+ * costs a few array lookups per result. Files are parsed by
+ * {@link SymbolParser} in parallel on the search pool and replaced one at a
+ * time, so after a save or a rescan only the changed files are parsed
+ * again. Queries may run on any thread while an update is in progress.
+ */
+public class SymbolIndex {
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Symbol index");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    private static final ThreadLocal<SymbolParser> PARSERS = new ThreadLocal<SymbolParser>() {
+        @Override
+        protected SymbolParser initialValue() {
+            return new SymbolParser();
+        }
+    };
+    
+    private static final ThreadLocal<TextReader> READERS = new ThreadLocal<TextReader>() {
+        @Override
+        protected TextReader initialValue() {
+            return new TextReader();
+        }
+    };
+    
+    public enum Kind {
+        CLASS, INTERFACE, ENUM, RECORD, ANNOTATION, CONSTRUCTOR, METHOD, FIELD, ENUM_CONSTANT
+    }
+    
+    private static final Kind[] KINDS = Kind.values();
+    
+    private static final Comparator<Location> BY_POSITION = new Comparator<Location>() {
+        @Override
+        public int compare(Location l1, Location l2) {
+            int result = l1.path.compareTo(l2.path);
+            return result != 0 ? result : Integer.compare(l1.offset, l2.offset);
+        }
+    };
+    
+    /**
+     * A position in a project file.
+     */
+    public static class Location {
+        public final File file;
+        public final String path;
+        public final int offset;
+        // 1-based
+        public final int line;
+        // 0-based
+        public final int column;
+        
+        Location(File file, String path, int offset, int line, int column) {
+            this.file = file;
+            this.path = path;
+            this.offset = offset;
+            this.line = line;
+            this.column = column;
+        }
+    }
+    
+    /**
+     * Receives the outcome of {@link #updateLater(ProjectSnapshot, Listener)}
+     * on the EDT.
+     */
+    public interface Listener {
+        /**
+         * The index matches the snapshot; changed is false if no file had
+         * to be dropped or parsed.
+         */
+        void updated(boolean changed);
+        
+        void failed(Exception e);
+    }
+    
+    /**
+     * A declared type, member or enum constant.
+     */
+    public static class Declaration extends Location {
+        public final String name;
+        public final Kind kind;
+        // Name of the enclosing type, null for top level types
+        public final String container;
+        
+        Declaration(File file, String path, int offset, int line, int column, String name, Kind kind, String container) {
+            super(file, path, offset, line, column);
+            this.name = name;
+            this.kind = kind;
+            this.container = container;
+        }
+    }
+    
+    /**
+     * Everything known about one file. Name ids are global once the file
+     * is in the index.
+     */
+    static final class FileSymbols {
+        String path;
+        long length;
+        long lastModified;
+        int[] lineStarts;
+        // Names of local ids, only until the file is added
+        String[] names;
+        
+        int[] declNames;
+        byte[] declKinds;
+        int[] declOffsets;
+        // Index of the enclosing type's declaration, or -1
+        int[] declContainers;
+        
+        // Distinct names in ascending id order, with their occurrences at
+        // refOffsets[refStarts[i], refStarts[i + 1])
+        int[] refNames;
+        int[] refStarts;
+        int[] refOffsets;
+        
+        int line(int offset) {
+            int index = Arrays.binarySearch(lineStarts, offset);
+            return index >= 0 ? index : -index - 2;
+        }
+    }
+    
+    private final File root;
+    
+    // Guarded by this
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private String[] names = new String[1024];
+    private int nameCount;
+    // Per name id, the ids of the files that declare and mention it
+    private int[][] declaredIn = new int[1024][];
+    private int[] declaredCounts = new int[1024];
+    private int[][] mentionedIn = new int[1024][];
+    private int[] mentionedCounts = new int[1024];
+    
+    // Guarded by this; removed files leave a null slot that is reused
+    private final Map<String, Integer> fileIds = new HashMap<>();
+    private FileSymbols[] files = new FileSymbols[256];
+    private int fileSlots;
+    private final List<Integer> freeFileIds = new ArrayList<>();
+    // Bumped whenever a file is added or removed
+    private volatile int modCount;
+    
+    public SymbolIndex(File root) {
+        this.root = root;
+    }
+    
+    public File getRoot() {
+        return root;
+    }
+    
+    public static boolean isJavaSource(String path) {
+        return path.endsWith(".java");
+    }
+    
+    /**
+     * Brings the index in line with a snapshot in the background.
+     */
+    public void updateLater(final ProjectSnapshot snapshot, final Listener listener) {
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final boolean changed = update(snapshot);
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.updated(changed);
+                        }
+                    });
+                } catch (final RuntimeException e) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.failed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+    
+    /**
+     * Parses one file again in the background, such as after it was saved.
+     */
+    public void updateLater(final File file) {
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                String path = relativePath(file);
+                if (path == null || !isJavaSource(path)) {
+                    return;
+                }
+                if (!file.isFile()) {
+                    synchronized (SymbolIndex.this) {
+                        remove(path);
+                    }
+                    return;
+                }
+                FileSymbols symbols = parse(file, path, file.length(), file.lastModified());
+                if (symbols != null) {
+                    synchronized (SymbolIndex.this) {
+                        add(symbols);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Drops files that are gone and parses the ones that are new or whose
+     * length or modification time changed. Returns false if there were
+     * none.
+     */
+    public boolean update(final ProjectSnapshot snapshot) {
+        boolean removed = false;
+        final List<Integer> changed = new ArrayList<>();
+        Set<String> current = new HashSet<>();
+        synchronized (this) {
+            for (int i = 0; i < snapshot.size(); i++) {
+                String path = snapshot.getPath(i);
+                if (snapshot.isDirectory(i) || !isJavaSource(path)) {
+                    continue;
+                }
+                current.add(path);
+                Integer id = fileIds.get(path);
+                if (id == null || files[id].length != snapshot.getLength(i)
+                    || files[id].lastModified != snapshot.getLastModified(i)) {
+                    changed.add(i);
+                }
+            }
+            for (String path : new ArrayList<>(fileIds.keySet())) {
+                if (!current.contains(path)) {
+                    remove(path);
+                    removed = true;
+                }
+            }
+        }
+        
+        final AtomicInteger next = new AtomicInteger();
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int w = 0; w < ProjectSearcher.THREADS; w++) {
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < changed.size()) {
+                        int entry = changed.get(i);
+                        FileSymbols symbols = parse(snapshot.getFile(entry), snapshot.getPath(entry),
+                            snapshot.getLength(entry), snapshot.getLastModified(entry));
+                        if (symbols != null) {
+                            synchronized (SymbolIndex.this) {
+                                add(symbols);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : ProjectSearcher.POOL.invokeAll(workers)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot index symbols", e.getCause());
+        }
+        return removed || !changed.isEmpty();
+    }
+    
+    private static FileSymbols parse(File file, String path, long length, long lastModified) {
+        CharBuffer text;
+        try {
+            text = READERS.get().read(file);
+        } catch (IOException e) {
+            // Deleted or unreadable since the scan
+            return null;
+        }
+        if (text == null) {
+            return null;
+        }
+        FileSymbols symbols = PARSERS.get().parse(text);
+        symbols.path = path;
+        symbols.length = length;
+        symbols.lastModified = lastModified;
+        return symbols;
+    }
+    
+    private String relativePath(File file) {
+        String rootPath = root.getAbsolutePath();
+        String path = file.getAbsolutePath();
+        if (!path.startsWith(rootPath + File.separator)) {
+            return null;
+        }
+        return path.substring(rootPath.length() + 1).replace(File.separatorChar, '/');
+    }
+    
+    public synchronized int getFileCount() {
+        return fileIds.size();
+    }
+    
+    /**
+     * Returns a number that changes whenever the index does, without
+     * waiting for an update in progress.
+     */
+    public int getModCount() {
+        return modCount;
+    }
+    
+    /**
+     * Returns every declared name with the kind of one of its declarations.
+     */
+    public synchronized Map<String, Kind> declaredNames() {
+        byte[] kinds = new byte[nameCount];
+        Arrays.fill(kinds, (byte) -1);
+        for (int f = 0; f < fileSlots; f++) {
+            FileSymbols symbols = files[f];
+            if (symbols == null) {
+                continue;
+            }
+            for (int d = 0; d < symbols.declNames.length; d++) {
+                if (kinds[symbols.declNames[d]] < 0) {
+                    kinds[symbols.declNames[d]] = symbols.declKinds[d];
+                }
+            }
+        }
+        Map<String, Kind> result = new HashMap<>();
+        for (int id = 0; id < nameCount; id++) {
+            if (kinds[id] >= 0 && declaredCounts[id] > 0) {
+                result.put(names[id], KINDS[kinds[id]]);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the declarations of a name, ordered by path and offset.
+     */
+    public synchronized List<Declaration> declarations(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            return Collections.emptyList();
+        }
+        List<Declaration> result = new ArrayList<>();
+        for (int f = 0; f < declaredCounts[id]; f++) {
+            FileSymbols symbols = files[declaredIn[id][f]];
+            for (int d = 0; d < symbols.declNames.length; d++) {
+                if (symbols.declNames[d] == id) {
+                    result.add(declaration(symbols, d));
+                }
+            }
+        }
+        Collections.sort(result, BY_POSITION);
+        return result;
+    }
+    
+    /**
+     * Returns up to limit occurrences of a name as an identifier, including
+     * its declarations, ordered by path and offset.
+     */
+    public synchronized List<Location> usages(String name, int limit) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            return Collections.emptyList();
+        }
+        List<Location> result = new ArrayList<>();
+        for (int f = 0; f < mentionedCounts[id] && result.size() < limit; f++) {
+            FileSymbols symbols = files[mentionedIn[id][f]];
+            int group = Arrays.binarySearch(symbols.refNames, id);
+            for (int r = symbols.refStarts[group]; r < symbols.refStarts[group + 1] && result.size() < limit; r++) {
+                result.add(location(symbols, symbols.refOffsets[r]));
+            }
+        }
+        Collections.sort(result, BY_POSITION);
+        return result;
+    }
+    
+    private Location location(FileSymbols symbols, int offset) {
+        int line = symbols.line(offset);
+        return new Location(new File(root, symbols.path), symbols.path, offset, line + 1,
+            offset - symbols.lineStarts[line]);
+    }
+    
+    private Declaration declaration(FileSymbols symbols, int d) {
+        int offset = symbols.declOffsets[d];
+        int line = symbols.line(offset);
+        int container = symbols.declContainers[d];
+        return new Declaration(new File(root, symbols.path), symbols.path, offset, line + 1,
+            offset - symbols.lineStarts[line], names[symbols.declNames[d]], KINDS[symbols.declKinds[d]],
+            container >= 0 ? names[symbols.declNames[container]] : null);
+    }
+    
+    /**
+     * Adds a parsed file, replacing an older version of it.
+     */
+    private void add(FileSymbols symbols) {
+        remove(symbols.path);
+        
+        // Map local name ids to global ones
+        int[] global = new int[symbols.names.length];
+        for (int i = 0; i < global.length; i++) {
+            global[i] = nameId(symbols.names[i]);
+        }
+        symbols.names = null;
+        for (int d = 0; d < symbols.declNames.length; d++) {
+            symbols.declNames[d] = global[symbols.declNames[d]];
+        }
+        sortReferences(symbols, global);
+        insert(symbols);
+    }
+    
+    /**
+     * Adds a file whose name ids are already global.
+     */
+    private void insert(FileSymbols symbols) {
+        int fileId;
+        if (!freeFileIds.isEmpty()) {
+            fileId = freeFileIds.remove(freeFileIds.size() - 1);
+        } else {
+            if (fileSlots == files.length) {
+                files = Arrays.copyOf(files, fileSlots * 2);
+            }
+            fileId = fileSlots++;
+        }
+        files[fileId] = symbols;
+        fileIds.put(symbols.path, fileId);
+        modCount++;
+        
+        for (int name : symbols.refNames) {
+            mentionedIn[name] = append(mentionedIn[name], mentionedCounts[name]++, fileId);
+        }
+        int last = -1;
+        int[] declared = symbols.declNames.clone();
+        Arrays.sort(declared);
+        for (int name : declared) {
+            if (name != last) {
+                declaredIn[name] = append(declaredIn[name], declaredCounts[name]++, fileId);
+                last = name;
+            }
+        }
+    }
+    
+    /**
+     * Renumbers the occurrence groups to global ids and puts them back in
+     * ascending id order for binary search.
+     */
+    private static void sortReferences(FileSymbols symbols, int[] global) {
+        int groups = symbols.refNames.length;
+        long[] order = new long[groups];
+        for (int g = 0; g < groups; g++) {
+            order[g] = (long) global[symbols.refNames[g]] << 32 | g;
+        }
+        Arrays.sort(order);
+        int[] refNames = new int[groups];
+        int[] refStarts = new int[groups + 1];
+        int[] refOffsets = new int[symbols.refOffsets.length];
+        int count = 0;
+        for (int g = 0; g < groups; g++) {
+            int old = (int) order[g];
+            refNames[g] = (int) (order[g] >>> 32);
+            refStarts[g] = count;
+            int size = symbols.refStarts[old + 1] - symbols.refStarts[old];
+            System.arraycopy(symbols.refOffsets, symbols.refStarts[old], refOffsets, count, size);
+            count += size;
+        }
+        refStarts[groups] = count;
+        symbols.refNames = refNames;
+        symbols.refStarts = refStarts;
+        symbols.refOffsets = refOffsets;
+    }
+    
+    private void remove(String path) {
+        Integer fileId = fileIds.remove(path);
+        if (fileId == null) {
+            return;
+        }
+        FileSymbols symbols = files[fileId];
+        for (int name : symbols.refNames) {
+            mentionedCounts[name] = removeValue(mentionedIn[name], mentionedCounts[name], fileId);
+        }
+        for (int name : symbols.declNames) {
+            declaredCounts[name] = removeValue(declaredIn[name], declaredCounts[name], fileId);
+        }
+        files[fileId] = null;
+        freeFileIds.add(fileId);
+        modCount++;
+    }
+    
+    /**
+     * Writes the index for {@link WorkspaceCache}. Files are never changed
+     * once added, so only collecting them needs the lock.
+     */
+    void write(WorkspaceCache.Writer out) throws IOException {
+        String[] nameTable;
+        List<FileSymbols> list = new ArrayList<>();
+        synchronized (this) {
+            nameTable = Arrays.copyOf(names, nameCount);
+            for (int id = 0; id < fileSlots; id++) {
+                if (files[id] != null) {
+                    list.add(files[id]);
+                }
+            }
+        }
+        out.writeInt(nameTable.length);
+        for (String name : nameTable) {
+            out.writeString(name);
+        }
+        out.writeInt(list.size());
+        for (FileSymbols symbols : list) {
+            out.writeString(symbols.path);
+            out.writeLong(symbols.length);
+            out.writeLong(symbols.lastModified);
+            out.writeInts(symbols.lineStarts);
+            out.writeInts(symbols.declNames);
+            out.writeBytes(symbols.declKinds);
+            out.writeInts(symbols.declOffsets);
+            out.writeInts(symbols.declContainers);
+            out.writeInts(symbols.refNames);
+            out.writeInts(symbols.refStarts);
+            out.writeInts(symbols.refOffsets);
+        }
+    }
+    
+    /**
+     * Reads an index written by {@link #write}.
+     */
+    static SymbolIndex read(File root, WorkspaceCache.Reader in) throws IOException {
+        SymbolIndex index = new SymbolIndex(root);
+        int nameCount = in.readCount(4);
+        for (int i = 0; i < nameCount; i++) {
+            index.nameId(in.readString());
+        }
+        int fileCount = in.readCount(4);
+        for (int i = 0; i < fileCount; i++) {
+            FileSymbols symbols = new FileSymbols();
+            symbols.path = in.readString();
+            symbols.length = in.readLong();
+            symbols.lastModified = in.readLong();
+            symbols.lineStarts = in.readInts();
+            symbols.declNames = in.readInts();
+            symbols.declKinds = in.readBytes();
+            symbols.declOffsets = in.readInts();
+            symbols.declContainers = in.readInts();
+            symbols.refNames = in.readInts();
+            symbols.refStarts = in.readInts();
+            symbols.refOffsets = in.readInts();
+            index.insert(symbols);
+        }
+        return index;
+    }
+    
+    private int nameId(String name) {
+        Integer id = nameIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (nameCount == names.length) {
+            int size = nameCount * 2;
+            names = Arrays.copyOf(names, size);
+            declaredIn = Arrays.copyOf(declaredIn, size);
+            declaredCounts = Arrays.copyOf(declaredCounts, size);
+            mentionedIn = Arrays.copyOf(mentionedIn, size);
+            mentionedCounts = Arrays.copyOf(mentionedCounts, size);
+        }
+        names[nameCount] = name;
+        nameIds.put(name, nameCount);
+        return nameCount++;
+    }
+    
+    private static int[] append(int[] list, int count, int value) {
+        if (list == null) {
+            list = new int[2];
+        } else if (count == list.length) {
+            list = Arrays.copyOf(list, count * 2);
+        }
+        list[count] = value;
+        return list;
+    }
+    
+    /**
+     * Removes a value by moving the last one into its place, returns the
+     * new count. Values not in the list are ignored.
+     */
+    private static int removeValue(int[] list, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (list[i] == value) {
+                list[i] = list[count - 1];
+                return count - 1;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,567 @@
+package com.javaide;
+
+import java.util.Arrays;
+
+/**
+ * Finds the declarations and identifier occurrences of one Java source file
+ * for the {@link SymbolIndex}.
+ *
+ * This is not a full parser. It reads the token stream of {@link JavaLexer}
+ * and tracks only which braces open a type body, which is enough to tell
+ * types, members and enum constants apart; method bodies are skipped,
+ * except for the local and nested types declared in them. Tokens and names
+ * live in reused arrays, and each distinct name becomes a String once per
+ * file. An instance is used by one thread at a time.
+ */
+class SymbolParser {
+    private static final int TYPE_BODY = 0;
+    private static final int ENUM_CONSTANTS = 1;
+    private static final int BLOCK = 2;
+    
+    private final JavaLexer lexer = new JavaLexer();
+    
+    // Tokens of the current file
+    private int tokenCount;
+    private byte[] types = new byte[4096];
+    private int[] starts = new int[4096];
+    // Local name id of identifiers and keywords that may name things, else -1
+    private int[] nameIds = new int[4096];
+    private CharSequence text;
+    
+    // Distinct names of the current file, found through an open hash table
+    private String[] names = new String[256];
+    private int nameCount;
+    private int[] nameTable = new int[1024];
+    
+    // Declarations of the current file
+    private int declCount;
+    private int[] declNames = new int[64];
+    private byte[] declKinds = new byte[64];
+    private int[] declOffsets = new int[64];
+    private int[] declContainers = new int[64];
+    
+    // Open braces: what they contain and the declaration they belong to
+    private int depth;
+    private int[] scopes = new int[64];
+    private int[] scopeOwners = new int[64];
+    
+    private final JavaLexer.TokenHandler collector = new JavaLexer.TokenHandler() {
+        @Override
+        public void token(int start, int length, int type) {
+            if (type == JavaLexer.TOKEN_STRING) {
+                return;
+            }
+            if (tokenCount == types.length) {
+                int size = tokenCount * 2;
+                types = Arrays.copyOf(types, size);
+                starts = Arrays.copyOf(starts, size);
+                nameIds = Arrays.copyOf(nameIds, size);
+            }
+            types[tokenCount] = (byte) type;
+            starts[tokenCount] = start;
+            nameIds[tokenCount] = type == JavaLexer.TOKEN_OPERATOR ? -1 : intern(start, length);
+            tokenCount++;
+        }
+    };
+    
+    /**
+     * Parses a file. Names in the result are local ids into its names
+     * array until the index maps them.
+     */
+    SymbolIndex.FileSymbols parse(CharSequence text) {
+        this.text = text;
+        tokenCount = 0;
+        nameCount = 0;
+        declCount = 0;
+        depth = 0;
+        Arrays.fill(nameTable, 0);
+        lexer.tokenize(text, 0, text.length(), collector);
+        
+        int i = 0;
+        while (i < tokenCount) {
+            int scope = depth > 0 ? scopes[depth - 1] : BLOCK;
+            if (scope == TYPE_BODY) {
+                i = parseMember(i);
+            } else if (scope == ENUM_CONSTANTS) {
+                i = parseEnumConstant(i);
+            } else if (isTypeKeyword(i)) {
+                i = parseType(i);
+            } else {
+                if (isOperator(i, '{')) {
+                    push(BLOCK, owner());
+                } else if (isOperator(i, '}')) {
+                    pop();
+                }
+                i++;
+            }
+        }
+        return result();
+    }
+    
+    /**
+     * Parses a type declaration starting at its keyword, up to and
+     * including the brace that opens its body.
+     */
+    private int parseType(int i) {
+        SymbolIndex.Kind kind = typeKind(i);
+        int name = i + 1;
+        if (name >= tokenCount || types[name] != JavaLexer.TOKEN_IDENTIFIER) {
+            return i + 1;
+        }
+        int decl = declare(name, kind);
+        int j = name + 1;
+        boolean record = kind == SymbolIndex.Kind.RECORD;
+        while (j < tokenCount) {
+            if (isOperator(j, '{')) {
+                push(kind == SymbolIndex.Kind.ENUM ? ENUM_CONSTANTS : TYPE_BODY, decl);
+                return j + 1;
+            } else if (isOperator(j, ';') || isOperator(j, '}')) {
+                return j;
+            } else if (isOperator(j, '(')) {
+                int close = skipBalanced(j, '(', ')');
+                if (record) {
+                    declareComponents(j, close, decl);
+                    record = false;
+                }
+                j = close;
+            } else {
+                j++;
+            }
+        }
+        return j;
+    }
+    
+    /**
+     * Record components become fields: the last identifier before each
+     * comma or the closing parenthesis.
+     */
+    private void declareComponents(int open, int close, int owner) {
+        int last = -1;
+        int nesting = 0;
+        for (int j = open + 1; j < close; j++) {
+            if (isOperator(j, '<') || isOperator(j, '(')) {
+                nesting++;
+            } else if (isOperator(j, '>') || isOperator(j, ')')) {
+                nesting--;
+            } else if (types[j] == JavaLexer.TOKEN_IDENTIFIER) {
+                last = j;
+            } else if (isOperator(j, '@')) {
+                j = skipAnnotation(j) - 1;
+                continue;
+            }
+            if (nesting <= 0 && last >= 0 && (isOperator(j, ',') || j == close - 1)) {
+                declare(last, SymbolIndex.Kind.FIELD, owner);
+                last = -1;
+            }
+        }
+    }
+    
+    /**
+     * Parses one member of a type body, or the brace that ends the body.
+     */
+    private int parseMember(int i) {
+        if (isOperator(i, '}')) {
+            pop();
+            return i + 1;
+        }
+        if (isOperator(i, ';')) {
+            return i + 1;
+        }
+        int owner = owner();
+        int last = -1;
+        int identifiers = 0;
+        int j = i;
+        while (j < tokenCount) {
+            if (isOperator(j, '@')) {
+                if (j + 1 < tokenCount && isWord(j + 1, "interface")) {
+                    return parseType(j + 1);
+                }
+                j = skipAnnotation(j);
+            } else if (isTypeKeyword(j)) {
+                return parseType(j);
+            } else if (isOperator(j, '<')) {
+                j = skipTypeArguments(j);
+            } else if (types[j] == JavaLexer.TOKEN_IDENTIFIER) {
+                last = j;
+                identifiers++;
+                j++;
+            } else if (isOperator(j, '(')) {
+                if (last >= 0) {
+                    boolean constructor = identifiers == 1 && isOwnerName(last, owner);
+                    declare(last, constructor ? SymbolIndex.Kind.CONSTRUCTOR : SymbolIndex.Kind.METHOD, owner);
+                }
+                return skipToBody(skipBalanced(j, '(', ')'));
+            } else if (isOperator(j, '=') || isOperator(j, ';') || isOperator(j, ',')) {
+                return parseFields(j, last, owner);
+            } else if (isOperator(j, '{')) {
+                // A compact record constructor or an initializer
+                if (last >= 0 && identifiers == 1 && isOwnerName(last, owner)) {
+                    declare(last, SymbolIndex.Kind.CONSTRUCTOR, owner);
+                }
+                push(BLOCK, owner);
+                return j + 1;
+            } else if (isOperator(j, '}')) {
+                return j;
+            } else {
+                j++;
+            }
+        }
+        return j;
+    }
+    
+    /**
+     * Declares the fields of a declaration whose first name was just read,
+     * skipping initializers, and returns the index after the semicolon.
+     */
+    private int parseFields(int j, int name, int owner) {
+        if (name >= 0) {
+            declare(name, SymbolIndex.Kind.FIELD, owner);
+        }
+        while (j < tokenCount) {
+            if (isOperator(j, ';')) {
+                return j + 1;
+            } else if (isOperator(j, '}')) {
+                return j;
+            } else if (isOperator(j, '=')) {
+                j = skipExpression(j + 1);
+            } else if (isOperator(j, ',')) {
+                j++;
+                if (isDeclarator(j)) {
+                    declare(j, SymbolIndex.Kind.FIELD, owner);
+                    j++;
+                } else {
+                    // A comma in type arguments of the initializer
+                    j = skipExpression(j);
+                }
+            } else {
+                j++;
+            }
+        }
+        return j;
+    }
+    
+    private boolean isDeclarator(int j) {
+        return j + 1 < tokenCount && types[j] == JavaLexer.TOKEN_IDENTIFIER
+            && (isOperator(j + 1, '=') || isOperator(j + 1, ';') || isOperator(j + 1, ',') || isOperator(j + 1, '['));
+    }
+    
+    /**
+     * Parses one enum constant with its arguments and body, or the end of
+     * the constants.
+     */
+    private int parseEnumConstant(int i) {
+        if (isOperator(i, '}')) {
+            pop();
+            return i + 1;
+        }
+        if (isOperator(i, ';')) {
+            scopes[depth - 1] = TYPE_BODY;
+            return i + 1;
+        }
+        if (isOperator(i, ',')) {
+            return i + 1;
+        }
+        if (isOperator(i, '@')) {
+            return skipAnnotation(i);
+        }
+        if (types[i] != JavaLexer.TOKEN_IDENTIFIER) {
+            return i + 1;
+        }
+        declare(i, SymbolIndex.Kind.ENUM_CONSTANT, owner());
+        int j = i + 1;
+        if (j < tokenCount && isOperator(j, '(')) {
+            j = skipBalanced(j, '(', ')');
+        }
+        if (j < tokenCount && isOperator(j, '{')) {
+            push(BLOCK, owner());
+            j++;
+        }
+        return j;
+    }
+    
+    /**
+     * Skips from the end of a parameter list to past the semicolon of an
+     * abstract method, or into the body of a concrete one.
+     */
+    private int skipToBody(int j) {
+        while (j < tokenCount) {
+            if (isOperator(j, ';')) {
+                return j + 1;
+            } else if (isOperator(j, '{')) {
+                push(BLOCK, owner());
+                return j + 1;
+            } else if (isOperator(j, '}')) {
+                return j;
+            } else if (isOperator(j, '(')) {
+                j = skipBalanced(j, '(', ')');
+            } else {
+                j++;
+            }
+        }
+        return j;
+    }
+    
+    /**
+     * Skips an initializer up to the comma or semicolon that ends it.
+     */
+    private int skipExpression(int j) {
+        while (j < tokenCount) {
+            if (isOperator(j, ',') || isOperator(j, ';') || isOperator(j, '}')) {
+                return j;
+            } else if (isOperator(j, '(')) {
+                j = skipBalanced(j, '(', ')');
+            } else if (isOperator(j, '[')) {
+                j = skipBalanced(j, '[', ']');
+            } else if (isOperator(j, '{')) {
+                j = skipBalanced(j, '{', '}');
+            } else {
+                j++;
+            }
+        }
+        return j;
+    }
+    
+    private int skipAnnotation(int j) {
+        j++;
+        while (j < tokenCount && (types[j] == JavaLexer.TOKEN_IDENTIFIER || isOperator(j, '.'))) {
+            j++;
+        }
+        if (j < tokenCount && isOperator(j, '(')) {
+            j = skipBalanced(j, '(', ')');
+        }
+        return j;
+    }
+    
+    /**
+     * Skips type arguments or parameters. Gives up at tokens that cannot be
+     * part of them, in case the angle bracket was something else.
+     */
+    private int skipTypeArguments(int j) {
+        int nesting = 0;
+        while (j < tokenCount) {
+            if (isOperator(j, '<')) {
+                nesting++;
+            } else if (isOperator(j, '>')) {
+                if (--nesting == 0) {
+                    return j + 1;
+                }
+            } else if (isOperator(j, ';') || isOperator(j, '{') || isOperator(j, '}')
+                || isOperator(j, '=') || isOperator(j, '(')) {
+                return j;
+            }
+            j++;
+        }
+        return j;
+    }
+    
+    /**
+     * Returns the index after the bracket that closes the one at j.
+     */
+    private int skipBalanced(int j, char open, char close) {
+        int nesting = 0;
+        while (j < tokenCount) {
+            if (isOperator(j, open)) {
+                nesting++;
+            } else if (isOperator(j, close)) {
+                if (--nesting == 0) {
+                    return j + 1;
+                }
+            }
+            j++;
+        }
+        return j;
+    }
+    
+    private boolean isTypeKeyword(int i) {
+        if (i > 0 && isOperator(i - 1, '.')) {
+            // Foo.class
+            return false;
+        }
+        if (types[i] == JavaLexer.TOKEN_KEYWORD) {
+            return isWord(i, "class") || isWord(i, "interface") || isWord(i, "enum") || isWord(i, "record")
+                && i + 2 < tokenCount && types[i + 1] == JavaLexer.TOKEN_IDENTIFIER
+                && (isOperator(i + 2, '(') || isOperator(i + 2, '<'));
+        }
+        return false;
+    }
+    
+    private SymbolIndex.Kind typeKind(int i) {
+        if (isWord(i, "interface")) {
+            return i > 0 && isOperator(i - 1, '@') ? SymbolIndex.Kind.ANNOTATION : SymbolIndex.Kind.INTERFACE;
+        } else if (isWord(i, "enum")) {
+            return SymbolIndex.Kind.ENUM;
+        } else if (isWord(i, "record")) {
+            return SymbolIndex.Kind.RECORD;
+        }
+        return SymbolIndex.Kind.CLASS;
+    }
+    
+    private boolean isOwnerName(int token, int owner) {
+        return owner >= 0 && declNames[owner] == nameIds[token];
+    }
+    
+    private boolean isOperator(int i, char c) {
+        return types[i] == JavaLexer.TOKEN_OPERATOR && text.charAt(starts[i]) == c;
+    }
+    
+    private boolean isWord(int i, String word) {
+        return nameIds[i] >= 0 && names[nameIds[i]].equals(word);
+    }
+    
+    private void push(int scope, int owner) {
+        if (depth == scopes.length) {
+            scopes = Arrays.copyOf(scopes, depth * 2);
+            scopeOwners = Arrays.copyOf(scopeOwners, depth * 2);
+        }
+        scopes[depth] = scope;
+        scopeOwners[depth] = owner;
+        depth++;
+    }
+    
+    private void pop() {
+        if (depth > 0) {
+            depth--;
+        }
+    }
+    
+    /**
+     * Returns the declaration of the innermost enclosing type, or -1.
+     */
+    private int owner() {
+        return depth > 0 ? scopeOwners[depth - 1] : -1;
+    }
+    
+    private int declare(int token, SymbolIndex.Kind kind) {
+        return declare(token, kind, owner());
+    }
+    
+    private int declare(int token, SymbolIndex.Kind kind, int owner) {
+        if (declCount == declNames.length) {
+            int size = declCount * 2;
+            declNames = Arrays.copyOf(declNames, size);
+            declKinds = Arrays.copyOf(declKinds, size);
+            declOffsets = Arrays.copyOf(declOffsets, size);
+            declContainers = Arrays.copyOf(declContainers, size);
+        }
+        declNames[declCount] = nameIds[token];
+        declKinds[declCount] = (byte) kind.ordinal();
+        declOffsets[declCount] = starts[token];
+        declContainers[declCount] = owner;
+        return declCount++;
+    }
+    
+    /**
+     * Returns the local id of the name text[start, start + length), adding
+     * it if it is new.
+     */
+    private int intern(int start, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + text.charAt(start + i);
+        }
+        int mask = nameTable.length - 1;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (nameTable[slot] != 0) {
+            String name = names[nameTable[slot] - 1];
+            if (name.length() == length && matches(name, start)) {
+                return nameTable[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (nameCount == names.length) {
+            names = Arrays.copyOf(names, nameCount * 2);
+        }
+        names[nameCount] = text.subSequence(start, start + length).toString();
+        nameTable[slot] = ++nameCount;
+        if (nameCount * 2 > nameTable.length) {
+            rehash();
+        }
+        return nameCount - 1;
+    }
+    
+    private boolean matches(String name, int start) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void rehash() {
+        nameTable = new int[nameTable.length * 2];
+        int mask = nameTable.length - 1;
+        for (int id = 0; id < nameCount; id++) {
+            int hash = names[id].hashCode();
+            int slot = (hash ^ hash >>> 16) & mask;
+            while (nameTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            nameTable[slot] = id + 1;
+        }
+    }
+    
+    /**
+     * Copies what was found into a compact result. Occurrences of
+     * identifiers are grouped by name, in text order within a name.
+     */
+    private SymbolIndex.FileSymbols result() {
+        SymbolIndex.FileSymbols symbols = new SymbolIndex.FileSymbols();
+        symbols.names = Arrays.copyOf(names, nameCount);
+        symbols.declNames = Arrays.copyOf(declNames, declCount);
+        symbols.declKinds = Arrays.copyOf(declKinds, declCount);
+        symbols.declOffsets = Arrays.copyOf(declOffsets, declCount);
+        symbols.declContainers = Arrays.copyOf(declContainers, declCount);
+        
+        int[] counts = new int[nameCount + 1];
+        int references = 0;
+        for (int i = 0; i < tokenCount; i++) {
+            if (types[i] == JavaLexer.TOKEN_IDENTIFIER) {
+                counts[nameIds[i] + 1]++;
+                references++;
+            }
+        }
+        int used = 0;
+        for (int id = 0; id < nameCount; id++) {
+            if (counts[id + 1] > 0) {
+                used++;
+            }
+            counts[id + 1] += counts[id];
+        }
+        int[] offsets = new int[references];
+        int[] next = Arrays.copyOf(counts, nameCount);
+        for (int i = 0; i < tokenCount; i++) {
+            if (types[i] == JavaLexer.TOKEN_IDENTIFIER) {
+                offsets[next[nameIds[i]]++] = starts[i];
+            }
+        }
+        symbols.refNames = new int[used];
+        symbols.refStarts = new int[used + 1];
+        symbols.refOffsets = offsets;
+        int group = 0;
+        for (int id = 0; id < nameCount; id++) {
+            if (counts[id + 1] > counts[id]) {
+                symbols.refNames[group] = id;
+                symbols.refStarts[group] = counts[id];
+                group++;
+            }
+        }
+        symbols.refStarts[used] = references;
+        
+        int lines = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        symbols.lineStarts = new int[lines];
+        lines = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                symbols.lineStarts[lines++] = i + 1;
+            }
+        }
+        this.text = null;
+        return symbols;
+    }
+}
@@ -0,0 +1,653 @@
+package com.javaide;
+
+import javax.swing.JTextPane;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyleContext;
+import javax.swing.text.StyledDocument;
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Incremental syntax highlighter for Java documents.
+ *
+ * The lexer state at the start of every line is remembered. When the
+ * document changes only the edited lines are re-lexed, plus any following
+ * lines whose start state changed as a result (e.g. when a block comment is
+ * opened or closed), so the cost of a keystroke is proportional to the edit
+ * and not to the size of the file.
+ *
+ * Lexing runs on a background thread against a snapshot of the document
+ * tagged with the document version. The resulting style runs are applied on
+ * the event dispatch thread in small time-boxed batches, and dropped (with
+ * their lines marked dirty again) as soon as the document changes.
+ *
+ * Documents above {@link #LAZY_THRESHOLD} characters are highlighted lazily:
+ * only the lines in the viewport (plus a margin) are styled right away, the
+ * rest is lexed for its line states only and styled when it is scrolled into
+ * view or, chunk by chunk, while the editor is idle.
+ */
+public class SyntaxHighlighter {
+    private static final int STATE_UNKNOWN = -1;
+    
+    // Upper bound for a single slice of style updates on the EDT
+    private static final long BATCH_NANOS = 4000000L;
+    
+    // Lines lexed between two checks for a newer document version
+    private static final int CANCEL_CHECK_LINES = 256;
+    
+    /** Document length from which only the visible lines are styled eagerly */
+    public static final int LAZY_THRESHOLD = Integer.getInteger("javaide.lazyHighlightThreshold", 512 * 1024);
+    
+    // Lines styled around the viewport, and lines styled per idle tick
+    private static final int VIEWPORT_MARGIN_LINES = 200;
+    private static final int IDLE_CHUNK_LINES = 2000;
+    
+    // Lines a lazy job lexes past its style window before publishing
+    private static final int STATE_CHUNK_LINES = 50000;
+    
+    private static final int IDLE_DELAY_MS = 250;
+    
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Syntax highlighter");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    });
+    
+    private final StyledDocument document;
+    private final JavaLexer lexer;
+    private final AttributeSet defaultStyle;
+    private final AttributeSet[] tokenStyles;
+    
+    // Incremented on the EDT for every content change, read by the worker
+    private volatile int version;
+    
+    // Lexer state at the start of each line, valid for lines [0, lineCount)
+    private int[] lineStates;
+    private int lineCount;
+    
+    // Range of lines that have to be re-lexed, dirtyStart < 0 when clean
+    private int dirtyStart = -1;
+    private int dirtyEnd = -1;
+    private boolean updateScheduled;
+    
+    // Job being lexed or published and the lines it covers
+    private HighlightJob job;
+    private int jobStart;
+    private int jobEnd;
+    
+    // Lazy mode: lines lexed but not styled yet, and a pending style request
+    private JTextPane textPane;
+    private JViewport viewport;
+    private boolean lazy;
+    private BitSet unstyled;
+    private int requestStart = -1;
+    private int requestEnd = -1;
+    private Timer idleTimer;
+    
+    private final ChangeListener viewportListener = new ChangeListener() {
+        @Override
+        public void stateChanged(ChangeEvent e) {
+            int[] visible = visibleLines(0);
+            requestStyling(visible[0], visible[1]);
+        }
+    };
+    
+    private final DocumentListener listener = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            linesChanged(e.getOffset(), e.getLength());
+        }
+        
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            linesChanged(e.getOffset(), 0);
+        }
+        
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            // Attribute changes, most of them our own
+        }
+    };
+    
+    public SyntaxHighlighter(StyledDocument document) {
+        this.document = document;
+        this.lexer = new JavaLexer();
+        
+        StyleContext styleContext = StyleContext.getDefaultStyleContext();
+        defaultStyle = styleContext.addAttribute(
+            styleContext.getEmptySet(), StyleConstants.Foreground, Color.BLACK);
+        
+        tokenStyles = new AttributeSet[4];
+        tokenStyles[JavaLexer.TOKEN_DEFAULT] = defaultStyle;
+        tokenStyles[JavaLexer.TOKEN_KEYWORD] = styleContext.addAttribute(defaultStyle,
+            StyleConstants.Foreground, new Color(0, 0, 255)); // Blue
+        tokenStyles[JavaLexer.TOKEN_STRING] = styleContext.addAttribute(defaultStyle,
+            StyleConstants.Foreground, new Color(0, 128, 0)); // Green
+        tokenStyles[JavaLexer.TOKEN_COMMENT] = styleContext.addAttribute(defaultStyle,
+            StyleConstants.Foreground, new Color(128, 128, 128)); // Gray
+    }
+    
+    /**
+     * Starts tracking the document shown by the given text pane. Large
+     * documents are styled starting with what the viewport shows.
+     */
+    public void install(JTextPane textPane, JViewport viewport) {
+        lineCount = document.getDefaultRootElement().getElementCount();
+        lineStates = new int[Math.max(16, lineCount)];
+        for (int i = 0; i < lineCount; i++) {
+            lineStates[i] = STATE_UNKNOWN;
+        }
+        lineStates[0] = JavaLexer.STATE_DEFAULT;
+        
+        if (textPane != null && viewport != null && document.getLength() >= LAZY_THRESHOLD) {
+            this.textPane = textPane;
+            this.viewport = viewport;
+            lazy = true;
+            unstyled = new BitSet();
+            viewport.addChangeListener(viewportListener);
+            idleTimer = new Timer(IDLE_DELAY_MS, new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    styleNextIdleChunk();
+                }
+            });
+        }
+        
+        document.addDocumentListener(listener);
+        markDirty(0, lineCount - 1);
+    }
+    
+    public void uninstall() {
+        document.removeDocumentListener(listener);
+        if (lazy) {
+            viewport.removeChangeListener(viewportListener);
+            idleTimer.stop();
+        }
+        // Makes any job in flight stale
+        version++;
+        job = null;
+    }
+    
+    private void linesChanged(int offset, int length) {
+        version++;
+        
+        Element root = document.getDefaultRootElement();
+        int newCount = root.getElementCount();
+        int delta = newCount - lineCount;
+        int firstLine = root.getElementIndex(offset);
+        
+        if (delta > 0) {
+            ensureCapacity(newCount);
+            System.arraycopy(lineStates, firstLine + 1, lineStates, firstLine + 1 + delta,
+                lineCount - firstLine - 1);
+            for (int i = firstLine + 1; i <= firstLine + delta; i++) {
+                lineStates[i] = STATE_UNKNOWN;
+            }
+        } else if (delta < 0) {
+            System.arraycopy(lineStates, firstLine + 1 - delta, lineStates, firstLine + 1,
+                newCount - firstLine - 1);
+        }
+        lineCount = newCount;
+        
+        // Keep pending ranges pointing at the same lines
+        if (dirtyStart >= 0) {
+            dirtyStart = shiftLine(dirtyStart, firstLine, delta);
+            dirtyEnd = shiftLine(dirtyEnd, firstLine, delta);
+        }
+        if (job != null) {
+            jobStart = shiftLine(jobStart, firstLine, delta);
+            jobEnd = shiftLine(jobEnd, firstLine, delta);
+        }
+        if (lazy) {
+            shiftUnstyled(firstLine, delta, newCount - delta);
+            requestStart = -1;
+            if (idleTimer.isRunning()) {
+                // Typing postpones idle styling
+                idleTimer.restart();
+            }
+        }
+        
+        int lastLine = length > 0 ? root.getElementIndex(offset + length) : firstLine;
+        markDirty(firstLine, lastLine);
+    }
+    
+    private static int shiftLine(int line, int changedLine, int delta) {
+        return line > changedLine ? Math.max(changedLine, line + delta) : line;
+    }
+    
+    /**
+     * Moves the unstyled marks of the lines after changedLine by delta.
+     */
+    private void shiftUnstyled(int changedLine, int delta, int oldCount) {
+        if (delta == 0 || unstyled.nextSetBit(changedLine + 1) < 0) {
+            return;
+        }
+        int from = changedLine + 1 + Math.max(0, -delta);
+        BitSet tail = unstyled.get(from, Math.max(from, oldCount));
+        unstyled.clear(changedLine + 1, Math.max(changedLine + 1, oldCount));
+        for (int i = tail.nextSetBit(0); i >= 0; i = tail.nextSetBit(i + 1)) {
+            unstyled.set(from + delta + i);
+        }
+    }
+    
+    /**
+     * Returns the first and last line shown in the viewport, widened by
+     * the given number of lines on both sides.
+     */
+    private int[] visibleLines(int margin) {
+        Element root = document.getDefaultRootElement();
+        Rectangle view = viewport.getViewRect();
+        int top = textPane.viewToModel(new Point(view.x, view.y));
+        int bottom = textPane.viewToModel(new Point(view.x, view.y + view.height));
+        int first = top < 0 ? 0 : root.getElementIndex(top);
+        int last = bottom < 0 ? first : root.getElementIndex(bottom);
+        return new int[] {
+            Math.max(0, first - margin),
+            Math.min(lineCount - 1, last + margin)
+        };
+    }
+    
+    /**
+     * Asks for the unstyled lines in [first, last] to be styled as soon as
+     * no edit is pending.
+     */
+    private void requestStyling(int first, int last) {
+        int start = unstyled.nextSetBit(first);
+        if (start < 0 || start > last) {
+            return;
+        }
+        requestStart = start;
+        requestEnd = last;
+        if (!updateScheduled) {
+            updateScheduled = true;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    updateScheduled = false;
+                    startJob();
+                }
+            });
+        }
+    }
+    
+    private void styleNextIdleChunk() {
+        if (job != null || dirtyStart >= 0) {
+            return;
+        }
+        int[] visible = visibleLines(0);
+        int start = unstyled.nextSetBit(visible[0]);
+        if (start < 0) {
+            start = unstyled.nextSetBit(0);
+        }
+        if (start < 0 || start >= lineCount) {
+            idleTimer.stop();
+            return;
+        }
+        requestStyling(start, Math.min(lineCount - 1, start + IDLE_CHUNK_LINES));
+    }
+    
+    private void markDirty(int first, int last) {
+        if (dirtyStart < 0) {
+            dirtyStart = first;
+            dirtyEnd = last;
+        } else {
+            dirtyStart = Math.min(dirtyStart, first);
+            dirtyEnd = Math.max(dirtyEnd, last);
+        }
+        
+        // Attributes cannot be changed while the document is notifying listeners
+        if (!updateScheduled) {
+            updateScheduled = true;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    updateScheduled = false;
+                    startJob();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Hands the dirty lines to the worker unless a job is still in flight;
+     * a stale job notices the new version and restarts with the merged range.
+     */
+    private void startJob() {
+        if (job != null) {
+            return;
+        }
+        
+        int line;
+        int last;
+        int styleFrom = 0;
+        int styleTo = Integer.MAX_VALUE;
+        int lexLimit = Integer.MAX_VALUE;
+        if (dirtyStart >= 0) {
+            line = Math.min(dirtyStart, lineCount - 1);
+            last = Math.min(dirtyEnd, lineCount - 1);
+            dirtyStart = -1;
+            dirtyEnd = -1;
+            if (lazy) {
+                int[] window = visibleLines(VIEWPORT_MARGIN_LINES);
+                styleFrom = window[0];
+                styleTo = window[1];
+                // Catch up on line states below the window in one go, but
+                // publish the window itself without waiting for the rest
+                if (line <= styleTo) {
+                    lexLimit = Math.max(styleTo, line + STATE_CHUNK_LINES);
+                }
+            }
+        } else if (requestStart >= 0 && requestStart < lineCount) {
+            // Style-only job over lines whose states are already known
+            line = requestStart;
+            last = Math.min(requestEnd, lineCount - 1);
+            styleFrom = line;
+            styleTo = last;
+            lexLimit = last;
+            requestStart = -1;
+        } else {
+            return;
+        }
+        
+        // Walk back to the closest line with a known start state
+        while (line > 0 && lineStates[line] == STATE_UNKNOWN) {
+            line--;
+        }
+        
+        // A piece table snapshot is O(1); other documents are copied here
+        CharSequence source;
+        if (document instanceof EditorDocument) {
+            source = ((EditorDocument) document).snapshot();
+        } else {
+            try {
+                source = document.getText(0, document.getLength());
+            } catch (BadLocationException e) {
+                return;
+            }
+        }
+        
+        int offset = document.getDefaultRootElement().getElement(line).getStartOffset();
+        job = new HighlightJob(version, source, Arrays.copyOf(lineStates, lineCount), line, offset, last,
+            styleFrom, styleTo, lexLimit);
+        jobStart = line;
+        jobEnd = last;
+        WORKER.execute(job);
+    }
+    
+    /**
+     * Drops the current job and queues its lines again.
+     */
+    private void abortJob() {
+        job = null;
+        markDirty(Math.min(jobStart, lineCount - 1), Math.min(jobEnd, lineCount - 1));
+    }
+    
+    /**
+     * Lexes a snapshot on the worker thread, then publishes the style runs
+     * on the EDT. Line states are only committed once every run is applied.
+     */
+    private class HighlightJob implements Runnable {
+        private final int jobVersion;
+        private final CharSequence source;
+        private String text;
+        private final int[] knownStates;
+        private final int firstLine;
+        private final int firstOffset;
+        private final int lastDirtyLine;
+        private final int styleFrom;
+        private final int styleTo;
+        private final int lexLimit;
+        
+        // Start states of lines [firstLine, firstLine + stateCount)
+        private int[] newStates = new int[64];
+        private int stateCount;
+        
+        // Start state of the line after the last one lexed, if the job stopped at lexLimit
+        private int continueState = STATE_UNKNOWN;
+        
+        // Style runs as (offset, length, token type) triples
+        private int[] runs = new int[192];
+        private int runCount;
+        private int published;
+        
+        HighlightJob(int jobVersion, CharSequence source, int[] knownStates, int firstLine, int firstOffset,
+                     int lastDirtyLine, int styleFrom, int styleTo, int lexLimit) {
+            this.jobVersion = jobVersion;
+            this.source = source;
+            this.knownStates = knownStates;
+            this.firstLine = firstLine;
+            this.firstOffset = firstOffset;
+            this.lastDirtyLine = lastDirtyLine;
+            this.styleFrom = styleFrom;
+            this.styleTo = styleTo;
+            this.lexLimit = lexLimit;
+        }
+        
+        @Override
+        public void run() {
+            // Flattening the snapshot happens here rather than on the EDT
+            text = source.toString();
+            if (!lex()) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (job == HighlightJob.this) {
+                            abortJob();
+                        }
+                    }
+                });
+                return;
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    publish(this);
+                }
+            });
+        }
+        
+        /**
+         * Returns false if the document changed while lexing.
+         */
+        private boolean lex() {
+            RunCollector collector = new RunCollector(this);
+            int line = firstLine;
+            int offset = firstOffset;
+            int state = knownStates[line] == STATE_UNKNOWN ? JavaLexer.STATE_DEFAULT : knownStates[line];
+            int length = text.length();
+            
+            while (true) {
+                if ((line - firstLine) % CANCEL_CHECK_LINES == 0 && version != jobVersion) {
+                    return false;
+                }
+                addState(state);
+                
+                int end = text.indexOf('\n', offset);
+                end = end < 0 ? length : end + 1;
+                boolean styled = line >= styleFrom && line <= styleTo;
+                if (!styled) {
+                    collector.flush();
+                }
+                collector.collect = styled;
+                collector.cursor = offset;
+                state = lexer.scanLine(text, offset, end, state, collector);
+                if (styled && collector.cursor < end) {
+                    collector.addRun(collector.cursor, end, JavaLexer.TOKEN_DEFAULT);
+                }
+                
+                line++;
+                offset = end;
+                if (line >= knownStates.length || offset >= length) {
+                    break;
+                }
+                // Stop once we are past the edit and the next line starts as before
+                if (line > lastDirtyLine && knownStates[line] == state) {
+                    break;
+                }
+                if (line > lexLimit) {
+                    continueState = state;
+                    break;
+                }
+            }
+            collector.flush();
+            return true;
+        }
+        
+        /**
+         * Applies style runs on the EDT until the time budget is used up,
+         * then yields and continues in a later event.
+         */
+        private void publish(Runnable continuation) {
+            if (job != this) {
+                return;
+            }
+            if (version != jobVersion) {
+                abortJob();
+                return;
+            }
+            
+            long deadline = System.nanoTime() + BATCH_NANOS;
+            while (published < runCount) {
+                int i = published * 3;
+                document.setCharacterAttributes(runs[i], runs[i + 1], tokenStyles[runs[i + 2]], true);
+                published++;
+                if ((published & 31) == 0 && System.nanoTime() > deadline) {
+                    SwingUtilities.invokeLater(continuation);
+                    return;
+                }
+            }
+            
+            System.arraycopy(newStates, 0, lineStates, firstLine, stateCount);
+            int nextLine = firstLine + stateCount;
+            if (continueState != STATE_UNKNOWN && nextLine < lineCount) {
+                // Continue with the following lines in a later job
+                lineStates[nextLine] = continueState;
+                markDirty(nextLine, Math.max(nextLine, Math.min(lastDirtyLine, lineCount - 1)));
+            }
+            if (lazy) {
+                int from = Math.max(firstLine, styleFrom);
+                int to = Math.min(nextLine - 1, styleTo);
+                unstyled.set(firstLine, nextLine);
+                if (from <= to) {
+                    unstyled.clear(from, to + 1);
+                }
+                if (!unstyled.isEmpty()) {
+                    idleTimer.start();
+                }
+            }
+            job = null;
+            startJob();
+        }
+        
+        private void addState(int state) {
+            if (stateCount == newStates.length) {
+                newStates = Arrays.copyOf(newStates, stateCount * 2);
+            }
+            newStates[stateCount++] = state;
+        }
+        
+        void addRun(int start, int length, int type) {
+            if (runCount * 3 == runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            int i = runCount * 3;
+            runs[i] = start;
+            runs[i + 1] = length;
+            runs[i + 2] = type;
+            runCount++;
+        }
+    }
+    
+    /**
+     * Turns lexer tokens into style runs. Adjacent runs with the same style,
+     * including runs only separated by whitespace and runs continuing on the
+     * next line, are merged so each is applied with a single attribute change.
+     */
+    private static class RunCollector implements JavaLexer.TokenHandler {
+        private final HighlightJob job;
+        private final String text;
+        int cursor;
+        boolean collect = true;
+        private int runStart = -1;
+        private int runEnd;
+        private int runType;
+        
+        RunCollector(HighlightJob job) {
+            this.job = job;
+            this.text = job.text;
+        }
+        
+        @Override
+        public void token(int start, int length, int type) {
+            if (!collect) {
+                return;
+            }
+            if (start > cursor) {
+                if (runStart >= 0 && type == runType && runEnd == cursor && isBlank(cursor, start)) {
+                    runEnd = start;
+                } else {
+                    addRun(cursor, start, JavaLexer.TOKEN_DEFAULT);
+                }
+            }
+            addRun(start, start + length, type);
+            cursor = start + length;
+        }
+        
+        void addRun(int start, int end, int type) {
+            if (runStart >= 0 && type == runType && start == runEnd) {
+                runEnd = end;
+                return;
+            }
+            flush();
+            runStart = start;
+            runEnd = end;
+            runType = type;
+        }
+        
+        private boolean isBlank(int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (!Character.isWhitespace(text.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        void flush() {
+            if (runStart >= 0 && runEnd > runStart) {
+                job.addRun(runStart, runEnd - runStart, runType);
+            }
+            runStart = -1;
+        }
+    }
+    
+    private void ensureCapacity(int size) {
+        if (size > lineStates.length) {
+            int[] grown = new int[Math.max(size, lineStates.length * 2)];
+            System.arraycopy(lineStates, 0, grown, 0, lineCount);
+            lineStates = grown;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.javaide;
+
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Point;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the editor tabs: one per file, and a bounded number of them alive.
+ *
+ * Opening a file that already has a tab selects that tab. Once more than
+ * {@link #MAX_LIVE_TABS} editors exist, the least recently shown ones
+ * without unsaved changes hibernate: their editor, with its text pane,
+ * document and undo history, is closed and only the caret and scroll
+ * position are kept. Showing a hibernating tab opens the file again and
+ * puts the caret and view back where they were.
+ */
+public class TabManager {
+    public static final int MAX_LIVE_TABS = Integer.getInteger("javaide.liveTabs", 20);
+    
+    /**
+     * Opens editors for files, both when a file is first opened and when a
+     * hibernating tab is shown again.
+     */
+    public interface Factory {
+        /**
+         * Returns the new editor, or null if the file cannot be opened.
+         */
+        EditorTab create(File file);
+    }
+    
+    /**
+     * One tab. The holder stays in the tabbed pane while the editor inside
+     * it comes and goes.
+     */
+    private static final class Slot {
+        final JPanel holder = new JPanel(new BorderLayout());
+        final JLabel label = new JLabel();
+        String filepath;
+        // Null while hibernating
+        EditorTab tab;
+        int caret;
+        Point viewPosition;
+        long lastShown;
+    }
+    
+    private final JTabbedPane notebook;
+    private final Factory factory;
+    private final List<Slot> slots = new ArrayList<>();
+    private long shownCount;
+    
+    public TabManager(JTabbedPane notebook, Factory factory) {
+        this.notebook = notebook;
+        this.factory = factory;
+        notebook.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                Slot slot = selectedSlot();
+                if (slot != null) {
+                    shown(slot);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Selects the tab of a file, opening it first if it has none. Returns
+     * its editor, or null if the file cannot be opened.
+     */
+    public EditorTab open(File file) {
+        Slot slot = find(file.getAbsolutePath());
+        if (slot == null) {
+            EditorTab tab = factory.create(file);
+            if (tab == null) {
+                return null;
+            }
+            add(tab);
+            return tab;
+        }
+        notebook.setSelectedComponent(slot.holder);
+        return slot.tab;
+    }
+    
+    /**
+     * Adds an editor in a new tab and selects it.
+     */
+    public void add(final EditorTab tab) {
+        final Slot slot = new Slot();
+        slot.filepath = tab.filepath;
+        slot.tab = tab;
+        slot.holder.add(tab.scrollPane, BorderLayout.CENTER);
+        slot.label.setText(title(tab.filepath));
+        JButton closeButton = new JButton("×");
+        closeButton.setBorder(new EmptyBorder(0, 5, 0, 0));
+        closeButton.setContentAreaFilled(false);
+        closeButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                close(slot);
+            }
+        });
+        JPanel tabPanel = new JPanel(new BorderLayout());
+        tabPanel.setOpaque(false);
+        tabPanel.add(slot.label, BorderLayout.CENTER);
+        tabPanel.add(closeButton, BorderLayout.EAST);
+        
+        slots.add(slot);
+        notebook.addTab(slot.label.getText(), slot.holder);
+        int index = notebook.getTabCount() - 1;
+        notebook.setTabComponentAt(index, tabPanel);
+        notebook.setToolTipTextAt(index, tab.filepath);
+        notebook.setSelectedIndex(index);
+    }
+    
+    /**
+     * Closes the tab of an editor.
+     */
+    public void close(EditorTab tab) {
+        for (Slot slot : slots) {
+            if (slot.tab == tab) {
+                close(slot);
+                return;
+            }
+        }
+    }
+    
+    private void close(Slot slot) {
+        slots.remove(slot);
+        notebook.remove(slot.holder);
+        if (slot.tab != null) {
+            slot.tab.close();
+            slot.tab = null;
+        }
+    }
+    
+    /**
+     * Returns the editor of the selected tab, or null if there is none.
+     */
+    public EditorTab getCurrentTab() {
+        Slot slot = selectedSlot();
+        return slot != null ? slot.tab : null;
+    }
+    
+    /**
+     * Returns the editors that are not hibernating, which includes all
+     * with unsaved changes.
+     */
+    public List<EditorTab> getLiveTabs() {
+        List<EditorTab> tabs = new ArrayList<>();
+        for (Slot slot : slots) {
+            if (slot.tab != null) {
+                tabs.add(slot.tab);
+            }
+        }
+        return tabs;
+    }
+    
+    /**
+     * Updates the title after an editor was saved under another name.
+     */
+    public void renamed(EditorTab tab) {
+        for (Slot slot : slots) {
+            if (slot.tab == tab) {
+                slot.filepath = tab.filepath;
+                slot.label.setText(title(tab.filepath));
+                int index = notebook.indexOfComponent(slot.holder);
+                notebook.setTitleAt(index, slot.label.getText());
+                notebook.setToolTipTextAt(index, tab.filepath);
+                return;
+            }
+        }
+    }
+    
+    private Slot selectedSlot() {
+        return slotOf(notebook.getSelectedComponent());
+    }
+    
+    private Slot slotOf(Component component) {
+        for (Slot slot : slots) {
+            if (slot.holder == component) {
+                return slot;
+            }
+        }
+        return null;
+    }
+    
+    private Slot find(String filepath) {
+        for (Slot slot : slots) {
+            if (filepath.equals(slot.filepath)) {
+                return slot;
+            }
+        }
+        return null;
+    }
+    
+    private void shown(Slot slot) {
+        slot.lastShown = ++shownCount;
+        if (slot.tab == null) {
+            wake(slot);
+        }
+        hibernateLeastRecent();
+    }
+    
+    private void wake(Slot slot) {
+        EditorTab tab = factory.create(new File(slot.filepath));
+        if (tab == null) {
+            // Gone from the disk meanwhile
+            close(slot);
+            return;
+        }
+        slot.tab = tab;
+        slot.holder.add(tab.scrollPane, BorderLayout.CENTER);
+        slot.holder.revalidate();
+        tab.restoreView(slot.caret, slot.viewPosition);
+    }
+    
+    /**
+     * Hibernates the least recently shown editors that can be opened again
+     * as they are, until the budget is kept or none are left.
+     */
+    private void hibernateLeastRecent() {
+        int live = 0;
+        for (Slot slot : slots) {
+            if (slot.tab != null) {
+                live++;
+            }
+        }
+        Slot selected = selectedSlot();
+        while (live > MAX_LIVE_TABS) {
+            Slot oldest = null;
+            for (Slot slot : slots) {
+                EditorTab tab = slot.tab;
+                if (slot != selected && tab != null && tab.filepath != null && !tab.isModified
+                        && !tab.isLoading() && (oldest == null || slot.lastShown < oldest.lastShown)) {
+                    oldest = slot;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            hibernate(oldest);
+            live--;
+        }
+    }
+    
+    private void hibernate(Slot slot) {
+        slot.caret = slot.tab.getCaretPosition();
+        slot.viewPosition = slot.tab.getViewPosition();
+        slot.tab.close();
+        slot.tab = null;
+        slot.holder.removeAll();
+    }
+    
+    private static String title(String filepath) {
+        return filepath != null ? new File(filepath).getName() : "Untitled";
+    }
+}
@@ -0,0 +1,93 @@
+package com.javaide;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads project files as text for searching and indexing, reusing its
+ * buffers from file to file.
+ *
+ * Small files are read into a reused buffer; larger ones are memory mapped
+ * so their bytes are never copied onto the heap. Either way the text is
+ * decoded as UTF-8 into one reused char buffer, so reading a file creates
+ * no garbage proportional to its size. Files that look binary are skipped.
+ * An instance is used by one thread at a time.
+ */
+class TextReader {
+    // Files up to this size are read, larger ones mapped
+    private static final int MAP_THRESHOLD = 256 * 1024;
+    
+    // Larger files are most likely data, not source
+    static final long MAX_FILE_BYTES = 32L * 1024 * 1024;
+    
+    // A NUL byte in this many leading bytes marks a file as binary
+    private static final int BINARY_PROBE = 8000;
+    
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer bytes = ByteBuffer.allocate(64 * 1024);
+    private CharBuffer chars = CharBuffer.allocate(64 * 1024);
+    
+    /**
+     * Returns the file's text, valid until the next call, or null if the
+     * file is empty, too large or binary. The buffer is backed by an array
+     * and starts at its first element.
+     */
+    CharBuffer read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0 || size > MAX_FILE_BYTES) {
+                return null;
+            }
+            ByteBuffer input;
+            if (size <= MAP_THRESHOLD) {
+                if (bytes.capacity() < size) {
+                    bytes = ByteBuffer.allocate(MAP_THRESHOLD);
+                }
+                bytes.clear();
+                while (bytes.position() < size && channel.read(bytes) > 0) {
+                    // Keep reading until the whole file is in
+                }
+                bytes.flip();
+                input = bytes;
+            } else {
+                input = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            if (isBinary(input)) {
+                return null;
+            }
+            return decode(input, (int) size);
+        }
+    }
+    
+    private static boolean isBinary(ByteBuffer input) {
+        int probe = Math.min(input.limit(), BINARY_PROBE);
+        for (int i = 0; i < probe; i++) {
+            if (input.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private CharBuffer decode(ByteBuffer input, int size) {
+        // UTF-8 never decodes to more chars than it has bytes
+        if (chars.capacity() < size) {
+            chars = CharBuffer.allocate(Math.max(size, chars.capacity() * 2));
+        }
+        chars.clear();
+        decoder.reset();
+        decoder.decode(input, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars;
+    }
+}
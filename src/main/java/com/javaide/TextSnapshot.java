@@ -0,0 +1,156 @@
+package com.javaide;
+
+/**
+ * Immutable view of the text held by a {@link PieceTableContent}.
+ *
+ * A snapshot only references the piece tree and the buffers that existed
+ * when it was taken. Trees are never modified in place and buffers are only
+ * appended to, so taking a snapshot is O(1) and it stays valid, and safe to
+ * read from any thread, while the document keeps changing.
+ */
+public final class TextSnapshot implements CharSequence {
+    
+    /**
+     * Node of a persistent treap of pieces, ordered by document position.
+     * Each piece is a range of either the original or the add buffer.
+     */
+    static final class Node {
+        final Node left;
+        final Node right;
+        final int priority;
+        final boolean added;
+        final int start;
+        final int length;
+        final int size;
+        
+        Node(Node left, Node right, int priority, boolean added, int start, int length) {
+            this.left = left;
+            this.right = right;
+            this.priority = priority;
+            this.added = added;
+            this.start = start;
+            this.length = length;
+            this.size = length + size(left) + size(right);
+        }
+        
+        Node with(Node newLeft, Node newRight) {
+            return new Node(newLeft, newRight, priority, added, start, length);
+        }
+    }
+    
+    private final Node root;
+    private final CharSequence original;
+    private final byte[] addLatin1;
+    private final char[] addChars;
+    private final int length;
+    
+    TextSnapshot(Node root, CharSequence original, byte[] addLatin1, char[] addChars, int length) {
+        this.root = root;
+        this.original = original;
+        this.addLatin1 = addLatin1;
+        this.addChars = addChars;
+        this.length = length;
+    }
+    
+    static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+    
+    @Override
+    public int length() {
+        return length;
+    }
+    
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        Node node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index < leftSize + node.length) {
+                return bufferChar(node.added, node.start + index - leftSize);
+            } else {
+                index -= leftSize + node.length;
+                node = node.right;
+            }
+        }
+    }
+    
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+    
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        getChars(0, length, chars, 0);
+        return new String(chars);
+    }
+    
+    /**
+     * Copies the characters [srcBegin, srcEnd) into dst, like String.getChars.
+     */
+    public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        if (srcBegin < 0 || srcEnd > length || srcBegin > srcEnd) {
+            throw new IndexOutOfBoundsException("range " + srcBegin + "-" + srcEnd + ", length " + length);
+        }
+        copy(root, srcBegin, srcEnd, dst, dstBegin - srcBegin);
+    }
+    
+    /**
+     * In-order copy of the part of the subtree that overlaps [from, to),
+     * where from and to are relative to the start of the subtree.
+     */
+    private void copy(Node node, int from, int to, char[] dst, int dstShift) {
+        while (node != null && from < to) {
+            int leftSize = size(node.left);
+            if (from < leftSize) {
+                copy(node.left, from, Math.min(to, leftSize), dst, dstShift);
+            }
+            int pieceStart = Math.max(from, leftSize);
+            int pieceEnd = Math.min(to, leftSize + node.length);
+            if (pieceStart < pieceEnd) {
+                copyBuffer(node.added, node.start + pieceStart - leftSize, pieceEnd - pieceStart,
+                    dst, pieceStart + dstShift);
+            }
+            // Continue with the right subtree without recursing
+            int consumed = leftSize + node.length;
+            from = Math.max(0, from - consumed);
+            to -= consumed;
+            dstShift += consumed;
+            node = node.right;
+        }
+    }
+    
+    private char bufferChar(boolean added, int index) {
+        if (!added) {
+            return original.charAt(index);
+        }
+        return addChars != null ? addChars[index] : (char) (addLatin1[index] & 0xFF);
+    }
+    
+    private void copyBuffer(boolean added, int start, int count, char[] dst, int dstBegin) {
+        if (!added) {
+            if (original instanceof String) {
+                ((String) original).getChars(start, start + count, dst, dstBegin);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    dst[dstBegin + i] = original.charAt(start + i);
+                }
+            }
+        } else if (addChars != null) {
+            System.arraycopy(addChars, start, dst, dstBegin, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                dst[dstBegin + i] = (char) (addLatin1[start + i] & 0xFF);
+            }
+        }
+    }
+}
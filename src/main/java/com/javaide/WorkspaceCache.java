@@ -0,0 +1,341 @@
+package com.javaide;
+
+import javax.swing.SwingUtilities;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the project snapshot and the symbol index of a project in
+ * .javaide/workspace.cache, so reopening a project does not start from
+ * nothing.
+ *
+ * The cache is memory mapped and its arrays are copied out in bulk, which
+ * takes a fraction of the time a scan and a full parse would. It is not
+ * checked against the disk when it is loaded: the IDE uses it right away
+ * and scans the project as usual, and the scan then only has to parse the
+ * files whose length or modification time differ from the cached ones.
+ * The cache is written again whenever a scan found changes, once the
+ * symbol index has caught up with them.
+ */
+public class WorkspaceCache {
+    private static final int MAGIC = 0x4a494457;
+    private static final int VERSION = 1;
+    
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Workspace cache");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Receives the outcome of {@link #loadLater} on the EDT.
+     */
+    public interface Listener {
+        void loaded(ProjectSnapshot snapshot, SymbolIndex symbols);
+        
+        /**
+         * There is no usable cache; the project is scanned from scratch.
+         */
+        void missing();
+    }
+    
+    private final File projectDir;
+    private final File file;
+    // Fingerprint of the snapshot last loaded or saved, only used on WORKER
+    private long savedFingerprint;
+    
+    public WorkspaceCache(File projectDir) {
+        this.projectDir = projectDir;
+        this.file = new File(projectDir, ".javaide/workspace.cache");
+    }
+    
+    public void loadLater(final Listener listener) {
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                ProjectSnapshot snapshot = null;
+                SymbolIndex symbols = null;
+                try {
+                    if (file.isFile()) {
+                        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                            Reader in = new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                            if (in.readInt() == MAGIC && in.readInt() == VERSION
+                                && in.readString().equals(projectDir.getAbsolutePath())) {
+                                long fingerprint = in.readLong();
+                                ProjectSnapshot cached = readSnapshot(in);
+                                symbols = SymbolIndex.read(projectDir, in);
+                                snapshot = cached;
+                                savedFingerprint = fingerprint;
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            // Truncated or damaged; it is written again after the scan
+                        }
+                    }
+                } finally {
+                    // Whatever happened, the project has to be scanned
+                    final ProjectSnapshot loadedSnapshot = snapshot;
+                    final SymbolIndex loadedSymbols = symbols;
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (loadedSnapshot != null) {
+                                listener.loaded(loadedSnapshot, loadedSymbols);
+                            } else {
+                                listener.missing();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+    
+    /**
+     * Writes the cache in the background if the snapshot or the symbol
+     * index changed since it was last loaded or saved. The index must
+     * already be up to date with the snapshot.
+     */
+    public void saveLater(final ProjectSnapshot snapshot, final SymbolIndex symbols, final boolean changed) {
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                long fingerprint = fingerprint(snapshot);
+                if (changed || fingerprint != savedFingerprint) {
+                    try {
+                        save(fingerprint, snapshot, symbols);
+                        savedFingerprint = fingerprint;
+                    } catch (IOException e) {
+                        // Read-only project; it just opens slower next time
+                    }
+                }
+            }
+        });
+    }
+    
+    private void save(long fingerprint, ProjectSnapshot snapshot, SymbolIndex symbols) throws IOException {
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = new Writer(channel);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeString(projectDir.getAbsolutePath());
+            out.writeLong(fingerprint);
+            writeSnapshot(snapshot, out);
+            symbols.write(out);
+            out.flush();
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    private static void writeSnapshot(ProjectSnapshot snapshot, Writer out) throws IOException {
+        int size = snapshot.size();
+        int[] parents = new int[size];
+        int[] firstChildren = new int[size];
+        int[] childCounts = new int[size];
+        long[] lengths = new long[size];
+        long[] lastModified = new long[size];
+        BitSet directories = new BitSet(size);
+        out.writeInt(size);
+        out.writeLong(snapshot.getScanNanos());
+        for (int i = 0; i < size; i++) {
+            out.writeString(snapshot.getName(i));
+            parents[i] = snapshot.getParent(i);
+            firstChildren[i] = snapshot.getFirstChild(i);
+            childCounts[i] = snapshot.getChildCount(i);
+            lengths[i] = snapshot.getLength(i);
+            lastModified[i] = snapshot.getLastModified(i);
+            directories.set(i, snapshot.isDirectory(i));
+        }
+        out.writeInts(parents);
+        out.writeInts(firstChildren);
+        out.writeInts(childCounts);
+        out.writeLongs(lengths);
+        out.writeLongs(lastModified);
+        out.writeLongs(directories.toLongArray());
+    }
+    
+    private ProjectSnapshot readSnapshot(Reader in) {
+        // Every name takes at least its length
+        int size = in.readCount(4);
+        long scanNanos = in.readLong();
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = in.readString();
+        }
+        return new ProjectSnapshot(projectDir, names, in.readInts(), in.readInts(), in.readInts(),
+            in.readLongs(), in.readLongs(), BitSet.valueOf(in.readLongs()), scanNanos);
+    }
+    
+    /**
+     * Hash of every entry's place, name, length and modification time.
+     */
+    private static long fingerprint(ProjectSnapshot snapshot) {
+        long hash = snapshot.size();
+        for (int i = 0; i < snapshot.size(); i++) {
+            hash = hash * 31 + snapshot.getParent(i);
+            hash = hash * 31 + snapshot.getName(i).hashCode();
+            hash = hash * 31 + snapshot.getLength(i);
+            hash = hash * 31 + snapshot.getLastModified(i);
+        }
+        return hash;
+    }
+    
+    /**
+     * Writes big-endian values through a reused buffer, arrays in bulk.
+     */
+    static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+        
+        void writeInt(int value) throws IOException {
+            require(4);
+            buffer.putInt(value);
+        }
+        
+        void writeLong(long value) throws IOException {
+            require(8);
+            buffer.putLong(value);
+        }
+        
+        void writeString(String value) throws IOException {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        void writeBytes(byte[] values) throws IOException {
+            writeInt(values.length);
+            int done = 0;
+            while (done < values.length) {
+                require(1);
+                int count = Math.min(values.length - done, buffer.remaining());
+                buffer.put(values, done, count);
+                done += count;
+            }
+        }
+        
+        void writeInts(int[] values) throws IOException {
+            writeInt(values.length);
+            int done = 0;
+            while (done < values.length) {
+                require(4);
+                int count = Math.min(values.length - done, buffer.remaining() / 4);
+                buffer.asIntBuffer().put(values, done, count);
+                buffer.position(buffer.position() + count * 4);
+                done += count;
+            }
+        }
+        
+        void writeLongs(long[] values) throws IOException {
+            writeInt(values.length);
+            int done = 0;
+            while (done < values.length) {
+                require(8);
+                int count = Math.min(values.length - done, buffer.remaining() / 8);
+                buffer.asLongBuffer().put(values, done, count);
+                buffer.position(buffer.position() + count * 8);
+                done += count;
+            }
+        }
+        
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+        
+        private void require(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+    
+    /**
+     * Reads what {@link Writer} wrote, arrays in bulk.
+     */
+    static final class Reader {
+        private final ByteBuffer buffer;
+        // Mapped buffers have no array, so strings are decoded from here
+        private byte[] scratch = new byte[256];
+        
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        int readInt() {
+            return buffer.getInt();
+        }
+        
+        long readLong() {
+            return buffer.getLong();
+        }
+        
+        /**
+         * Reads the length of what follows, checked against the bytes left
+         * so a damaged length fails instead of allocating gigabytes.
+         */
+        int readCount(int bytesEach) {
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / bytesEach) {
+                throw new BufferUnderflowException();
+            }
+            return count;
+        }
+        
+        String readString() {
+            int length = readCount(1);
+            if (length > scratch.length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            buffer.get(scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+        
+        byte[] readBytes() {
+            byte[] values = new byte[readCount(1)];
+            buffer.get(values);
+            return values;
+        }
+        
+        int[] readInts() {
+            int[] values = new int[readCount(4)];
+            buffer.asIntBuffer().get(values);
+            buffer.position(buffer.position() + values.length * 4);
+            return values;
+        }
+        
+        long[] readLongs() {
+            long[] values = new long[readCount(8)];
+            buffer.asLongBuffer().get(values);
+            buffer.position(buffer.position() + values.length * 8);
+            return values;
+        }
+    }
+}